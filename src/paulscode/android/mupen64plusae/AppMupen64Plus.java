@@ -56,6 +56,9 @@ import org.acra.sender.HttpSender.Method;
 import org.acra.sender.HttpSender.Type;
 
 import paulscode.android.mupen64plusae.util.CrashHandler;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import android.annotation.TargetApi;
+import android.content.ComponentCallbacks2;
 
 // @formatter:off
 @ReportsCrashes
@@ -122,4 +125,22 @@ public class AppMupen64Plus extends android.app.Application
         // Initialize local crash log system
         CrashHandler.init( this );
     }
+    
+    @TargetApi( 16 )
+    @Override
+    public void onTrimMemory( int level )
+    {
+        super.onTrimMemory( level );
+        
+        // Shared caches are cheap to rebuild, so give the memory back
+        if( level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW )
+            RomDatabase.release();
+    }
+    
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+        RomDatabase.release();
+    }
 }
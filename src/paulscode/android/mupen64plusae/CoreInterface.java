@@ -218,6 +218,9 @@ public class CoreInterface
                     arglist.add( sAppData.coreLib );
                     arglist.add( "--configdir" );
                     arglist.add( sGamePrefs.coreUserConfigDir );
+                    // The config files are already synced from the prefs; saving them again would
+                    // only change their timestamps and force a full sync on the next launch
+                    arglist.add( "--nosaveoptions" );
                     if( !sUserPrefs.isFramelimiterEnabled )
                     {
                         arglist.add( "--nospeedlimit" );
@@ -21,16 +21,15 @@
 package paulscode.android.mupen64plusae;
 
 import java.io.File;
+import java.text.Collator;
 import java.util.ArrayList;
-import java.util.Collections;
 import java.util.List;
 
 import org.mupen64plusae.v3.alpha.R;
 
+import paulscode.android.mupen64plusae.GallerySearchIndex.Filter;
 import paulscode.android.mupen64plusae.input.DiagnosticActivity;
 import paulscode.android.mupen64plusae.persistent.AppData;
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.profile.ManageControllerProfilesActivity;
 import paulscode.android.mupen64plusae.profile.ManageEmulationProfilesActivity;
@@ -39,39 +38,64 @@ import paulscode.android.mupen64plusae.task.CacheRomInfoTask;
 import paulscode.android.mupen64plusae.task.CacheRomInfoTask.CacheRomInfoListener;
 import paulscode.android.mupen64plusae.task.ComputeMd5Task;
 import paulscode.android.mupen64plusae.task.ComputeMd5Task.ComputeMd5Listener;
+import paulscode.android.mupen64plusae.task.RomLibraryWatcher;
+import paulscode.android.mupen64plusae.task.RomLibraryWatcher.RomLibraryListener;
 import paulscode.android.mupen64plusae.util.ChangeLog;
+import paulscode.android.mupen64plusae.util.CoverArtLoader;
 import paulscode.android.mupen64plusae.util.DeviceUtil;
 import paulscode.android.mupen64plusae.util.Notifier;
 import paulscode.android.mupen64plusae.util.Prompt;
 import paulscode.android.mupen64plusae.util.Prompt.PromptFileListener;
+import paulscode.android.mupen64plusae.util.RomCatalog;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.ThumbnailCache;
 import paulscode.android.mupen64plusae.util.Utility;
 import android.annotation.TargetApi;
 import android.app.Activity;
+import android.app.ActivityManager;
 import android.app.AlertDialog.Builder;
+import android.content.Context;
 import android.content.DialogInterface;
 import android.content.Intent;
 import android.os.Bundle;
 import android.os.Environment;
+import android.text.Editable;
 import android.text.TextUtils;
+import android.text.TextWatcher;
 import android.util.Log;
 import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
 import android.widget.AdapterView.OnItemClickListener;
+import android.widget.EditText;
 import android.widget.GridView;
 
-public class GalleryActivity extends Activity implements OnItemClickListener, ComputeMd5Listener, CacheRomInfoListener
+public class GalleryActivity extends Activity implements OnItemClickListener, ComputeMd5Listener, CacheRomInfoListener,
+        RomLibraryListener
 {
+    /** The lowest mupen64plus.ini status not considered to have known issues by the filter. */
+    private static final int MIN_GOOD_STATUS = 3;
+    
     // App data and user preferences
     private AppData mAppData = null;
     private UserPrefs mUserPrefs = null;
     
     // Widgets
     private GridView mGridView;
+    private GalleryItem.Adapter mGridAdapter = null;
+    private EditText mSearchText;
+    private CoverArtLoader mArtLoader;
+    private ThumbnailCache mThumbnails;
+    
+    // Search
+    private GallerySearchIndex mSearchIndex = null;
+    private Filter mFilter = Filter.NONE;
     
     // Background tasks
     private CacheRomInfoTask mCacheRomInfoTask = null;
+    private RomLibraryWatcher mRomLibraryWatcher = null;
+    private boolean mIsStarted = false;
     
     @Override
     protected void onNewIntent( Intent intent )
@@ -125,7 +149,31 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
         // Lay out the content
         setContentView( R.layout.gallery_activity );
         mGridView = (GridView) findViewById( R.id.gridview );
-        refreshGrid( new ConfigFile( mUserPrefs.romInfoCache_cfg ) );
+        mGridView.setOnItemClickListener( this );
+        mSearchText = (EditText) findViewById( R.id.searchText );
+        mSearchText.addTextChangedListener( new TextWatcher()
+        {
+            @Override
+            public void onTextChanged( CharSequence s, int start, int before, int count )
+            {
+            }
+            
+            @Override
+            public void beforeTextChanged( CharSequence s, int start, int count, int after )
+            {
+            }
+            
+            @Override
+            public void afterTextChanged( Editable s )
+            {
+                applySearch();
+            }
+        } );
+        mThumbnails = new ThumbnailCache( getResources().getDimensionPixelSize( R.dimen.galleryImageWidth ),
+                getResources().getDimensionPixelSize( R.dimen.galleryImageHeight ) );
+        mArtLoader = createArtLoader();
+        RomCatalog.importConfigFile( mUserPrefs.romInfoCache_cfg, mUserPrefs.romCatalog_dat );
+        refreshGrid( RomCatalog.open( mUserPrefs.romCatalog_dat ) );
         
         // Popup a warning if the installation appears to be corrupt
         if( !mAppData.isValidInstallation )
@@ -136,16 +184,43 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
         }
     }
     
+    @Override
+    protected void onDestroy()
+    {
+        super.onDestroy();
+        mArtLoader.shutdown();
+    }
+    
+    private CoverArtLoader createArtLoader()
+    {
+        // Give cover art an eighth of the app's heap budget
+        ActivityManager manager = (ActivityManager) getSystemService( Context.ACTIVITY_SERVICE );
+        int cacheBytes = manager.getMemoryClass() * 1024 * 1024 / 8;
+        int width = getResources().getDimensionPixelSize( R.dimen.galleryImageWidth );
+        int height = getResources().getDimensionPixelSize( R.dimen.galleryImageHeight );
+        return new CoverArtLoader( width, height, cacheBytes, R.drawable.default_coverart, mThumbnails );
+    }
+    
+    @Override
+    protected void onStart()
+    {
+        super.onStart();
+        mIsStarted = true;
+        
+        // Keep the gallery in step with the ROM folders while it is visible; if a cancelled scan
+        // is still winding down, the watcher starts once it has finished
+        startWatchingRoms();
+    }
+    
     protected void onStop()
     {
         super.onStop();
+        mIsStarted = false;
         
-        // Cancel long-running background tasks
+        // Cancel long-running background tasks; the scan is forgotten once it reports back
         if( mCacheRomInfoTask != null )
-        {
             mCacheRomInfoTask.cancel( false );
-            mCacheRomInfoTask = null;
-        }
+        stopWatchingRoms();
     }
     
     @Override
@@ -163,6 +238,9 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
             case R.id.menuItem_refreshRoms:
                 promptSearchPath( null );
                 return true;
+            case R.id.menuItem_filterRoms:
+                promptFilter();
+                return true;
             case R.id.menuItem_globalSettings:
                 startActivity( new Intent( this, SettingsGlobalActivity.class ) );
                 return true;
@@ -224,8 +302,10 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
     
     private void launchPlayMenuActivity( final String romPath )
     {
-        // Asynchronously compute MD5 and launch play menu when finished
+        // Asynchronously compute MD5 and launch play menu when finished; the play menu looks up
+        // unscanned ROMs in the database, so have it loaded by then
         Notifier.showToast( this, String.format( getString( R.string.toast_loadingGameInfo ) ) );
+        RomDatabase.warmUp( mAppData.mupen64plus_ini );
         new ComputeMd5Task( new File( romPath ), this ).execute();
     }
     
@@ -274,40 +354,129 @@ public class GalleryActivity extends Activity implements OnItemClickListener, Co
     {
         // Asynchronously search for ROMs
         Notifier.showToast( this, "Searching for ROMs in " + startDir.getName() );
-        mCacheRomInfoTask = new CacheRomInfoTask( startDir, mAppData.mupen64plus_ini, mUserPrefs.romInfoCache_cfg, mUserPrefs.galleryDataDir, this );
+        mAppData.addRomSearchRoot( startDir.getAbsolutePath() );
+        
+        // The full scan owns the cache until it finishes; it waits for any earlier writer itself
+        stopWatchingRoms();
+        mCacheRomInfoTask = new CacheRomInfoTask( startDir, mAppData.mupen64plus_ini, mUserPrefs.romCatalog_dat,
+                mUserPrefs.galleryDataDir, mThumbnails, this );
         mCacheRomInfoTask.execute();
     }
     
     @Override
-    public void onCacheRomInfoProgress( ConfigSection section )
+    public void onCacheRomInfoProgress( RomCatalog.Entry entry )
     {
-        Notifier.showToast( this, section.get( "goodName" ) );
+        Notifier.showToast( this, entry.goodName );
     }
     
     @Override
-    public void onCacheRomInfoFinished( ConfigFile config, boolean canceled )
+    public void onCacheRomInfoFinished( RomCatalog catalog, boolean canceled )
     {
+        // A cancelled scan that was superseded by a new one has nothing to report
+        if( canceled && mCacheRomInfoTask != null && !mCacheRomInfoTask.isCancelled() )
+            return;
+        
         mCacheRomInfoTask = null;
         Notifier.showToast( this, canceled ? "Canceled" : "Finished" );
-        refreshGrid( config );
+        refreshGrid( catalog );
+        if( mIsStarted )
+            startWatchingRoms();
     }
     
-    private void refreshGrid( ConfigFile config )
+    @Override
+    public void onRomLibraryChanged( RomCatalog catalog )
     {
-        List<GalleryItem> items = new ArrayList<GalleryItem>();
-        for( String md5 : config.keySet() )
+        refreshGrid( catalog );
+    }
+    
+    private void startWatchingRoms()
+    {
+        if( mRomLibraryWatcher != null || mCacheRomInfoTask != null )
+            return;
+        
+        // Libraries scanned before the search folders were recorded are watched where their ROMs are
+        List<String> romPaths = new ArrayList<String>();
+        if( mAppData.getRomSearchRoots().isEmpty() )
         {
-            if( !ConfigFile.SECTIONLESS_NAME.equals( md5 ) )
+            for( RomCatalog.Entry entry : RomCatalog.open( mUserPrefs.romCatalog_dat ).getAll() )
             {
-                String goodName = config.get( md5, "goodName" );
-                String romPath = config.get( md5, "romPath" );
-                String artPath = config.get( md5, "artPath" );
-                items.add( new GalleryItem( this, md5, goodName, romPath, artPath ) );
+                if( !TextUtils.isEmpty( entry.romPath ) )
+                    romPaths.add( entry.romPath );
             }
         }
-        Collections.sort( items );
-        mGridView.setAdapter( new GalleryItem.Adapter( this, R.id.text1, items ) );
-        mGridView.setOnItemClickListener( this );
+        
+        List<String> roots = mAppData.seedRomSearchRoots( romPaths );
+        mRomLibraryWatcher = new RomLibraryWatcher( roots, mAppData.mupen64plus_ini, mUserPrefs.romCatalog_dat,
+                mUserPrefs.galleryDataDir, mThumbnails, this );
+        mRomLibraryWatcher.start();
+    }
+    
+    private void stopWatchingRoms()
+    {
+        if( mRomLibraryWatcher != null )
+        {
+            mRomLibraryWatcher.stop();
+            mRomLibraryWatcher = null;
+        }
+    }
+    
+    private void refreshGrid( RomCatalog catalog )
+    {
+        Collator collator = Collator.getInstance();
+        collator.setStrength( Collator.SECONDARY );
+        List<GalleryItem> items = new ArrayList<GalleryItem>();
+        for( RomCatalog.Entry entry : catalog.getAll() )
+        {
+            items.add( new GalleryItem( collator, entry.md5, entry.goodName, entry.romPath, entry.artPath,
+                    entry.status, entry.players, entry.rumble ) );
+        }
+        mSearchIndex = new GallerySearchIndex( items );
+        applySearch();
+    }
+    
+    private void applySearch()
+    {
+        // Runs on every keystroke; the index keeps this well under a frame
+        if( mSearchIndex == null )
+            return;
+        
+        // Reuse the adapter, so that a library change does not scroll the grid back to the top
+        List<GalleryItem> items = mSearchIndex.search( mSearchText.getText().toString(), mFilter );
+        if( mGridAdapter == null )
+        {
+            mGridAdapter = new GalleryItem.Adapter( this, R.id.text1, new ArrayList<GalleryItem>(),
+                    mArtLoader );
+            mGridView.setAdapter( mGridAdapter );
+        }
+        mGridAdapter.setItems( items );
+    }
+    
+    private void promptFilter()
+    {
+        final CharSequence[] labels = { getText( R.string.listItem_multiplayer ),
+                getText( R.string.listItem_rumble ), getText( R.string.listItem_hideKnownIssues ) };
+        final boolean[] checked = { mFilter.minPlayers > 1, mFilter.rumbleOnly,
+                mFilter.minStatus >= MIN_GOOD_STATUS };
+        
+        new Builder( this ).setTitle( R.string.menuItem_filterRoms )
+                .setMultiChoiceItems( labels, checked, new DialogInterface.OnMultiChoiceClickListener()
+                {
+                    @Override
+                    public void onClick( DialogInterface dialog, int which, boolean isChecked )
+                    {
+                        checked[which] = isChecked;
+                    }
+                } ).setPositiveButton( android.R.string.ok, new DialogInterface.OnClickListener()
+                {
+                    @Override
+                    public void onClick( DialogInterface dialog, int which )
+                    {
+                        int minPlayers = checked[0] ? 2 : 0;
+                        int minStatus = checked[2] ? MIN_GOOD_STATUS : 0;
+                        mFilter = new Filter( minPlayers, checked[1], minStatus );
+                        applySearch();
+                    }
+                } ).setNegativeButton( android.R.string.cancel, null ).create().show();
     }
     
     private void popupFaq()
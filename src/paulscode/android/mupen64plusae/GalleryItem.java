@@ -21,12 +21,14 @@
 package paulscode.android.mupen64plusae;
 
 import java.io.File;
+import java.text.CollationKey;
+import java.text.Collator;
 import java.util.List;
 
 import org.mupen64plusae.v3.alpha.R;
 
+import paulscode.android.mupen64plusae.util.CoverArtLoader;
 import android.content.Context;
-import android.graphics.drawable.BitmapDrawable;
 import android.text.TextUtils;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -40,25 +42,32 @@ public class GalleryItem implements Comparable<GalleryItem>
     public final String md5;
     public final String goodName;
     public final File romFile;
-    public final BitmapDrawable artBitmap;
+    public final String artPath;
+    public final int status;
+    public final int players;
+    public final boolean rumble;
     
-    public GalleryItem( Context context, String md5, String goodName, String romPath, String artPath )
+    /** Precomputed so that sorting does not re-collate the name on every comparison. */
+    private final CollationKey mSortKey;
+    
+    public GalleryItem( Collator collator, String md5, String goodName, String romPath, String artPath,
+            int status, int players, boolean rumble )
     {
         this.md5 = md5;
         this.goodName = goodName;
+        this.artPath = artPath;
+        this.status = status;
+        this.players = players;
+        this.rumble = rumble;
         
         romFile = TextUtils.isEmpty( romPath ) ? null : new File( romPath );
-        
-        if( !TextUtils.isEmpty( artPath ) && new File( artPath ).exists() )
-            artBitmap = new BitmapDrawable( context.getResources(), artPath );
-        else
-            artBitmap = null;
+        mSortKey = collator.getCollationKey( toString() );
     }
     
     @Override
     public int compareTo( GalleryItem that )
     {
-        return this.toString().compareToIgnoreCase( that.toString() );
+        return this.mSortKey.compareTo( that.mSortKey );
     }
     
     @Override
@@ -75,11 +84,30 @@ public class GalleryItem implements Comparable<GalleryItem>
     public static class Adapter extends ArrayAdapter<GalleryItem>
     {
         private final Context mContext;
+        private final CoverArtLoader mArtLoader;
         
-        public Adapter( Context context, int textViewResourceId, List<GalleryItem> objects )
+        public Adapter( Context context, int textViewResourceId, List<GalleryItem> objects,
+                CoverArtLoader artLoader )
         {
             super( context, textViewResourceId, objects );
             mContext = context;
+            mArtLoader = artLoader;
+        }
+        
+        /**
+         * Replaces the items shown. The grid keeps its scroll position, and cells still showing
+         * the same item keep their art.
+         * 
+         * @param items The items to show.
+         */
+        public void setItems( List<GalleryItem> items )
+        {
+            // ArrayAdapter.addAll() requires API 11
+            setNotifyOnChange( false );
+            clear();
+            for( GalleryItem item : items )
+                add( item );
+            notifyDataSetChanged();
         }
         
         @Override
@@ -94,11 +122,9 @@ public class GalleryItem implements Comparable<GalleryItem>
             GalleryItem item = getItem( position );
             if( item != null )
             {
+                // Only the cell-sized thumbnail is decoded, in the background
                 ImageView artView = (ImageView) view.findViewById( R.id.imageArt );
-                if( item.artBitmap != null )
-                    artView.setImageDrawable( item.artBitmap );
-                else
-                    artView.setImageResource( R.drawable.default_coverart );
+                mArtLoader.load( item.artPath, artView );
                 
                 TextView tv1 = (TextView) view.findViewById( R.id.text1 );
                 tv1.setText( item.toString() );
@@ -0,0 +1,236 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * An in-memory index for filtering the gallery as the user types.
+ * <p>
+ * Items are sorted once, by their collation keys, when the index is built. Every word of every
+ * item's name is then placed in a single sorted word list, so that the items containing a word
+ * that starts with a given prefix form one contiguous run found by binary search. A query matches
+ * an item when each of its words is a prefix of some word in the item's name; e.g. "mar ka"
+ * matches "Mario Kart 64 (U)". Results are always returned in sorted order.
+ */
+public class GallerySearchIndex
+{
+    /**
+     * Restricts search results by ROM database properties.
+     */
+    public static class Filter
+    {
+        /** A filter that accepts every item. */
+        public static final Filter NONE = new Filter( 0, false, 0 );
+        
+        /** The minimum number of players, or 0 for any. */
+        public final int minPlayers;
+        
+        /** Whether only games with rumble support are accepted. */
+        public final boolean rumbleOnly;
+        
+        /** The minimum compatibility status, or 0 for any. Games of unknown status (0) always pass. */
+        public final int minStatus;
+        
+        public Filter( int minPlayers, boolean rumbleOnly, int minStatus )
+        {
+            this.minPlayers = minPlayers;
+            this.rumbleOnly = rumbleOnly;
+            this.minStatus = minStatus;
+        }
+        
+        public boolean isEmpty()
+        {
+            return minPlayers <= 0 && !rumbleOnly && minStatus <= 0;
+        }
+        
+        public boolean accepts( GalleryItem item )
+        {
+            return item.players >= minPlayers && ( item.rumble || !rumbleOnly )
+                    && ( item.status == 0 || item.status >= minStatus );
+        }
+    }
+    
+    /** The items, in sorted order. */
+    private final GalleryItem[] mItems;
+    
+    /** Every word of every name, in sorted order... */
+    private final String[] mWords;
+    
+    /** ...and the index in mItems of the item each word came from. */
+    private final int[] mWordItems;
+    
+    /**
+     * Builds an index.
+     * 
+     * @param items The items to index. The list itself is not modified.
+     */
+    public GallerySearchIndex( List<GalleryItem> items )
+    {
+        List<GalleryItem> sorted = new ArrayList<GalleryItem>( items );
+        Collections.sort( sorted );
+        mItems = sorted.toArray( new GalleryItem[sorted.size()] );
+        
+        List<Posting> postings = new ArrayList<Posting>();
+        for( int i = 0; i < mItems.length; i++ )
+        {
+            for( String word : tokenize( mItems[i].toString() ) )
+                postings.add( new Posting( word, i ) );
+        }
+        Posting[] sortedPostings = postings.toArray( new Posting[postings.size()] );
+        Arrays.sort( sortedPostings );
+        
+        mWords = new String[sortedPostings.length];
+        mWordItems = new int[sortedPostings.length];
+        for( int i = 0; i < sortedPostings.length; i++ )
+        {
+            mWords[i] = sortedPostings[i].word;
+            mWordItems[i] = sortedPostings[i].item;
+        }
+    }
+    
+    /**
+     * Gets the number of indexed items.
+     * 
+     * @return The number of items.
+     */
+    public int size()
+    {
+        return mItems.length;
+    }
+    
+    /**
+     * Finds the items matching a query and a filter.
+     * 
+     * @param query The text typed by the user; may be null or empty to match everything.
+     * @param filter The filter to apply.
+     * 
+     * @return The matching items, in sorted order.
+     */
+    public List<GalleryItem> search( String query, Filter filter )
+    {
+        BitSet matches = null;
+        for( String token : tokenize( query ) )
+        {
+            BitSet tokenMatches = new BitSet( mItems.length );
+            for( int i = lowerBound( token ); i < mWords.length && mWords[i].startsWith( token ); i++ )
+                tokenMatches.set( mWordItems[i] );
+            
+            if( matches == null )
+                matches = tokenMatches;
+            else
+                matches.and( tokenMatches );
+            
+            if( matches.isEmpty() )
+                break;
+        }
+        
+        List<GalleryItem> result = new ArrayList<GalleryItem>();
+        if( matches == null )
+        {
+            // Empty query
+            for( GalleryItem item : mItems )
+            {
+                if( filter.isEmpty() || filter.accepts( item ) )
+                    result.add( item );
+            }
+        }
+        else
+        {
+            for( int i = matches.nextSetBit( 0 ); i >= 0; i = matches.nextSetBit( i + 1 ) )
+            {
+                if( filter.isEmpty() || filter.accepts( mItems[i] ) )
+                    result.add( mItems[i] );
+            }
+        }
+        return result;
+    }
+    
+    /**
+     * Splits text into lowercase words of letters and digits.
+     * 
+     * @param text The text to split; may be null.
+     * 
+     * @return The words, possibly with duplicates.
+     */
+    static List<String> tokenize( String text )
+    {
+        List<String> words = new ArrayList<String>();
+        if( text == null )
+            return words;
+        
+        String lower = text.toLowerCase( Locale.US );
+        int start = -1;
+        for( int i = 0; i <= lower.length(); i++ )
+        {
+            boolean isWordChar = i < lower.length() && Character.isLetterOrDigit( lower.charAt( i ) );
+            if( isWordChar && start < 0 )
+            {
+                start = i;
+            }
+            else if( !isWordChar && start >= 0 )
+            {
+                words.add( lower.substring( start, i ) );
+                start = -1;
+            }
+        }
+        return words;
+    }
+    
+    private int lowerBound( String key )
+    {
+        int low = 0;
+        int high = mWords.length;
+        while( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if( mWords[mid].compareTo( key ) < 0 )
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+    
+    private static class Posting implements Comparable<Posting>
+    {
+        public final String word;
+        public final int item;
+        
+        public Posting( String word, int item )
+        {
+            this.word = word;
+            this.item = item;
+        }
+        
+        @Override
+        public int compareTo( Posting that )
+        {
+            int result = this.word.compareTo( that.word );
+            return result != 0 ? result : this.item - that.item;
+        }
+    }
+}
@@ -26,9 +26,9 @@ import java.util.ArrayList;
 import org.mupen64plusae.v3.alpha.R;
 
 import paulscode.android.mupen64plusae.cheat.CheatEditorActivity;
-import paulscode.android.mupen64plusae.cheat.CheatFile;
 import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
 import paulscode.android.mupen64plusae.cheat.CheatPreference;
+import paulscode.android.mupen64plusae.cheat.CheatStore;
 import paulscode.android.mupen64plusae.cheat.CheatUtils;
 import paulscode.android.mupen64plusae.cheat.CheatUtils.Cheat;
 import paulscode.android.mupen64plusae.hacks.MogaHack;
@@ -37,10 +37,13 @@ import paulscode.android.mupen64plusae.persistent.GamePrefs;
 import paulscode.android.mupen64plusae.persistent.PlayerMapPreference;
 import paulscode.android.mupen64plusae.persistent.ProfilePreference;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.task.LoadCheatsTask;
+import paulscode.android.mupen64plusae.task.LoadCheatsTask.LoadCheatsListener;
 import paulscode.android.mupen64plusae.util.Notifier;
 import paulscode.android.mupen64plusae.util.PrefUtil;
 import paulscode.android.mupen64plusae.util.Prompt;
 import paulscode.android.mupen64plusae.util.Prompt.PromptConfirmListener;
+import paulscode.android.mupen64plusae.util.RomCatalog;
 import paulscode.android.mupen64plusae.util.RomDatabase;
 import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
 import paulscode.android.mupen64plusae.util.RomHeader;
@@ -61,7 +64,7 @@ import android.util.Log;
 import com.bda.controller.Controller;
 
 public class PlayMenuActivity extends PreferenceActivity implements OnPreferenceClickListener,
-        OnSharedPreferenceChangeListener
+        OnSharedPreferenceChangeListener, LoadCheatsListener
 {
     // These constants must match the keys used in res/xml/preferences_play.xml
     private static final String SCREEN_CHEATS = "screenCheats";
@@ -93,9 +96,7 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
     // ROM info
     private String mRomPath = null;
     private String mRomMd5 = null;
-    private RomHeader mRomHeader = null;
-    private RomDatabase mRomDatabase = null;
-    private RomDetail mRomDetail = null;
+    private RomCatalog.Entry mRomEntry = null;
     
     // Preference menu items
     ProfilePreference mEmulationProfile = null;
@@ -132,15 +133,13 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         
         // Get app data and user preferences
         mAppData = new AppData( this );
-        mRomHeader = new RomHeader( mRomPath );
         mUserPrefs = new UserPrefs( this );
-        mGamePrefs = new GamePrefs( this, mRomMd5, mRomHeader );
-        mUserPrefs.enforceLocale( this );
-        mPrefs = getSharedPreferences( mGamePrefs.sharedPrefsName, MODE_PRIVATE );
         
         // Get the detailed info about the ROM
-        mRomDatabase = new RomDatabase( mAppData.mupen64plus_ini );
-        mRomDetail = mRomDatabase.lookupByMd5WithFallback( mRomMd5, new File( mRomPath ) );
+        mRomEntry = loadRomEntry();
+        mGamePrefs = newGamePrefs();
+        mUserPrefs.enforceLocale( this );
+        mPrefs = getSharedPreferences( mGamePrefs.sharedPrefsName, MODE_PRIVATE );
         
         // Load user preference menu structure from XML and update view
         getPreferenceManager().setSharedPreferencesName( mGamePrefs.sharedPrefsName );
@@ -155,10 +154,10 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         mCategoryCheats = (PreferenceGroup) findPreference( CATEGORY_CHEATS );
         
         // Set some game-specific strings
-        setTitle( mRomDetail.goodName );
-        if( !TextUtils.isEmpty( mRomDetail.baseName ) )
+        setTitle( mRomEntry.goodName );
+        if( !TextUtils.isEmpty( mRomEntry.baseName ) )
         {
-            String title = getString( R.string.categoryGameSettings_titleNamed, mRomDetail.baseName );
+            String title = getString( R.string.categoryGameSettings_titleNamed, mRomEntry.baseName );
             findPreference( CATEGORY_GAME_SETTINGS ).setTitle( title );
         }
         
@@ -170,13 +169,13 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         PrefUtil.setOnPreferenceClickListener( this, ACTION_RESET_GAME_PREFS, this );
         
         // Remove wiki menu item if not applicable
-        if( TextUtils.isEmpty( mRomDetail.wikiUrl ) )
+        if( TextUtils.isEmpty( mRomEntry.wikiUrl ) )
         {
             PrefUtil.removePreference( this, CATEGORY_GAME_SETTINGS, ACTION_WIKI );
         }
         
         // Setup controller profiles settings based on ROM's number of players
-        if( mRomDetail.players == 1 )
+        if( mRomEntry.players == 1 )
         {
             // Simplify name of "controller 1" to just "controller" to eliminate confusion
             findPreference( CONTROLLER_PROFILE1 ).setTitle( R.string.controllerProfile_title );
@@ -190,9 +189,9 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         else
         {
             // Remove unneeded preference items
-            if( mRomDetail.players < 4 )
+            if( mRomEntry.players < 4 )
                 PrefUtil.removePreference( this, CATEGORY_GAME_SETTINGS, CONTROLLER_PROFILE4 );
-            if( mRomDetail.players < 3 )
+            if( mRomEntry.players < 3 )
                 PrefUtil.removePreference( this, CATEGORY_GAME_SETTINGS, CONTROLLER_PROFILE3 );
             
             // Configure the player map preference
@@ -245,13 +244,34 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
             refreshCheatsCategory();
     }
     
+    private RomCatalog.Entry loadRomEntry()
+    {
+        // The gallery's catalog already holds everything needed from the header and the database
+        RomCatalog.Entry entry = RomCatalog.open( mUserPrefs.romCatalog_dat ).get( mRomMd5 );
+        if( entry != null && entry.hasHeader() )
+            return entry;
+        
+        // Not scanned yet; read the ROM itself. The splash screen and gallery warm the database up,
+        // so this does not normally have to wait for it to load.
+        File file = new File( mRomPath );
+        RomHeader header = new RomHeader( file );
+        RomDetail detail = RomDatabase.getInstance( mAppData.mupen64plus_ini ).lookupByMd5WithFallback( mRomMd5,
+                file, header );
+        return new RomCatalog.Entry( mRomMd5, file, file.length(), file.lastModified(), null, detail, header );
+    }
+    
+    private GamePrefs newGamePrefs()
+    {
+        return new GamePrefs( this, mRomMd5, mRomEntry.headerName, mRomEntry.countrySymbol );
+    }
+    
     private void refreshViews()
     {
         mPrefs.unregisterOnSharedPreferenceChangeListener( this );
         
         // Refresh the preferences objects
         mUserPrefs = new UserPrefs( this );
-        mGamePrefs = new GamePrefs( this, mRomMd5, mRomHeader );
+        mGamePrefs = newGamePrefs();
         
         // Populate the profile preferences
         mEmulationProfile.populateProfiles( mAppData.emulationProfiles_cfg,
@@ -269,7 +289,7 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         
         // Refresh the preferences objects in case populate* changed a value
         mUserPrefs = new UserPrefs( this );
-        mGamePrefs = new GamePrefs( this, mRomMd5, mRomHeader );
+        mGamePrefs = newGamePrefs();
         
         // Set cheats screen summary text
         mScreenCheats.setSummary( mGamePrefs.isCheatOptionsShown
@@ -286,9 +306,9 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         {
             // Check null in case preference has been removed
             boolean enable1 = mGamePrefs.isControllerEnabled1;
-            boolean enable2 = mGamePrefs.isControllerEnabled2 && mRomDetail.players > 1;
-            boolean enable3 = mGamePrefs.isControllerEnabled3 && mRomDetail.players > 2;
-            boolean enable4 = mGamePrefs.isControllerEnabled4 && mRomDetail.players > 3;
+            boolean enable2 = mGamePrefs.isControllerEnabled2 && mRomEntry.players > 1;
+            boolean enable3 = mGamePrefs.isControllerEnabled3 && mRomEntry.players > 2;
+            boolean enable4 = mGamePrefs.isControllerEnabled4 && mRomEntry.players > 3;
             playerPref.setControllersEnabled( enable1, enable2, enable3, enable4 );
         }
         
@@ -300,7 +320,7 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         if( mGamePrefs.isCheatOptionsShown )
         {
             // Populate menu items
-            buildCheatsCategory( mRomHeader.crc );
+            buildCheatsCategory( mRomEntry.crc );
             
             // Show the cheats category
             mScreenCheats.addPreference( mCategoryCheats );
@@ -343,7 +363,7 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         }
         else if( key.equals( ACTION_WIKI ) )
         {
-            Utility.launchUri( this, mRomDetail.wikiUrl );
+            Utility.launchUri( this, mRomEntry.wikiUrl );
         }
         else if( key.equals( ACTION_RESET_GAME_PREFS ) )
         {
@@ -360,16 +380,35 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
         if( crc == null )
             return;
         
-        // Get the appropriate section of the config file, using CRC as the key
-        CheatFile mupencheat_txt = new CheatFile( mAppData.mupencheat_txt );
-        CheatSection cheatSection = mupencheat_txt.match( "^" + crc.replace( ' ', '-' ) + ".*" );
+        // Get the appropriate section of the cheat file, using CRC as the key; if the cheat editor
+        // has just made the index stale, rebuild it in the background rather than here
+        CheatStore store = CheatStore.openIfCurrent( mAppData.mupencheat_txt );
+        if( store == null )
+            new LoadCheatsTask( mAppData.mupencheat_txt, crc, this ).execute();
+        else
+            buildCheatsCategory( crc, store.getByCrc( crc ) );
+    }
+    
+    @Override
+    public void onLoadCheatsFinished( String crc, CheatSection section )
+    {
+        // Ignore results that arrive after the menu has gone, or for a stale request
+        if( !isFinishing() && crc.equals( mRomEntry.crc ) )
+        {
+            mCategoryCheats.removeAll();
+            buildCheatsCategory( crc, section );
+        }
+    }
+    
+    private void buildCheatsCategory( String crc, CheatSection cheatSection )
+    {
         if( cheatSection == null )
         {
             Log.w( "PlayMenuActivity", "No cheat section found for '" + crc + "'" );
             return;
         }
         ArrayList<Cheat> cheats = new ArrayList<Cheat>();
-        cheats.addAll( CheatUtils.populate( crc, mupencheat_txt, true, this ) );
+        cheats.addAll( CheatUtils.populate( crc, cheatSection, true, this ) );
         CheatUtils.reset();
         
         // Layout the menu, populating it with appropriate cheat options
@@ -407,16 +446,16 @@ public class PlayMenuActivity extends PreferenceActivity implements OnPreference
     private void launchGame( boolean isRestarting )
     {
         // Popup the multi-player dialog if necessary and abort if any players are unassigned
-        if( mRomDetail.players > 1 && mGamePrefs.playerMap.isEnabled()
+        if( mRomEntry.players > 1 && mGamePrefs.playerMap.isEnabled()
                 && mUserPrefs.getPlayerMapReminder() )
         {
             mGamePrefs.playerMap.removeUnavailableMappings();
             boolean needs1 = mGamePrefs.isControllerEnabled1 && !mGamePrefs.playerMap.isMapped( 1 );
             boolean needs2 = mGamePrefs.isControllerEnabled2 && !mGamePrefs.playerMap.isMapped( 2 );
             boolean needs3 = mGamePrefs.isControllerEnabled3 && !mGamePrefs.playerMap.isMapped( 3 )
-                    && mRomDetail.players > 2;
+                    && mRomEntry.players > 2;
             boolean needs4 = mGamePrefs.isControllerEnabled4 && !mGamePrefs.playerMap.isMapped( 4 )
-                    && mRomDetail.players > 3;
+                    && mRomEntry.players > 3;
             
             if( needs1 || needs2 || needs3 || needs4 )
             {
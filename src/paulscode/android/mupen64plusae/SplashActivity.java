@@ -20,20 +20,21 @@
 
 package paulscode.android.mupen64plusae;
 
-import java.io.File;
 import java.util.List;
 
 import org.mupen64plusae.v3.alpha.R;
 
-import paulscode.android.mupen64plusae.cheat.CheatUtils;
+import paulscode.android.mupen64plusae.cheat.CheatUtils.MergeStats;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.task.ExtractAssetsTask;
 import paulscode.android.mupen64plusae.task.ExtractAssetsTask.ExtractAssetsListener;
 import paulscode.android.mupen64plusae.task.ExtractAssetsTask.Failure;
-import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.task.MergeCheatsTask;
+import paulscode.android.mupen64plusae.task.MergeCheatsTask.MergeCheatsListener;
 import paulscode.android.mupen64plusae.util.Notifier;
 import paulscode.android.mupen64plusae.util.PrefUtil;
+import paulscode.android.mupen64plusae.util.RomDatabase;
 import tv.ouya.console.api.OuyaFacade;
 import android.app.Activity;
 import android.content.Intent;
@@ -52,17 +53,15 @@ import android.widget.TextView;
  * The main activity that presents the splash screen, extracts the assets if necessary, and launches
  * the main menu activity.
  */
-public class SplashActivity extends Activity implements ExtractAssetsListener
+public class SplashActivity extends Activity implements ExtractAssetsListener, MergeCheatsListener
 {
     /**
      * Asset version number, used to determine stale assets. Increment this number every time the
-     * assets are updated on disk.
+     * assets are updated on disk, after regenerating the asset manifest with
+     * tools/make-asset-manifest.sh. Only the files that changed are extracted again.
      */
     private static final int ASSET_VERSION = 49;
     
-    /** The total number of assets to be extracted (for computing progress %). */
-    private static final int TOTAL_ASSETS = 115;
-    
     /** The minimum duration that the splash screen is shown, in milliseconds. */
     private static final int SPLASH_DELAY = 1000;
     
@@ -177,22 +176,23 @@ public class SplashActivity extends Activity implements ExtractAssetsListener
             if( mAppData.getAssetVersion() != ASSET_VERSION )
             {
                 // Extract and merge the assets if they are out of date
-                FileUtil.deleteFolder( new File( mAppData.coreSharedDataDir ) );
                 mAssetsExtracted = 0;
                 new ExtractAssetsTask( getAssets(), SOURCE_DIR, mAppData.coreSharedDataDir, SplashActivity.this ).execute();
             }
             else
             {
-                // Assets already extracted, just launch next activity
-                launchGalleryActivity();
+                // Assets already extracted, just load the ROM database, bring the cheats up to date
+                // (usually a no-op), and launch next activity
+                RomDatabase.warmUp( mAppData.mupen64plus_ini );
+                mergeCheats();
             }
         }
     };
     
     @Override
-    public void onExtractAssetsProgress( String nextFileToExtract )
+    public void onExtractAssetsProgress( String nextFileToExtract, int totalFiles )
     {
-        final float percent = ( 100f * mAssetsExtracted ) / (float) TOTAL_ASSETS;
+        final float percent = ( 100f * mAssetsExtracted ) / (float) totalFiles;
         final String text = getString( R.string.assetExtractor_progress, percent, nextFileToExtract );
         mTextView.setText( text );
         mAssetsExtracted++;
@@ -206,8 +206,11 @@ public class SplashActivity extends Activity implements ExtractAssetsListener
             // Extraction succeeded, record new asset version, merge cheats, and launch next activity
             mTextView.setText( R.string.assetExtractor_finished );
             mAppData.putAssetVersion( ASSET_VERSION );
-            CheatUtils.mergeCheatFiles( mAppData.mupencheat_default, mUserPrefs.customCheats_txt, mAppData.mupencheat_txt );
-            launchGalleryActivity();
+            
+            // Reload the ROM database (compiling its index) now, so it is ready before first use
+            RomDatabase.release();
+            RomDatabase.warmUp( mAppData.mupen64plus_ini );
+            mergeCheats();
         }
         else
         {
@@ -224,6 +227,19 @@ public class SplashActivity extends Activity implements ExtractAssetsListener
         }
     }
     
+    @Override
+    public void onMergeCheatsFinished( MergeStats stats )
+    {
+        launchGalleryActivity();
+    }
+    
+    private void mergeCheats()
+    {
+        // The gallery is launched once the merged cheat file is ready
+        new MergeCheatsTask( mAppData.mupencheat_default, mUserPrefs.customCheats_txt,
+                mAppData.mupencheat_txt, this ).execute();
+    }
+    
     private void launchGalleryActivity( )
     {
         // Launch the activity, passing ROM path if it was provided externally
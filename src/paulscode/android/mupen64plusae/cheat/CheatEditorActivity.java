@@ -28,9 +28,12 @@ import java.util.Locale;
 import org.mupen64plusae.v3.alpha.R;
 
 import paulscode.android.mupen64plusae.Keys;
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
 import paulscode.android.mupen64plusae.cheat.CheatUtils.Cheat;
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.task.LoadCheatsTask;
+import paulscode.android.mupen64plusae.task.LoadCheatsTask.LoadCheatsListener;
 import paulscode.android.mupen64plusae.util.Prompt;
 import paulscode.android.mupen64plusae.util.Prompt.PromptTextListener;
 import paulscode.android.mupen64plusae.util.RomHeader;
@@ -56,7 +59,8 @@ import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
-public class CheatEditorActivity extends ListActivity implements View.OnClickListener, OnItemLongClickListener
+public class CheatEditorActivity extends ListActivity implements View.OnClickListener, OnItemLongClickListener,
+        LoadCheatsListener
 {
     private static class CheatListAdapter extends ArrayAdapter<Cheat>
     {
@@ -97,6 +101,7 @@ public class CheatEditorActivity extends ListActivity implements View.OnClickLis
     private AppData mAppData = null;
     private UserPrefs mUserPrefs = null;
     private RomHeader mRomHeader = null;
+    private boolean mIsLoaded = false;
     
     @Override
     protected void onCreate( Bundle savedInstanceState )
@@ -116,36 +121,71 @@ public class CheatEditorActivity extends ListActivity implements View.OnClickLis
         mRomHeader = new RomHeader( new File( romPath ) );
         
         setContentView( R.layout.cheat_editor );
-        reload( mRomHeader.crc );
         findViewById( R.id.imgBtnChtAdd ).setOnClickListener( this );
         findViewById( R.id.imgBtnChtEdit ).setOnClickListener( this );
         findViewById( R.id.imgBtnChtSave ).setOnClickListener( this );
         findViewById( R.id.imgBtnChtInfo ).setOnClickListener( this );
         getListView().setOnItemLongClickListener( this );
+        load( mRomHeader.crc );
     }
     
-    private void reload( String crc )
+    private void load( String crc )
     {
-        Log.v( "CheatEditorActivity", "building from CRC = " + crc );
-        
         if( crc == null )
             return;
         
+        // Compiling a stale cheat index is slow, so only look up the cheats here if it is current
+        CheatStore store = CheatStore.openIfCurrent( mAppData.mupencheat_default );
+        if( store != null )
+        {
+            reload( crc, store.getByCrc( crc ) );
+            return;
+        }
+        
+        // Nothing can be added or saved until the built-in cheats are at the top of the list
+        findViewById( R.id.imgBtnChtAdd ).setEnabled( false );
+        findViewById( R.id.imgBtnChtSave ).setEnabled( false );
+        new LoadCheatsTask( mAppData.mupencheat_default, crc, this ).execute();
+    }
+    
+    @Override
+    public void onLoadCheatsFinished( String crc, CheatSection section )
+    {
+        // Ignore results that arrive after the editor has gone
+        if( !isFinishing() )
+        {
+            findViewById( R.id.imgBtnChtAdd ).setEnabled( true );
+            findViewById( R.id.imgBtnChtSave ).setEnabled( true );
+            reload( crc, section );
+        }
+    }
+    
+    private void reload( String crc, CheatSection defaultSection )
+    {
+        Log.v( "CheatEditorActivity", "building from CRC = " + crc );
+        
         // Get the appropriate section of the config file, using CRC as the key
-        CheatFile mupencheat_default = new CheatFile( mAppData.mupencheat_default );
         CheatFile usrcheat_txt = new CheatFile( mUserPrefs.customCheats_txt );
-        cheats.addAll( CheatUtils.populate( crc, mupencheat_default, true, this ) );
+        cheats.addAll( CheatUtils.populate( crc, defaultSection, true, this ) );
         cheats.addAll( CheatUtils.populate( crc, usrcheat_txt, false, this ) );
         cheatListAdapter = new CheatListAdapter( this, cheats );
         setListAdapter( cheatListAdapter );
+        mIsLoaded = true;
     }
     
     private void save( String crc )
     {
+        // Saving a partial list would drop the built-in cheats from the merged file
+        if( !mIsLoaded )
+            return;
+        
         CheatFile usrcheat_txt = new CheatFile( mUserPrefs.customCheats_txt );
         CheatFile mupencheat_txt = new CheatFile( mAppData.mupencheat_txt );
         CheatUtils.save( crc, usrcheat_txt, cheats, mRomHeader, this, false );
         CheatUtils.save( crc, mupencheat_txt, cheats, mRomHeader, this, true );
+        
+        // The play menu reads the cheats through the index, which the save has made stale
+        CheatStore.prepareInBackground( mAppData.mupencheat_txt );
     }
     
     private boolean isHexNumber( String num )
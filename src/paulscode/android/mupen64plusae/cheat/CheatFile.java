@@ -22,15 +22,28 @@ package paulscode.android.mupen64plusae.cheat;
 
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
 import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -76,16 +89,19 @@ public class CheatFile
     /** The name we use for the untitled section (preamble) of the cheat file. */
     public static final String NO_KEY = "[<sectionless!>]";
     
-    /** The regular expression matcher for a cheat code. */
-    private static final Matcher CODE_MATCHER = Pattern.compile(
-            "^  ([0-9a-fA-F]{8}) ([0-9a-fA-F]{4}|[\\?]{4} )(.*)" ).matcher( "" );
+    /**
+     * The regular expression for a cheat code. Patterns are thread-safe, but their matchers are
+     * not, so each section creates its own matchers when it is parsed.
+     */
+    private static final Pattern CODE_PATTERN = Pattern.compile(
+            "^  ([0-9a-fA-F]{8}) ([0-9a-fA-F]{4}|[\\?]{4} )(.*)" );
     
     /**
-     * The regular expression matcher for a single cheat option. Inspired by
+     * The regular expression for a single cheat option. Inspired by
      * http://stackoverflow.com/a/5696141/254218
      */
-    private static final Matcher OPTION_MATCHER = Pattern.compile(
-            "([0-9a-fA-F]{4}):\"([^\\\\\"]*+(?:\\\\\"[^\\\\\"]*+)*+)\"" ).matcher( "" );
+    private static final Pattern OPTION_PATTERN = Pattern.compile(
+            "([0-9a-fA-F]{4}):\"([^\\\\\"]*+(?:\\\\\"[^\\\\\"]*+)*+)\"" );
     
     /** Path of the cheat file. */
     private final String mFilename;
@@ -93,6 +109,24 @@ public class CheatFile
     /** All cheat sections in this cheat file, in correct order. */
     private final LinkedHashMap<String, CheatSection> mSections;
     
+    /** The first cheat section for each ROM CRC, keyed by {@link #toCrcKey(int, int)}. */
+    private final HashMap<Long, CheatSection> mCrcIndex = new HashMap<Long, CheatSection>();
+    
+    /** The byte range (offset, length) of each section in the file as last loaded or saved. */
+    private final HashMap<CheatSection, long[]> mSourceRanges = new HashMap<CheatSection, long[]>();
+    
+    /** The length of the file as last loaded or saved, used to validate {@link #mSourceRanges}. */
+    private long mSourceLength = -1;
+    
+    /** The modification time of the file as last loaded or saved. */
+    private long mSourceModified = -1;
+    
+    /** Whether sections have been added or removed since the file was loaded or last saved. */
+    private boolean mDirty = false;
+    
+    /** The number of bytes re-serialized by the last call to {@link #save()}. */
+    private long mBytesSerialized = 0;
+    
     /**
      * Constructs a {@link CheatFile} object and reads the data from disk into memory.
      * 
@@ -122,23 +156,43 @@ public class CheatFile
         
         // Free any previously loaded data
         clear();
+        mDirty = false;
         
         BufferedReader reader = null;
         try
         {
+            File file = new File( mFilename );
+            long length = file.length();
+            long lastModified = file.lastModified();
             reader = new BufferedReader( new FileReader( mFilename ) );
             
             // Read the 'sectionless' preamble section from disk
+            ArrayList<CheatSection> loaded = new ArrayList<CheatSection>();
             String key = NO_KEY;
             CheatSection section = new CheatSection( key, reader );
-            mSections.put( key, section );
+            put( section );
+            loaded.add( section );
             
             // Read the remaining sections from disk
             while( !TextUtils.isEmpty( section.nextKey ) )
             {
                 key = section.nextKey;
                 section = new CheatSection( key, reader );
-                mSections.put( key, section );
+                put( section );
+                loaded.add( section );
+            }
+            
+            // Remember where each section lies in the file, so unchanged sections can be copied
+            long[] offsets = findSectionOffsets( file );
+            if( offsets != null && offsets.length == loaded.size() )
+            {
+                for( int i = 0; i < offsets.length; i++ )
+                {
+                    long end = i + 1 < offsets.length ? offsets[i + 1] : length;
+                    mSourceRanges.put( loaded.get( i ), new long[] { offsets[i], end - offsets[i] } );
+                }
+                mSourceLength = length;
+                mSourceModified = lastModified;
             }
         }
         catch( FileNotFoundException e )
@@ -168,13 +222,19 @@ public class CheatFile
     }
     
     /**
-     * Writes the cheat data from memory back to disk.
+     * Writes the cheat data from memory back to disk, if anything has changed since it was loaded
+     * or last saved. Sections that have not been modified are copied byte-for-byte from the file
+     * on disk; only modified sections are re-serialized. The data is written to a temporary file
+     * that then replaces the cheat file, so the cheat file is never left half-written.
      * 
      * @return true if successful
      * @see #reload()
+     * @see #getBytesSerialized()
      */
     public boolean save()
     {
+        mBytesSerialized = 0;
+        
         // Make sure a filename was specified in the constructor
         if( TextUtils.isEmpty( mFilename ) )
         {
@@ -182,20 +242,71 @@ public class CheatFile
             return false;
         }
         
+        // Nothing to do if the file is already up to date
+        File file = new File( mFilename );
+        if( !isDirty() && file.exists() )
+            return true;
+        
+        // Sections can only be copied if the file has not changed since it was read
+        boolean canCopy = file.length() == mSourceLength && file.lastModified() == mSourceModified;
+        
+        // Write data to a temporary file in the same directory, then swap it in
+        HashMap<CheatSection, long[]> ranges = new HashMap<CheatSection, long[]>();
+        File tempFile = null;
+        FileInputStream source = null;
         Writer writer = null;
         try
         {
-            writer = new BufferedWriter( new FileWriter( mFilename ) );
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getAbsoluteFile().getParentFile() );
+            FileOutputStream out = new FileOutputStream( tempFile );
+            FileChannel outChannel = out.getChannel();
+            writer = new BufferedWriter( new OutputStreamWriter( out ) );
+            FileChannel sourceChannel = null;
+            if( canCopy && !mSourceRanges.isEmpty() )
+            {
+                source = new FileInputStream( file );
+                sourceChannel = source.getChannel();
+            }
             
             // Write each section to disk
             for( CheatSection section : mSections.values() )
             {
-                section.save( writer );
+                writer.flush();
+                long start = outChannel.position();
+                long[] range = section.dirty || sourceChannel == null ? null : mSourceRanges.get( section );
+                if( range != null )
+                {
+                    copy( sourceChannel, range[0], range[1], outChannel );
+                    
+                    // The last line of the file may lack a line break
+                    if( range[1] > 0 && range[0] + range[1] == mSourceLength
+                            && !endsWithLineBreak( sourceChannel, range[0] + range[1] ) )
+                        writer.append( '\n' );
+                }
+                else
+                {
+                    section.save( writer );
+                }
+                writer.flush();
+                long end = outChannel.position();
+                ranges.put( section, new long[] { start, end - start } );
+                if( range == null )
+                    mBytesSerialized += end - start;
             }
+            
+            // Reach the disk before the rename, so a crash cannot leave an empty file in its place
+            out.getFD().sync();
+            writer.close();
+            writer = null;
+            
+            if( !tempFile.renameTo( file ) )
+                throw new IOException( "Could not replace file with " + tempFile.getName() );
+            tempFile = null;
         }
         catch( IOException e )
         {
             Log.e( "CheatFile", "Error saving to " + mFilename + ": " + e.getMessage() );
+            mBytesSerialized = 0;
             return false;
         }
         finally
@@ -210,10 +321,60 @@ public class CheatFile
                 {
                 }
             }
+            if( source != null )
+            {
+                try
+                {
+                    source.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( tempFile != null )
+                tempFile.delete();
         }
+        
+        // Success, the saved file is the new source of unmodified sections
+        mSourceRanges.clear();
+        mSourceRanges.putAll( ranges );
+        mSourceLength = file.length();
+        mSourceModified = file.lastModified();
+        mDirty = false;
+        for( CheatSection section : mSections.values() )
+            section.dirty = false;
         return true;
     }
     
+    /**
+     * Returns the number of bytes re-serialized by the last call to {@link #save()}, i.e. the size
+     * of the modified sections. Unmodified sections are copied and not counted.
+     * 
+     * @return the number of bytes serialized, or zero if the last save had nothing to write or failed
+     */
+    public long getBytesSerialized()
+    {
+        return mBytesSerialized;
+    }
+    
+    /**
+     * Determines whether the data has changed since the file was loaded or last saved.
+     * 
+     * @return true if there are unsaved changes
+     */
+    public boolean isDirty()
+    {
+        if( mDirty )
+            return true;
+        
+        for( CheatSection section : mSections.values() )
+        {
+            if( section.dirty )
+                return true;
+        }
+        return false;
+    }
+    
     /**
      * Returns the set of keys contained in this cheat file.
      * 
@@ -236,9 +397,39 @@ public class CheatFile
         return mSections.get( key );
     }
     
+    /**
+     * Returns the first cheat section for the specified ROM CRC, regardless of its country code.
+     * This is a constant-time lookup.
+     * 
+     * @param crc1 the first word of the ROM CRC
+     * @param crc2 the second word of the ROM CRC
+     * 
+     * @return the first cheat section for the given CRC, or null if not found
+     */
+    public CheatSection getByCrc( int crc1, int crc2 )
+    {
+        return mCrcIndex.get( toCrcKey( crc1, crc2 ) );
+    }
+    
+    /**
+     * Returns the first cheat section for the specified ROM CRC, regardless of its country code.
+     * This is a constant-time lookup.
+     * 
+     * @param crc the ROM CRC as two hexadecimal words separated by a space or dash (ex: 01A23456
+     *            789012B3); case is ignored, as is anything following the CRC
+     * 
+     * @return the first cheat section for the given CRC, or null if not found or the CRC is malformed
+     */
+    public CheatSection getByCrc( String crc )
+    {
+        Long crcKey = parseCrcKey( crc );
+        return crcKey == null ? null : mCrcIndex.get( crcKey );
+    }
+    
     /**
      * Returns the first cheat section whose key matches the specified regular expression (not
-     * necessarily the only match).
+     * necessarily the only match). Scans every section; use {@link #getByCrc(String)} to look up a
+     * ROM.
      * 
      * @param pattern a regular expression to match the key to
      * 
@@ -254,6 +445,68 @@ public class CheatFile
         return null;
     }
     
+    /**
+     * Parses every cheat section now, rather than on first access, spreading the sections over
+     * several threads. Useful before operations that visit every section, such as validating the
+     * whole file. May be slow; do not call on the UI thread.
+     * 
+     * @param threadCount the number of threads to parse with; 1 parses on the calling thread
+     * 
+     * @return true if every section was parsed, false if interrupted or a section failed to parse
+     */
+    public boolean loadAll( int threadCount )
+    {
+        if( threadCount < 1 )
+            throw new IllegalArgumentException( "Thread count must be positive" );
+        
+        final ArrayList<CheatSection> sections = new ArrayList<CheatSection>( mSections.values() );
+        if( threadCount == 1 )
+        {
+            for( CheatSection section : sections )
+                section.lazyLoad();
+            return true;
+        }
+        
+        // Several small batches per thread, so that a few large sections don't leave threads idle
+        int batchCount = Math.min( sections.size(), threadCount * 4 );
+        ExecutorService executor = Executors.newFixedThreadPool( threadCount );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for( int i = 0; i < batchCount; i++ )
+            {
+                final int first = sections.size() * i / batchCount;
+                final int last = sections.size() * ( i + 1 ) / batchCount;
+                futures.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        for( int j = first; j < last; j++ )
+                            sections.get( j ).lazyLoad();
+                    }
+                } ) );
+            }
+            for( Future<?> future : futures )
+                future.get();
+            return true;
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        catch( ExecutionException e )
+        {
+            Log.e( "CheatFile", "Could not parse " + mFilename + ": " + e.getCause() );
+            return false;
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+    }
+    
     /**
      * Adds a cheat section to memory. If a cheat section with that key already exists in memory, it
      * will be overwritten. Note that the operation is not actually persisted to disk until the
@@ -265,7 +518,8 @@ public class CheatFile
     {
         if( section != null )
         {
-            mSections.put( section.key, section );
+            put( section );
+            mDirty = true;
         }
     }
     
@@ -276,6 +530,148 @@ public class CheatFile
     public void clear()
     {
         mSections.clear();
+        mCrcIndex.clear();
+        mSourceRanges.clear();
+        mDirty = true;
+    }
+    
+    /**
+     * Adds a cheat section to memory, keeping the CRC index pointing at the first section of each
+     * ROM in file order.
+     * 
+     * @param section the cheat section to add/replace in memory
+     */
+    private void put( CheatSection section )
+    {
+        CheatSection previous = mSections.put( section.key, section );
+        Long crcKey = parseCrcKey( section.key );
+        if( crcKey != null )
+        {
+            // A replaced section keeps its place in the file, so it keeps its place in the index
+            CheatSection indexed = mCrcIndex.get( crcKey );
+            if( indexed == null || indexed == previous )
+                mCrcIndex.put( crcKey, section );
+        }
+    }
+    
+    private static Long toCrcKey( int crc1, int crc2 )
+    {
+        return Long.valueOf( ( (long) crc1 << 32 ) | ( crc2 & 0xffffffffL ) );
+    }
+    
+    /**
+     * Parses the CRC at the start of a section key or ROM CRC string.
+     * 
+     * @param crc a string beginning with two 8-digit hexadecimal words separated by a space or dash
+     * 
+     * @return the CRC index key, or null if the string does not begin with a CRC
+     */
+    static Long parseCrcKey( String crc )
+    {
+        if( crc == null || crc.length() < 17 || ( crc.charAt( 8 ) != '-' && crc.charAt( 8 ) != ' ' ) )
+            return null;
+        
+        long crc1 = parseHexWord( crc, 0 );
+        long crc2 = parseHexWord( crc, 9 );
+        if( crc1 < 0 || crc2 < 0 )
+            return null;
+        return toCrcKey( (int) crc1, (int) crc2 );
+    }
+    
+    private static long parseHexWord( String text, int start )
+    {
+        long word = 0;
+        for( int i = start; i < start + 8; i++ )
+        {
+            int digit = Character.digit( text.charAt( i ), 16 );
+            if( digit < 0 )
+                return -1;
+            word = ( word << 4 ) | digit;
+        }
+        return word;
+    }
+    
+    /**
+     * Finds where each section begins in a cheat file, i.e. the start of the file (the preamble)
+     * and every line beginning with "crc ".
+     * 
+     * @param file the cheat file
+     * 
+     * @return the byte offset of each section, or null if the file could not be read
+     */
+    private static long[] findSectionOffsets( File file )
+    {
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( file );
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer text = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            
+            ArrayList<Long> offsets = new ArrayList<Long>();
+            offsets.add( 0L );
+            int limit = text.capacity();
+            for( int lineStart = 0; lineStart < limit; )
+            {
+                if( lineStart + 4 <= limit && text.get( lineStart ) == 'c'
+                        && text.get( lineStart + 1 ) == 'r' && text.get( lineStart + 2 ) == 'c'
+                        && text.get( lineStart + 3 ) == ' ' )
+                    offsets.add( (long) lineStart );
+                
+                // Advance past the next line break (\n, \r, or \r\n), as BufferedReader does
+                while( lineStart < limit && text.get( lineStart ) != '\n' && text.get( lineStart ) != '\r' )
+                    lineStart++;
+                if( lineStart < limit && text.get( lineStart ) == '\r' )
+                    lineStart++;
+                if( lineStart < limit && text.get( lineStart ) == '\n' )
+                    lineStart++;
+            }
+            
+            long[] result = new long[offsets.size()];
+            for( int i = 0; i < result.length; i++ )
+                result[i] = offsets.get( i );
+            return result;
+        }
+        catch( IOException e )
+        {
+            Log.w( "CheatFile", "Could not index sections of " + file.getPath() );
+            return null;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static void copy( FileChannel source, long offset, long length, FileChannel target )
+            throws IOException
+    {
+        // transferTo may copy fewer bytes than requested
+        while( length > 0 )
+        {
+            long copied = source.transferTo( offset, length, target );
+            if( copied <= 0 )
+                throw new IOException( "Could not copy section at offset " + offset );
+            offset += copied;
+            length -= copied;
+        }
+    }
+    
+    private static boolean endsWithLineBreak( FileChannel source, long end ) throws IOException
+    {
+        ByteBuffer last = ByteBuffer.allocate( 1 );
+        if( source.read( last, end - 1 ) != 1 )
+            return false;
+        return last.get( 0 ) == '\n' || last.get( 0 ) == '\r';
     }
     
     /**
@@ -303,6 +699,12 @@ public class CheatFile
         /** The key of the next cheat section, or null if no more sections are left. */
         private String nextKey = null;
         
+        /**
+         * Whether the section has changed since it was read or saved. Cheat blocks in the section,
+         * and their codes, set this when they change.
+         */
+        private boolean dirty = false;
+        
         /**
          * Constructs an empty {@link CheatSection} object.
          * 
@@ -317,6 +719,7 @@ public class CheatFile
             this.blocks = new LinkedList<CheatBlock>();
             this.elements = new LinkedList<CheatElement>();
             this.fullLines = new LinkedList<String>();
+            this.dirty = true;
             
             // Generate the header lines for this section
             if( !TextUtils.isEmpty( crc ) && !crc.equals( NO_KEY ) )
@@ -333,7 +736,7 @@ public class CheatFile
          * @param reader the object providing disk read access
          * @throws IOException if a read error occurs
          */
-        private CheatSection( String key, BufferedReader reader ) throws IOException
+        CheatSection( String key, BufferedReader reader ) throws IOException
         {
             this.key = key;
             this.blocks = new LinkedList<CheatBlock>();
@@ -362,10 +765,16 @@ public class CheatFile
         }
         
         /**
-         * Populates the cheat section fields using the disk data cached in the constructor.
+         * Populates the cheat section fields using the disk data cached in the constructor. Safe to
+         * call from several threads at once.
          */
-        private void lazyLoad()
+        private synchronized void lazyLoad()
         {
+            if( fullLines.isEmpty() )
+                return;
+            
+            Matcher codeMatcher = CODE_PATTERN.matcher( "" );
+            Matcher optionMatcher = OPTION_PATTERN.matcher( "" );
             Iterator<String> iterator = fullLines.iterator();
             while( iterator.hasNext() )
             {
@@ -387,7 +796,9 @@ public class CheatFile
                     String name = fullLine.substring( 4 );
                     while( !TextUtils.isEmpty( name ) )
                     {
-                        CheatBlock block = new CheatBlock( name, iterator, elements );
+                        CheatBlock block = new CheatBlock( name, iterator, elements, codeMatcher,
+                                optionMatcher );
+                        block.section = this;
                         elements.add( block );
                         blocks.add( block );
                         name = block.nextName;
@@ -410,7 +821,7 @@ public class CheatFile
          * 
          * @throws IOException if a write error occurs
          */
-        private void save( Writer writer ) throws IOException
+        void save( Writer writer ) throws IOException
         {
             for( CheatElement element : elements )
             {
@@ -471,6 +882,8 @@ public class CheatFile
             lazyLoad();
             boolean success = blocks.add( block );
             success &= elements.add( block );
+            block.section = this;
+            dirty = true;
             return success;
         }
         
@@ -508,6 +921,8 @@ public class CheatFile
             {
                 return false;
             }
+            block.section = this;
+            dirty = true;
             return true;
         }
         
@@ -522,7 +937,7 @@ public class CheatFile
             lazyLoad();
             try
             {
-                blocks.remove( index );
+                blocks.remove( index ).section = null;
                 int i = 0;
                 for( CheatElement element : elements )
                 {
@@ -541,6 +956,7 @@ public class CheatFile
             {
                 return false;
             }
+            dirty = true;
             return true;
         }
         
@@ -551,7 +967,10 @@ public class CheatFile
         public void clear()
         {
             lazyLoad();
+            for( CheatBlock block : blocks )
+                block.section = null;
             blocks.clear();
+            dirty = true;
             Iterator<CheatElement> iterator = elements.iterator();
             CheatElement element;
             while( iterator.hasNext() )
@@ -601,9 +1020,8 @@ public class CheatFile
         /** The human-readable name of the cheat. */
         public final String name;
         
-        // TODO: Make this final
         /** The human-readable description of the cheat. */
-        public String description = null;
+        private String description = null;
         
         // TODO: Make this final
         /** The name of the next cheat. */
@@ -612,6 +1030,9 @@ public class CheatFile
         /** The cheat codes in this cheat block. */
         private final LinkedList<CheatCode> codes;
         
+        /** The section this cheat block belongs to, or null if it has not been added to one. */
+        private CheatSection section = null;
+        
         /**
          * Constructs an empty {@CheatBlock} object.
          * 
@@ -633,9 +1054,11 @@ public class CheatFile
          * @param iterator iterator for the raw lines of text in this cheat block
          * @param elements reference to the list of cheat lines in the cheat section (to allow
          *            recursion)
+         * @param codeMatcher the matcher to use for cheat code lines
+         * @param optionMatcher the matcher to use for cheat options
          */
         private CheatBlock( String name, Iterator<String> iterator,
-                LinkedList<CheatElement> elements )
+                LinkedList<CheatElement> elements, Matcher codeMatcher, Matcher optionMatcher )
         {
             this.name = name;
             this.codes = new LinkedList<CheatCode>();
@@ -664,11 +1087,11 @@ public class CheatFile
                     nextName = fullLine.substring( 4 );
                     return;
                 }
-                else if( CODE_MATCHER.reset( fullLine ).matches() )
+                else if( codeMatcher.reset( fullLine ).matches() )
                 {
                     // Cheat code
-                    String address = CODE_MATCHER.group( 1 );
-                    String value = CODE_MATCHER.group( 2 );
+                    String address = codeMatcher.group( 1 );
+                    String value = codeMatcher.group( 2 );
                     
                     // Cheat options
                     LinkedList<CheatOption> options = null;
@@ -676,14 +1099,15 @@ public class CheatFile
                     {
                         // Cheat options
                         options = new LinkedList<CheatOption>();
-                        OPTION_MATCHER.reset( CODE_MATCHER.group( 3 ) );
-                        while( OPTION_MATCHER.find() )
+                        optionMatcher.reset( codeMatcher.group( 3 ) );
+                        while( optionMatcher.find() )
                         {
-                            options.add( new CheatOption( OPTION_MATCHER.group( 1 ), OPTION_MATCHER
+                            options.add( new CheatOption( optionMatcher.group( 1 ), optionMatcher
                                     .group( 2 ) ) );
                         }
                     }
                     CheatCode code = new CheatCode( address, value, options );
+                    code.block = this;
                     codes.add( code );
                 }
                 else
@@ -728,6 +1152,27 @@ public class CheatFile
             }
         }
         
+        /**
+         * Returns the human-readable description of this cheat block.
+         * 
+         * @return the description, or null if there is none
+         */
+        public String getDescription()
+        {
+            return description;
+        }
+        
+        /**
+         * Sets the human-readable description of this cheat block.
+         * 
+         * @param description the description, or null for none
+         */
+        public void setDescription( String description )
+        {
+            this.description = description;
+            markDirty();
+        }
+        
         /**
          * Returns the number of cheat codes in this cheat block.
          * 
@@ -767,6 +1212,8 @@ public class CheatFile
             if( code == null )
                 return false;
             
+            code.block = this;
+            markDirty();
             return codes.add( code );
         }
         
@@ -790,6 +1237,8 @@ public class CheatFile
             {
                 return false;
             }
+            code.block = this;
+            markDirty();
             return true;
         }
         
@@ -803,12 +1252,13 @@ public class CheatFile
         {
             try
             {
-                codes.remove( index );
+                codes.remove( index ).block = null;
             }
             catch( IndexOutOfBoundsException e )
             {
                 return false;
             }
+            markDirty();
             return true;
         }
         
@@ -817,7 +1267,20 @@ public class CheatFile
          */
         public void clear()
         {
+            for( CheatCode code : codes )
+                code.block = null;
             codes.clear();
+            markDirty();
+        }
+        
+        /**
+         * Marks the section this cheat block belongs to as changed, so that it is written out by
+         * the next save.
+         */
+        private void markDirty()
+        {
+            if( section != null )
+                section.dirty = true;
         }
     }
     
@@ -833,9 +1296,15 @@ public class CheatFile
         public final String code;
         
         // TODO: Make this private
-        /** Options associated with this cheat code (may be empty). */
+        /**
+         * Options associated with this cheat code (may be empty). Change them through the methods
+         * of this class, so that the change is saved.
+         */
         public final LinkedList<CheatOption> options;
         
+        /** The cheat block this cheat code belongs to, or null if it has not been added to one. */
+        private CheatBlock block = null;
+        
         /**
          * Constructs a {@link CheatCode} object.
          * 
@@ -879,6 +1348,7 @@ public class CheatFile
             if( option == null )
                 return false;
             
+            markDirty();
             return options.add( option );
         }
         
@@ -902,6 +1372,7 @@ public class CheatFile
             {
                 return false;
             }
+            markDirty();
             return true;
         }
         
@@ -921,6 +1392,7 @@ public class CheatFile
             {
                 return false;
             }
+            markDirty();
             return true;
         }
         
@@ -930,6 +1402,13 @@ public class CheatFile
         public void clear()
         {
             options.clear();
+            markDirty();
+        }
+        
+        private void markDirty()
+        {
+            if( block != null )
+                block.markDirty();
         }
     }
     
@@ -0,0 +1,474 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.cheat;
+
+import java.io.BufferedReader;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
+import android.util.Log;
+
+/**
+ * A compiled, memory-mapped directory of the ROM sections in a cheat file, so that the cheats for
+ * one ROM can be loaded without reading the rest of the file.
+ * <p>
+ * The cheat file itself is memory-mapped too. Looking up a ROM decodes and parses only the bytes
+ * of its section, into the same {@link CheatSection} a {@link CheatFile} would produce.
+ * <p>
+ * Index file layout (all integers big-endian):
+ * <ul>
+ * <li>Header: magic, version, source length, source last-modified time, and section count.
+ * <li>Directory: (crc1, crc2, offset, length) records giving the byte range of each section in the
+ * cheat file, sorted by CRC and in file order within each CRC. As in {@link CheatFile}, a section
+ * whose key repeats an earlier one replaces it.
+ * </ul>
+ * The source length and last-modified time are checked on open, so a stale index is never used.
+ */
+public final class CheatStore
+{
+    private static final int MAGIC = 0x4D363453; // "M64S"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 28;
+    private static final int RECORD_SIZE = 16;
+    
+    private final MappedByteBuffer mIndex;
+    private final MappedByteBuffer mText;
+    private final int mCount;
+    
+    private CheatStore( MappedByteBuffer index, MappedByteBuffer text )
+    {
+        mIndex = index;
+        mText = text;
+        mCount = index.getInt( 24 );
+    }
+    
+    /**
+     * Gets the path of the index compiled from a given cheat file.
+     * 
+     * @param cheatPath The path of the cheat file.
+     * 
+     * @return The path of the index file.
+     */
+    public static String getIndexPath( String cheatPath )
+    {
+        return cheatPath + ".idx";
+    }
+    
+    /**
+     * Maps a cheat file and its index into memory, compiling the index first if it is missing or
+     * older than the cheat file.
+     * 
+     * @param cheatPath The path of the cheat file.
+     * 
+     * @return The store, or null if the cheat file is missing or the index could not be written.
+     */
+    public static CheatStore open( String cheatPath )
+    {
+        File source = new File( cheatPath );
+        if( !source.exists() )
+            return null;
+        
+        MappedByteBuffer index = mapIndex( source );
+        if( index == null && compile( cheatPath ) )
+            index = mapIndex( source );
+        if( index == null )
+            return null;
+        
+        MappedByteBuffer text = map( source );
+        return text == null ? null : new CheatStore( index, text );
+    }
+    
+    /**
+     * Maps a cheat file and its index into memory, but only if the index is already up to date.
+     * Never compiles, so it is safe to call on the UI thread.
+     * 
+     * @param cheatPath The path of the cheat file.
+     * 
+     * @return The store, or null if the cheat file is missing or its index is missing or stale.
+     */
+    public static CheatStore openIfCurrent( String cheatPath )
+    {
+        File source = new File( cheatPath );
+        if( !source.exists() )
+            return null;
+        
+        MappedByteBuffer index = mapIndex( source );
+        MappedByteBuffer text = index == null ? null : map( source );
+        return text == null ? null : new CheatStore( index, text );
+    }
+    
+    /**
+     * Compiles the index for a cheat file on a background thread if it is missing or older than
+     * the cheat file, e.g. after the cheat file has been edited.
+     * 
+     * @param cheatPath The path of the cheat file.
+     */
+    public static void prepareInBackground( final String cheatPath )
+    {
+        new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                prepare( cheatPath );
+            }
+        }, "CheatStorePrepare" ).start();
+    }
+    
+    /**
+     * Compiles the index for a cheat file if it is missing or older than the cheat file. May be
+     * slow; do not call on the UI thread.
+     * 
+     * @param cheatPath The path of the cheat file.
+     * 
+     * @return True if an up-to-date index is available.
+     */
+    public static boolean prepare( String cheatPath )
+    {
+        File source = new File( cheatPath );
+        return source.exists() && ( mapIndex( source ) != null || compile( cheatPath ) );
+    }
+    
+    /**
+     * Looks up the cheats for a ROM, through the store if possible, or else by parsing the whole
+     * cheat file.
+     * 
+     * @param cheatPath The path of the cheat file.
+     * @param crc The ROM CRC, formatted as in the ROM header (e.g. "3B941695 F90A5EEB").
+     * 
+     * @return The first cheat section for the ROM, or null if there is none.
+     */
+    public static CheatSection lookup( String cheatPath, String crc )
+    {
+        CheatStore store = open( cheatPath );
+        if( store != null )
+            return store.getByCrc( crc );
+        
+        Log.w( "CheatStore", "Index unavailable, parsing all of " + cheatPath );
+        return new CheatFile( cheatPath ).getByCrc( crc );
+    }
+    
+    /**
+     * Compiles the index for a cheat file and writes it next to the cheat file. Only the section
+     * header lines are examined.
+     * 
+     * @param cheatPath The path of the cheat file.
+     * 
+     * @return True if the index was written.
+     */
+    public static boolean compile( String cheatPath )
+    {
+        File source = new File( cheatPath );
+        File indexFile = new File( getIndexPath( cheatPath ) );
+        long length = source.length();
+        long lastModified = source.lastModified();
+        MappedByteBuffer text = map( source );
+        if( text == null )
+            return false;
+        
+        // Find the start of every section, i.e. every line beginning with "crc "
+        List<long[]> records = new ArrayList<long[]>();
+        Map<String, long[]> recordsByHeader = new HashMap<String, long[]>();
+        int limit = text.capacity();
+        long[] open = null;
+        for( int lineStart = 0; lineStart < limit; )
+        {
+            int lineEnd = lineStart;
+            while( lineEnd < limit && text.get( lineEnd ) != '\n' && text.get( lineEnd ) != '\r' )
+                lineEnd++;
+            
+            if( startsWithCrc( text, lineStart, lineEnd ) )
+            {
+                if( open != null )
+                    open[3] = lineStart - open[2];
+                open = null;
+                
+                // Sections with a malformed CRC still end the previous section, but are not indexed
+                long crc1 = parseHexWord( text, lineStart + 4, lineEnd );
+                long crc2 = parseHexWord( text, lineStart + 13, lineEnd );
+                if( crc1 >= 0 && crc2 >= 0 && isSeparator( text, lineStart + 12, lineEnd ) )
+                {
+                    // As in CheatFile, a repeated key replaces the earlier section but keeps its place
+                    String header = decode( text, lineStart, lineEnd - lineStart );
+                    open = recordsByHeader.get( header );
+                    if( open == null )
+                    {
+                        open = new long[4];
+                        records.add( open );
+                        recordsByHeader.put( header, open );
+                    }
+                    open[0] = crc1;
+                    open[1] = crc2;
+                    open[2] = lineStart;
+                }
+            }
+            
+            // Advance past the line break (\n, \r, or \r\n)
+            lineStart = lineEnd;
+            if( lineStart < limit && text.get( lineStart ) == '\r' )
+                lineStart++;
+            if( lineStart < limit && text.get( lineStart ) == '\n' )
+                lineStart++;
+        }
+        if( open != null )
+            open[3] = limit - open[2];
+        
+        // Sort by CRC, keeping file order among equal CRCs (sort is stable)
+        Collections.sort( records, new Comparator<long[]>()
+        {
+            @Override
+            public int compare( long[] lhs, long[] rhs )
+            {
+                if( lhs[0] != rhs[0] )
+                    return lhs[0] < rhs[0] ? -1 : 1;
+                if( lhs[1] != rhs[1] )
+                    return lhs[1] < rhs[1] ? -1 : 1;
+                return 0;
+            }
+        } );
+        
+        // Write everything to a temporary file, then swap it in
+        File tempFile = null;
+        try
+        {
+            // Unique name, in case another thread is compiling the same index
+            tempFile = File.createTempFile( indexFile.getName(), ".tmp", indexFile.getAbsoluteFile().getParentFile() );
+            DataOutputStream out = new DataOutputStream( new FileOutputStream( tempFile ) );
+            try
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeLong( length );
+                out.writeLong( lastModified );
+                out.writeInt( records.size() );
+                for( long[] record : records )
+                {
+                    out.writeInt( (int) record[0] );
+                    out.writeInt( (int) record[1] );
+                    out.writeInt( (int) record[2] );
+                    out.writeInt( (int) record[3] );
+                }
+            }
+            finally
+            {
+                out.close();
+            }
+            if( !tempFile.renameTo( indexFile ) )
+                throw new IOException( "Could not rename " + tempFile.getPath() );
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.w( "CheatStore", "Could not write index file " + indexFile.getPath() );
+            if( tempFile != null )
+                tempFile.delete();
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the number of ROM sections in the store.
+     * 
+     * @return The number of sections.
+     */
+    public int size()
+    {
+        return mCount;
+    }
+    
+    /**
+     * Gets the combined size of the memory-mapped index and cheat file.
+     * 
+     * @return The size in bytes.
+     */
+    public int getMappedSize()
+    {
+        return mIndex.capacity() + mText.capacity();
+    }
+    
+    /**
+     * Loads the first cheat section for a ROM, parsing only that section.
+     * 
+     * @param crc1 The first word of the ROM CRC.
+     * @param crc2 The second word of the ROM CRC.
+     * 
+     * @return The cheat section, or null if not found.
+     */
+    public CheatSection getByCrc( int crc1, int crc2 )
+    {
+        long key1 = crc1 & 0xFFFFFFFFL;
+        long key2 = crc2 & 0xFFFFFFFFL;
+        
+        // Find the first record with this CRC
+        int low = 0;
+        int high = mCount;
+        while( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if( compareRecord( mid, key1, key2 ) < 0 )
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        if( low == mCount || compareRecord( low, key1, key2 ) != 0 )
+            return null;
+        
+        int offset = HEADER_SIZE + low * RECORD_SIZE;
+        return readSection( mIndex.getInt( offset + 8 ), mIndex.getInt( offset + 12 ) );
+    }
+    
+    /**
+     * Loads the first cheat section for a ROM, parsing only that section.
+     * 
+     * @param crc The ROM CRC, formatted as in the ROM header (e.g. "3B941695 F90A5EEB").
+     * 
+     * @return The cheat section, or null if not found or the CRC is malformed.
+     */
+    public CheatSection getByCrc( String crc )
+    {
+        Long crcKey = CheatFile.parseCrcKey( crc );
+        if( crcKey == null )
+            return null;
+        return getByCrc( (int) ( crcKey >>> 32 ), (int) crcKey.longValue() );
+    }
+    
+    private int compareRecord( int record, long key1, long key2 )
+    {
+        int offset = HEADER_SIZE + record * RECORD_SIZE;
+        long crc1 = mIndex.getInt( offset ) & 0xFFFFFFFFL;
+        long crc2 = mIndex.getInt( offset + 4 ) & 0xFFFFFFFFL;
+        if( crc1 != key1 )
+            return crc1 < key1 ? -1 : 1;
+        if( crc2 != key2 )
+            return crc2 < key2 ? -1 : 1;
+        return 0;
+    }
+    
+    private CheatSection readSection( int offset, int length )
+    {
+        // Decode as CheatFile does, then parse exactly as it would
+        BufferedReader reader = new BufferedReader( new StringReader( decode( mText, offset, length ) ) );
+        try
+        {
+            String header = reader.readLine();
+            return new CheatSection( header.substring( 4 ), reader );
+        }
+        catch( IOException e )
+        {
+            // Reading from a string does not fail
+            throw new RuntimeException( e );
+        }
+    }
+    
+    private static MappedByteBuffer mapIndex( File source )
+    {
+        File indexFile = new File( getIndexPath( source.getPath() ) );
+        if( !indexFile.exists() )
+            return null;
+        
+        MappedByteBuffer index = map( indexFile );
+        if( index == null || index.capacity() < HEADER_SIZE || index.getInt( 0 ) != MAGIC
+                || index.getInt( 4 ) != VERSION || index.getLong( 8 ) != source.length()
+                || index.getLong( 16 ) != source.lastModified()
+                || index.capacity() != HEADER_SIZE + index.getInt( 24 ) * RECORD_SIZE )
+            return null;
+        return index;
+    }
+    
+    private static MappedByteBuffer map( File file )
+    {
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( file );
+            FileChannel channel = stream.getChannel();
+            return channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+        }
+        catch( IOException e )
+        {
+            Log.w( "CheatStore", "Could not map file " + file.getPath() );
+            return null;
+        }
+        finally
+        {
+            // The mapping remains valid after the channel is closed
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static String decode( MappedByteBuffer buffer, int offset, int length )
+    {
+        // Absolute reads only, so concurrent lookups don't disturb each other
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; i++ )
+            bytes[i] = buffer.get( offset + i );
+        return new String( bytes );
+    }
+    
+    private static boolean startsWithCrc( MappedByteBuffer text, int offset, int limit )
+    {
+        return offset + 4 <= limit && text.get( offset ) == 'c' && text.get( offset + 1 ) == 'r'
+                && text.get( offset + 2 ) == 'c' && text.get( offset + 3 ) == ' ';
+    }
+    
+    private static boolean isSeparator( MappedByteBuffer text, int offset, int limit )
+    {
+        return offset < limit && ( text.get( offset ) == '-' || text.get( offset ) == ' ' );
+    }
+    
+    private static long parseHexWord( MappedByteBuffer text, int offset, int limit )
+    {
+        if( offset + 8 > limit )
+            return -1;
+        
+        long word = 0;
+        for( int i = offset; i < offset + 8; i++ )
+        {
+            int digit = Character.digit( (char) text.get( i ), 16 );
+            if( digit < 0 )
+                return -1;
+            word = ( word << 4 ) | digit;
+        }
+        return word;
+    }
+}
\ No newline at end of file
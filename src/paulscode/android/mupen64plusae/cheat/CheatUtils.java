@@ -20,10 +20,19 @@
  */
 package paulscode.android.mupen64plusae.cheat;
 
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.File;
+import java.io.FileReader;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
 
 import org.mupen64plusae.v3.alpha.R;
 
@@ -31,7 +40,7 @@ import paulscode.android.mupen64plusae.cheat.CheatFile.CheatBlock;
 import paulscode.android.mupen64plusae.cheat.CheatFile.CheatCode;
 import paulscode.android.mupen64plusae.cheat.CheatFile.CheatOption;
 import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
-import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.util.RomHeader;
 import android.content.Context;
 import android.text.TextUtils;
@@ -49,68 +58,274 @@ public class CheatUtils
     
     public static int numberOfSystemCheats = 0;
     
-    public static void mergeCheatFiles( String defaultpath, String userpath, String volatilepath )
+    /** Appended to the merged cheat file path to name the record of its last merge. */
+    private static final String FINGERPRINT_SUFFIX = ".fingerprint";
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
+    /**
+     * The outcome of a {@link CheatUtils#mergeCheatFiles} call, with the time spent in each step.
+     */
+    public static class MergeStats
     {
-        long start = new Date().getTime();
+        /** True if the merged file was already up to date, so nothing was done. */
+        public boolean skipped = false;
         
-        // Reset the volatile cheatfile to the default data
-        File cheat_volatile = new File( volatilepath );
-        File cheat_default = new File( defaultpath );
-        FileUtil.copyFile( cheat_default, cheat_volatile );
+        /** True if the merged file is up to date. */
+        public boolean success = false;
+        
+        /** Milliseconds spent checking whether a merge was needed. */
+        public long checkTime = 0;
         
-        long step1 = new Date().getTime();
-        long step2 = 0;
-        long step3 = 0;
+        /** Milliseconds spent parsing the user cheat file. */
+        public long loadTime = 0;
+        
+        /** Milliseconds spent writing the merged file. */
+        public long saveTime = 0;
+        
+        /** Total milliseconds spent. */
+        public long totalTime = 0;
+        
+        /** The size of the merged file written, in bytes. */
+        public long bytesWritten = 0;
+    }
+    
+    /**
+     * Merges the user cheats into a copy of the default cheats. May be slow; do not call on the UI
+     * thread.
+     * <p>
+     * Nothing is done if neither input nor the merged file has changed since the last merge. The
+     * default file is never parsed: its text is streamed into the merged file, and each user cheat
+     * block is spliced in at the end of the section for its ROM. User sections for ROMs missing
+     * from the default file are appended at the end.
+     * 
+     * @param defaultpath the path of the default cheat file
+     * @param userpath the path of the user cheat file, which need not exist
+     * @param volatilepath the path of the merged cheat file
+     * 
+     * @return the outcome and timings of the merge
+     */
+    public static MergeStats mergeCheatFiles( String defaultpath, String userpath, String volatilepath )
+    {
+        MergeStats stats = new MergeStats();
+        long start = System.nanoTime();
         
-        // Merge user cheats if they exist
+        File cheat_default = new File( defaultpath );
         File cheat_user = new File( userpath );
-        if( cheat_user.exists() )
+        File cheat_volatile = new File( volatilepath );
+        ConfigFile record = new ConfigFile( volatilepath + FINGERPRINT_SUFFIX );
+        String defaultStamp = stamp( cheat_default );
+        String userStamp = stamp( cheat_user );
+        if( cheat_volatile.exists()
+                && defaultStamp.equals( record.get( ConfigFile.SECTIONLESS_NAME, "default" ) )
+                && userStamp.equals( record.get( ConfigFile.SECTIONLESS_NAME, "user" ) )
+                && stamp( cheat_volatile ).equals( record.get( ConfigFile.SECTIONLESS_NAME, "merged" ) ) )
+        {
+            stats.skipped = true;
+            stats.success = true;
+        }
+        long step1 = System.nanoTime();
+        long step2 = step1;
+        
+        if( !stats.skipped )
         {
-            CheatFile cheat_v = new CheatFile( volatilepath );
-            step2 = new Date().getTime();
-            CheatFile cheat_u = new CheatFile( userpath );
+            // Parse only the user cheats, which are small
+            CheatFile cheat_u = cheat_user.exists() ? new CheatFile( userpath ) : null;
+            step2 = System.nanoTime();
+            stats.bytesWritten = splice( cheat_default, cheat_u, cheat_volatile );
+            stats.success = stats.bytesWritten >= 0;
             
+            // Only a complete merge may be skipped next time
+            record.clear();
+            if( stats.success )
+            {
+                record.put( ConfigFile.SECTIONLESS_NAME, "default", defaultStamp );
+                record.put( ConfigFile.SECTIONLESS_NAME, "user", userStamp );
+                record.put( ConfigFile.SECTIONLESS_NAME, "merged", stamp( cheat_volatile ) );
+            }
+            record.save();
+        }
+        long end = System.nanoTime();
+        
+        stats.checkTime = ( step1 - start ) / 1000000;
+        stats.loadTime = ( step2 - step1 ) / 1000000;
+        stats.saveTime = ( end - step2 ) / 1000000;
+        stats.totalTime = ( end - start ) / 1000000;
+        Log.v( "CheatUtils", "Check time: " + stats.checkTime + "ms" + ( stats.skipped ? " (up to date)" : "" ) );
+        Log.v( "CheatUtils", "Load time: " + stats.loadTime + "ms" );
+        Log.v( "CheatUtils", "Save time: " + stats.saveTime + "ms (" + stats.bytesWritten + " bytes)" );
+        Log.v( "CheatUtils", "Total time: " + stats.totalTime + "ms" );
+        return stats;
+    }
+    
+    private static String stamp( File file )
+    {
+        return file.exists() ? file.length() + ":" + file.lastModified() : "none";
+    }
+    
+    /**
+     * Streams the default cheats into the merged file, splicing in the user cheats.
+     * 
+     * @param cheat_default the default cheat file
+     * @param cheat_u the parsed user cheats, or null if there are none
+     * @param cheat_volatile the merged cheat file, replaced only once it is completely written
+     * 
+     * @return the number of bytes written, or -1 if the merge failed
+     */
+    private static long splice( File cheat_default, CheatFile cheat_u, File cheat_volatile )
+    {
+        // Blocks to splice into each ROM's section. Sections are matched by CRC alone, as lookups
+        // are, so a country code that differs only in case still lands in the section that lookups
+        // return: the first key listed for the CRC, whose content comes from its last repeat.
+        LinkedHashMap<Long, List<CheatSection>> pending = new LinkedHashMap<Long, List<CheatSection>>();
+        if( cheat_u != null )
+        {
             for( String key : cheat_u.keySet() )
             {
-                if( !CheatFile.NO_KEY.equals( key ) )
+                Long crcKey = CheatFile.parseCrcKey( key );
+                if( crcKey == null )
+                    continue;
+                List<CheatSection> sections = pending.get( crcKey );
+                if( sections == null )
+                {
+                    sections = new ArrayList<CheatSection>();
+                    pending.put( crcKey, sections );
+                }
+                sections.add( cheat_u.get( key ) );
+            }
+        }
+        
+        File temp = null;
+        BufferedReader reader = null;
+        Writer writer = null;
+        try
+        {
+            cheat_volatile.getAbsoluteFile().getParentFile().mkdirs();
+            temp = File.createTempFile( cheat_volatile.getName(), ".tmp", cheat_volatile.getAbsoluteFile().getParentFile() );
+            reader = new BufferedReader( new FileReader( cheat_default ), BUFFER_SIZE );
+            writer = new BufferedWriter( new FileWriter( temp ), BUFFER_SIZE );
+            
+            Map<Long, String> firstKeys = new HashMap<Long, String>();
+            String key = null;
+            int blankLines = 0;
+            String line;
+            while( ( line = reader.readLine() ) != null )
+            {
+                if( line.length() == 0 )
+                {
+                    // Hold blank lines back, so that spliced blocks go before the gap between sections
+                    blankLines++;
+                    continue;
+                }
+                if( line.startsWith( "crc " ) )
+                {
+                    spliceBlocks( pending, firstKeys, key, writer );
+                    key = line.substring( 4 );
+                }
+                for( ; blankLines > 0; blankLines-- )
+                    writer.append( '\n' );
+                writer.append( line ).append( '\n' );
+            }
+            spliceBlocks( pending, firstKeys, key, writer );
+            pending.keySet().removeAll( firstKeys.keySet() );
+            if( blankLines == 0 && !pending.isEmpty() )
+                blankLines = 1;
+            for( ; blankLines > 0; blankLines-- )
+                writer.append( '\n' );
+            
+            // Append the sections for ROMs that have no default cheats, one per CRC; once parsed,
+            // each section saves with a blank line after it
+            for( List<CheatSection> sections : pending.values() )
+            {
+                CheatSection first = sections.get( 0 );
+                first.size();
+                first.save( writer );
+                if( sections.size() > 1 )
+                {
+                    spliceBlocks( sections, 1, writer );
+                    writer.append( '\n' );
+                }
+            }
+            writer.close();
+            writer = null;
+            
+            long length = temp.length();
+            if( !temp.renameTo( cheat_volatile ) )
+                throw new IOException( "Could not replace file with " + temp.getName() );
+            temp = null;
+            return length;
+        }
+        catch( IOException e )
+        {
+            Log.e( "CheatUtils", "Error merging cheats into " + cheat_volatile.getPath() + ": " + e.getMessage() );
+            return -1;
+        }
+        finally
+        {
+            if( reader != null )
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( writer != null )
+            {
+                try
+                {
+                    writer.close();
+                }
+                catch( IOException ignored )
                 {
-                    CheatSection cheat_section_v = cheat_v.get( key );
-                    CheatSection cheat_section_u = cheat_u.get( key );
-                    assert( cheat_section_u != null );
-                    
-                    // Create the cheat section in the destination if necessary (i.e. this ROM
-                    // is not present in the default cheat file)
-                    if( cheat_section_v == null )
-                    {
-                        String name = cheat_section_u.goodName;
-                        String crc = key.substring( 0, 17 );
-                        String country = key.substring( 20 );
-                        cheat_v.add( new CheatSection( crc, name, country ) );
-                    }
-                    
-                    // Append the user cheats to the volatile cheatfile
-                    for( int o = 0; o < cheat_section_u.size(); o++ )
-                    {
-                        cheat_section_v.add( cheat_section_u.get( o ) );
-                    }
                 }
             }
-            step3 = new Date().getTime();
-            cheat_v.save();
+            if( temp != null )
+                temp.delete();
+        }
+    }
+    
+    private static void spliceBlocks( Map<Long, List<CheatSection>> pending, Map<Long, String> firstKeys,
+            String key, Writer writer ) throws IOException
+    {
+        Long crcKey = CheatFile.parseCrcKey( key );
+        if( crcKey == null )
+            return;
+        
+        // A repeated key replaces the earlier section's content when parsed, so each repeat of the
+        // first key gets the blocks; later keys for the same CRC are never returned by lookups
+        String firstKey = firstKeys.get( crcKey );
+        if( firstKey == null )
+            firstKeys.put( crcKey, key );
+        else if( !firstKey.equals( key ) )
+            return;
+        spliceBlocks( pending.get( crcKey ), 0, writer );
+    }
+    
+    private static void spliceBlocks( List<CheatSection> sections, int start, Writer writer ) throws IOException
+    {
+        if( sections == null )
+            return;
+        
+        for( CheatSection section : sections.subList( start, sections.size() ) )
+        {
+            for( int i = 0; i < section.size(); i++ )
+                section.get( i ).save( writer );
         }
-        long end = new Date().getTime();
-        Log.v( "CheatUtils", "Copy time: " + ( step1 - start ) + "ms" );
-        Log.v( "CheatUtils", "Load time: " + ( step2 - step1 ) + "ms" );
-        Log.v( "CheatUtils", "Fill time: " + ( step3 - step2 ) + "ms" );
-        Log.v( "CheatUtils", "Save time: " + ( end - step3 ) + "ms" );
-        Log.v( "CheatUtils", "Total time: " + ( end - start ) + "ms" );
     }
     
     public static ArrayList<Cheat> populate( String crc, CheatFile mupencheat_txt,
             boolean isSystemDefault, Context con )
+    {
+        return populate( crc, mupencheat_txt.getByCrc( crc ), isSystemDefault, con );
+    }
+    
+    public static ArrayList<Cheat> populate( String crc, CheatSection cheatSection,
+            boolean isSystemDefault, Context con )
     {
         ArrayList<Cheat> cheats = new ArrayList<Cheat>();
-        CheatSection cheatSection = mupencheat_txt.match( "^" + crc.replace( ' ', '-' ) + ".*" );
         if( cheatSection == null )
         {
             Log.w( "CheatEditorActivity", "No cheat section found for '" + crc + "'" );
@@ -141,13 +356,13 @@ public class CheatUtils
                 }
                 
                 // Get the descriptive note for this cheat (shown on long-click)
-                if( cheatBlock.description == null )
+                if( cheatBlock.getDescription() == null )
                 {
                     cheat.desc = con.getString( R.string.cheatNotes_none );
                 }
                 else
                 {
-                    cheat.desc = cheatBlock.description;
+                    cheat.desc = cheatBlock.getDescription();
                 }
                 
                 // Get the options for this cheat
@@ -208,13 +423,13 @@ public class CheatUtils
                             optionStrings[z] = options.get( z ).name;
                             if( TextUtils.isEmpty( optionStrings[z] ) )
                                 optionStrings[z] = con.getString( R.string.cheats_longPress );
-                            
+                        
                         }
                     }
                 }
                 
                 cheats.add( cheat );
-                
+            
             }
         }
         return cheats;
@@ -223,11 +438,11 @@ public class CheatUtils
     public static void save( String crc, CheatFile mupencheat_txt, ArrayList<Cheat> cheats,
             RomHeader mRomHeader, Context con, boolean isSystemDefault )
     {
-        CheatSection c = mupencheat_txt.match( "^" + crc.replace( ' ', '-' ) + ".*" );
+        CheatSection c = mupencheat_txt.getByCrc( crc );
         if( c == null )
         {
             // Game name and country code from header
-            c = new CheatSection( crc.replace( ' ', '-' ), mRomHeader.name, String.format( "%02x",
+            c = new CheatSection( crc.replace( ' ', '-' ), mRomHeader.name, String.format( "%02X",
                     mRomHeader.countryCode ).substring( 0, 2 ) );
             mupencheat_txt.add( c );
         }
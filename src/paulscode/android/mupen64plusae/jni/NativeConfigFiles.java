@@ -20,24 +20,36 @@
  */
 package paulscode.android.mupen64plusae.jni;
 
+import java.io.File;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.GamePrefs;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
+import paulscode.android.mupen64plusae.util.Md5Hasher;
 
 public class NativeConfigFiles
 {
     private final static String EMPTY = "\"\"";
     
+    /** The file, next to the game's mupen64plus.cfg, recording the state of the last sync. */
+    private final static String FINGERPRINT_FILE = "sync.fingerprint";
+    
     /**
-     * Populates the core configuration files with the user preferences.
+     * Populates the core configuration files with the user preferences. The files are only parsed
+     * and rewritten if the values to be written, or the files themselves, have changed since the
+     * last sync for this game.
      */
     public static void syncConfigFiles( GamePrefs game, UserPrefs user, AppData appData )
     {
         //@formatter:off
         
         // gln64 config file
-        ConfigFile gln64_conf = new ConfigFile( appData.gln64_conf );
+        PendingConfig gln64_conf = new PendingConfig( appData.gln64_conf );
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "window width", String.valueOf( user.videoRenderWidth ) );
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "window height", String.valueOf( user.videoRenderHeight ) );
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "auto frameskip", boolToNum( game.isGln64AutoFrameskipEnabled ) );
@@ -51,11 +63,11 @@ public class NativeConfigFiles
         gln64_conf.put( ConfigFile.SECTIONLESS_NAME, "hack z", boolToNum( game.isGln64HackDepthEnabled ) );
         
         // glide64 config file
-        ConfigFile glide64_conf = new ConfigFile( appData.glide64mk2_ini );
+        PendingConfig glide64_conf = new PendingConfig( appData.glide64mk2_ini );
         glide64_conf.put( "DEFAULT", "aspect", "2" );                                                                       // Stretch to GameSurface, Java will manage aspect ratio
         
         // Core and rice config file
-        ConfigFile mupen64plus_cfg = new ConfigFile( game.mupen64plus_cfg );
+        PendingConfig mupen64plus_cfg = new PendingConfig( game.mupen64plus_cfg );
         
         mupen64plus_cfg.put( "Audio-SDL", "Version", "1.000000" );                                                          // Mupen64Plus SDL Audio Plugin config parameter version number
         mupen64plus_cfg.put( "Audio-SDL", "SWAP_CHANNELS", boolToTF( user.audioSwapChannels ) );                            // Swaps left and right channels
@@ -137,11 +149,52 @@ public class NativeConfigFiles
         mupen64plus_cfg.put( "Video-Rice", "Mipmapping", "0" );                                                             // Use Mipmapping? 0=no, 1=nearest, 2=bilinear, 3=trilinear
         mupen64plus_cfg.put( "Video-Rice", "FogMethod", boolToNum( game.isRiceFogEnabled ) );                               // Enable, Disable or Force fog generation (0=Disable, 1=Enable n64 choose, 2=Force Fog)
         
-        gln64_conf.save();
-        glide64_conf.save();
-        mupen64plus_cfg.save();
-        
         //@formatter:on
+        
+        // Skip parsing and rewriting the files if they are exactly as the last sync left them
+        PendingConfig[] configs = { gln64_conf, glide64_conf, mupen64plus_cfg };
+        String fingerprint = computeFingerprint( configs );
+        ConfigFile record = new ConfigFile( game.coreUserConfigDir + "/" + FINGERPRINT_FILE );
+        if( isUpToDate( record, fingerprint, configs ) )
+            return;
+        
+        boolean success = true;
+        for( PendingConfig config : configs )
+            success &= config.apply();
+        
+        // Only a complete sync may be skipped next time
+        record.clear();
+        if( success )
+        {
+            record.put( ConfigFile.SECTIONLESS_NAME, "fingerprint", fingerprint );
+            for( int i = 0; i < configs.length; i++ )
+                record.put( ConfigFile.SECTIONLESS_NAME, "modified" + i, String.valueOf( configs[i].lastModified() ) );
+        }
+        record.save();
+    }
+    
+    private static String computeFingerprint( PendingConfig[] configs )
+    {
+        MessageDigest digester = Md5Hasher.newDigester();
+        for( PendingConfig config : configs )
+            config.update( digester );
+        return Md5Hasher.toHexString( digester.digest() );
+    }
+    
+    private static boolean isUpToDate( ConfigFile record, String fingerprint, PendingConfig[] configs )
+    {
+        if( !fingerprint.equals( record.get( ConfigFile.SECTIONLESS_NAME, "fingerprint" ) ) )
+            return false;
+        
+        // Catch files changed by anything else, e.g. another game's sync of the shared files
+        for( int i = 0; i < configs.length; i++ )
+        {
+            long lastModified = configs[i].lastModified();
+            String recorded = record.get( ConfigFile.SECTIONLESS_NAME, "modified" + i );
+            if( lastModified == 0 || !String.valueOf( lastModified ).equals( recorded ) )
+                return false;
+        }
+        return true;
     }
     
     private static String boolToTF( boolean b )
@@ -153,4 +206,60 @@ public class NativeConfigFiles
     {
         return b ? "1" : "0";
     }
+    
+    /**
+     * The values to be written to one config file, collected so that they can be compared with
+     * the last sync before the file is parsed.
+     */
+    private static class PendingConfig
+    {
+        private final String mPath;
+        private final List<String[]> mValues = new ArrayList<String[]>();
+        
+        public PendingConfig( String path )
+        {
+            mPath = path;
+        }
+        
+        public void put( String section, String parameter, String value )
+        {
+            mValues.add( new String[] { section, parameter, value } );
+        }
+        
+        public void update( MessageDigest digester )
+        {
+            try
+            {
+                digester.update( mPath.getBytes( "UTF-8" ) );
+                for( String[] value : mValues )
+                {
+                    // Separators keep e.g. ("ab", "c") and ("a", "bc") apart
+                    for( String field : value )
+                    {
+                        digester.update( (byte) 0 );
+                        digester.update( String.valueOf( field ).getBytes( "UTF-8" ) );
+                    }
+                }
+                digester.update( (byte) '\n' );
+            }
+            catch( UnsupportedEncodingException e )
+            {
+                // Every Java platform is required to support UTF-8
+                throw new RuntimeException( e );
+            }
+        }
+        
+        public boolean apply()
+        {
+            ConfigFile config = new ConfigFile( mPath );
+            for( String[] value : mValues )
+                config.put( value[0], value[1], value[2] );
+            return config.save();
+        }
+        
+        public long lastModified()
+        {
+            return new File( mPath ).lastModified();
+        }
+    }
 }
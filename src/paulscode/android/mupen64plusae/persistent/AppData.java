@@ -22,6 +22,9 @@ package paulscode.android.mupen64plusae.persistent;
 
 import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
 import java.util.Locale;
 
 import org.acra.ACRA;
@@ -190,11 +193,13 @@ public class AppData
     // Shared preferences keys
     private static final String KEY_ASSET_VERSION = "assetVersion";
     private static final String KEY_LAST_APP_VERSION_CODE = "lastAppVersion";
+    private static final String KEY_ROM_SEARCH_ROOTS = "romSearchRoots";
     // ... add more as needed
     
     // Shared preferences default values
     private static final int DEFAULT_ASSET_VERSION = 0;
     private static final int DEFAULT_LAST_APP_VERSION_CODE = 0;
+    private static final String DEFAULT_ROM_SEARCH_ROOTS = "";
     
     // ... add more as needed
     
@@ -366,6 +371,72 @@ public class AppData
         putInt( KEY_LAST_APP_VERSION_CODE, value );
     }
     
+    /**
+     * Gets the directories the user has searched for ROMs.
+     * 
+     * @return The ROM search directories, in the order they were added.
+     */
+    public List<String> getRomSearchRoots()
+    {
+        String roots = getString( KEY_ROM_SEARCH_ROOTS, DEFAULT_ROM_SEARCH_ROOTS );
+        List<String> result = new ArrayList<String>();
+        if( !TextUtils.isEmpty( roots ) )
+            result.addAll( Arrays.asList( roots.split( "\n" ) ) );
+        return result;
+    }
+    
+    /**
+     * Adds a directory to the ROM search directories. Directories already covered by the new one
+     * are dropped; nothing is added if the new one is already covered.
+     * 
+     * @param root The ROM search directory.
+     */
+    public void addRomSearchRoot( String root )
+    {
+        List<String> roots = getRomSearchRoots();
+        if( addRomSearchRoot( roots, root ) )
+            putString( KEY_ROM_SEARCH_ROOTS, TextUtils.join( "\n", roots ) );
+    }
+    
+    /**
+     * Records the folders of the ROMs already in the library as the ROM search directories, if no
+     * directories have been recorded yet. Libraries scanned before the directories were recorded
+     * would otherwise not be watched for changes.
+     * 
+     * @param romPaths The paths of the ROMs in the library.
+     * 
+     * @return The ROM search directories.
+     */
+    public List<String> seedRomSearchRoots( Collection<String> romPaths )
+    {
+        List<String> roots = getRomSearchRoots();
+        if( !roots.isEmpty() )
+            return roots;
+        
+        for( String romPath : romPaths )
+        {
+            String parent = new File( romPath ).getParent();
+            if( parent != null )
+                addRomSearchRoot( roots, parent );
+        }
+        if( !roots.isEmpty() )
+            putString( KEY_ROM_SEARCH_ROOTS, TextUtils.join( "\n", roots ) );
+        return roots;
+    }
+    
+    private static boolean addRomSearchRoot( List<String> roots, String root )
+    {
+        for( String existing : new ArrayList<String>( roots ) )
+        {
+            if( FileUtil.isSameOrDescendant( root, existing ) )
+                return false;
+            if( FileUtil.isSameOrDescendant( existing, root ) )
+                roots.remove( existing );
+        }
+        roots.add( root );
+        return true;
+    }
+    
     private int getInt( String key, int defaultValue )
     {
         return mPreferences.getInt( key, defaultValue );
@@ -376,6 +447,16 @@ public class AppData
         mPreferences.edit().putInt( key, value ).commit();
     }
     
+    private String getString( String key, String defaultValue )
+    {
+        return mPreferences.getString( key, defaultValue );
+    }
+    
+    private void putString( String key, String value )
+    {
+        mPreferences.edit().putString( key, value ).commit();
+    }
+    
     private boolean libraryExists( String undecoratedName )
     {
         File library = new File( libsDir + "lib" + undecoratedName + ".so" );
@@ -20,17 +20,24 @@
  */
 package paulscode.android.mupen64plusae.persistent;
 
-import java.io.BufferedReader;
-import java.io.DataInputStream;
+import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileWriter;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.Iterator;
 import java.util.LinkedHashMap;
-import java.util.LinkedList;
+import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Set;
 
 import android.text.TextUtils;
@@ -65,6 +72,15 @@ public class ConfigFile
     /** Sections mapped by title for easy lookup, with insertion order retained. */
     private final LinkedHashMap<String, ConfigSection> mConfigMap;
     
+    /** True if sections have been added or removed since the file was loaded or saved. */
+    private boolean mDirty = false;
+    
+    /** The number of bytes written by the last call to {@link #save()}. */
+    private long mBytesWritten = 0;
+    
+    /** True if this instance is shared through {@link ConfigFileCache} and must not be modified. */
+    private boolean mReadOnly = false;
+    
     /**
      * Reads the entire config file, and saves the data to internal collections for manipulation.
      * 
@@ -77,6 +93,67 @@ public class ConfigFile
         reload();
     }
     
+    /**
+     * Reads a config file into a compact, read-only form, for large files that are only ever
+     * looked up (e.g. mupen64plus.ini). Every section is parsed up front into parallel arrays of
+     * names and values, with repeated strings shared, and the comments and raw lines needed to
+     * save the file back are dropped.
+     * 
+     * @param filename The config file to read from.
+     * 
+     * @return The parsed config file. Empty if the file could not be read.
+     */
+    public static ConfigFile loadCompact( String filename )
+    {
+        ConfigFile config = new ConfigFile( filename );
+        
+        // Strings repeat across sections ("GoodName", "Yes", "Eeprom 4KB", ...), so keep one copy
+        HashMap<String, String> pool = new HashMap<String, String>();
+        ArrayList<String> scratch = new ArrayList<String>();
+        for( ConfigSection section : config.mConfigMap.values() )
+            section.compact( pool, scratch );
+        config.setReadOnly();
+        return config;
+    }
+    
+    /**
+     * Copies a config file, without reading it again. Sections the source has not parsed yet are
+     * shared with it until they are first accessed. The copy is never read-only.
+     * 
+     * @param source The config file to copy.
+     */
+    ConfigFile( ConfigFile source )
+    {
+        mFilename = source.mFilename;
+        mConfigMap = new LinkedHashMap<String, ConfigSection>();
+        for( ConfigSection section : source.mConfigMap.values() )
+            mConfigMap.put( section.name, new ConfigSection( section ) );
+        mDirty = source.mDirty;
+    }
+    
+    /**
+     * Prevents any further modification, so that this instance can be shared. Any attempt to
+     * modify it afterwards throws an IllegalStateException.
+     */
+    void setReadOnly()
+    {
+        mReadOnly = true;
+        for( ConfigSection section : mConfigMap.values() )
+            section.readOnly = true;
+    }
+    
+    /**
+     * Determines whether this instance is shared through {@link ConfigFileCache}. Read-only
+     * instances cannot be modified, reloaded, or saved; use {@link ConfigFileCache#getCopy(String)}
+     * to obtain a modifiable copy.
+     * 
+     * @return True if this instance is read-only.
+     */
+    public boolean isReadOnly()
+    {
+        return mReadOnly;
+    }
+    
     /**
      * Looks up a config section by its title.
      * 
@@ -97,7 +174,9 @@ public class ConfigFile
      */
     public void remove( String sectionTitle )
     {
-        mConfigMap.remove( sectionTitle );
+        checkWritable();
+        if( mConfigMap.remove( sectionTitle ) != null )
+            mDirty = true;
     }
     
     /**
@@ -112,18 +191,11 @@ public class ConfigFile
     {
         ConfigSection section = mConfigMap.get( sectionTitle );
         
-        // The specified section doesn't exist or is empty.. quit
-        if( section == null || section.parameters == null )
-            return null;
-        
-        ConfigParameter confParam = section.parameters.get( parameter );
-        
-        // The specified parameter doesn't exist.. quit
-        if( confParam == null )
+        // The specified section doesn't exist.. quit
+        if( section == null )
             return null;
         
-        // Got it
-        return confParam.value;
+        return section.get( parameter );
     }
     
     /**
@@ -135,12 +207,14 @@ public class ConfigFile
      */
     public void put( String sectionTitle, String parameter, String value )
     {
+        checkWritable();
         ConfigSection section = mConfigMap.get( sectionTitle );
         if( section == null )
         {
             // Add a new section
             section = new ConfigSection( sectionTitle );
             mConfigMap.put( sectionTitle, section );
+            mDirty = true;
         }
         section.put( parameter, value );
     }
@@ -150,6 +224,9 @@ public class ConfigFile
      */
     public void clear()
     {
+        checkWritable();
+        if( !mConfigMap.isEmpty() )
+            mDirty = true;
         mConfigMap.clear();
     }
     
@@ -162,66 +239,115 @@ public class ConfigFile
      */
     public boolean reload()
     {
+        checkWritable();
+        
         // Make sure a file was actually specified
         if( TextUtils.isEmpty( mFilename ) )
             return false;
         
         // Free any previously loaded data
         clear();
+        mDirty = false;
         
-        FileInputStream fstream;
+        // Read the whole file up front, so that it can be parsed in a single pass
+        File file = new File( mFilename );
+        char[] text = new char[(int) Math.max( file.length(), 16 )];
+        int length = 0;
+        Reader reader = null;
         try
         {
-            fstream = new FileInputStream( mFilename );
+            reader = new InputStreamReader( new FileInputStream( file ) );
+            int count;
+            while( ( count = reader.read( text, length, text.length - length ) ) != -1 )
+            {
+                length += count;
+                if( length == text.length )
+                {
+                    // File grew, or decoded to more chars than it has bytes
+                    char[] larger = new char[text.length * 2];
+                    System.arraycopy( text, 0, larger, 0, length );
+                    text = larger;
+                }
+            }
         }
         catch( FileNotFoundException fnfe )
         {
             // File not found... we can't continue
             return false;
         }
-        
-        DataInputStream in = new DataInputStream( fstream );
-        BufferedReader br = new BufferedReader( new InputStreamReader( in ) );
-        
-        String sectionName = SECTIONLESS_NAME;
-        ConfigSection section = new ConfigSection( sectionName, br ); // Read the 'sectionless'
-                                                                      // section
-        mConfigMap.put( sectionName, section ); // Save the data to 'configMap'
-        
-        // Loop through reading the remaining sections
-        while( !TextUtils.isEmpty( section.nextName ) )
-        {
-            // Get the next section name
-            sectionName = section.nextName;
-            
-            // Load the next section
-            section = new ConfigSection( sectionName, br );
-            mConfigMap.put( sectionName, section ); // Save the data to 'configMap'
-        }
-        
-        try
+        catch( IOException ioe )
         {
-            // Finished. Close the file.
-            in.close();
-            br.close();
+            // (Don't care) Parse whatever was read
         }
-        catch( IOException ioe )
+        finally
         {
-            // (Don't care)
+            if( reader != null )
+            {
+                try
+                {
+                    reader.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
         }
         
+        parse( text, length );
+        
         // Success
         return true;
     }
     
     /**
-     * Saves the data from 'configMap' back to the config file.
+     * Indexes the text of a config file by section. Only the section titles are extracted; each
+     * section parses its own lines the first time it is accessed. Parsing stops at the first line
+     * with bad syntax.
+     * 
+     * @param text The text of the config file.
+     * @param length The number of valid characters in the text.
+     */
+    private void parse( char[] text, int length )
+    {
+        // The 'sectionless' section comes first
+        String sectionName = SECTIONLESS_NAME;
+        int bodyStart = 0;
+        
+        LineScanner scanner = new LineScanner( text, 0, length );
+        int bodyEnd = length;
+        while( scanner.next() )
+        {
+            if( scanner.type == LineScanner.BAD_SYNTAX )
+            {
+                // This shouldn't happen (bad syntax). Quit.
+                bodyEnd = scanner.lineStart;
+                break;
+            }
+            else if( scanner.type == ConfigLine.LINE_SECTION )
+            {
+                // Save the previous section to 'configMap' and start the next one
+                mConfigMap.put( sectionName, new ConfigSection( sectionName, text, bodyStart, scanner.lineStart ) );
+                sectionName = new String( text, scanner.nameStart, scanner.nameEnd - scanner.nameStart );
+                bodyStart = scanner.nextLine;
+            }
+        }
+        mConfigMap.put( sectionName, new ConfigSection( sectionName, text, bodyStart, bodyEnd ) );
+    }
+    
+    /**
+     * Saves the data from 'configMap' back to the config file, if anything has changed since it
+     * was loaded or last saved. The data is written to a temporary file that then replaces the
+     * config file, so the config file is never left half-written.
      * 
      * @return True if successful. False otherwise.
      * @see #reload()
+     * @see #getBytesWritten()
      */
     public boolean save()
     {
+        checkWritable();
+        mBytesWritten = 0;
+        
         // No filename was specified.
         if( TextUtils.isEmpty( mFilename ) )
         {
@@ -229,21 +355,45 @@ public class ConfigFile
             return false; // Quit
         }
         
+        // Nothing to do if the file is already up to date
+        File file = new File( mFilename );
+        if( !isDirty() && file.exists() )
+            return true;
+        long start = System.nanoTime();
+        
         // Ensure parent directories exist before writing file
-        new File( mFilename ).getParentFile().mkdirs();
+        file.getAbsoluteFile().getParentFile().mkdirs();
         
-        // Write data to file
-        FileWriter fw = null;
+        // Write data to a temporary file in the same directory, then swap it in
+        File tempFile = null;
+        Writer writer = null;
         try
         {
-            fw = new FileWriter( mFilename );
+            tempFile = File.createTempFile( file.getName(), ".tmp", file.getAbsoluteFile().getParentFile() );
+            FileOutputStream out = new FileOutputStream( tempFile );
+            writer = new BufferedWriter( new OutputStreamWriter( out ) );
             
             // Loop through the sections
             for( ConfigSection section : mConfigMap.values() )
             {
                 if( section != null )
-                    section.save( fw );
+                    section.save( writer );
             }
+            
+            // Reach the disk before the rename, so a crash cannot leave an empty file in its place
+            writer.flush();
+            out.getFD().sync();
+            writer.close();
+            writer = null;
+            
+            long length = tempFile.length();
+            if( !tempFile.renameTo( file ) )
+                throw new IOException( "Could not replace file with " + tempFile.getName() );
+            tempFile = null;
+            mBytesWritten = length;
+            
+            // Make sure nobody is handed the old contents
+            ConfigFileCache.invalidate( mFilename );
         }
         catch( IOException ioe )
         {
@@ -253,22 +403,60 @@ public class ConfigFile
         }
         finally
         {
-            if( fw != null )
+            if( writer != null )
             {
                 try
                 {
-                    fw.close();
+                    writer.close();
                 }
                 catch( IOException ignored )
                 {
                 }
             }
+            if( tempFile != null )
+                tempFile.delete();
         }
         
         // Success
+        mDirty = false;
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null )
+                section.dirty = false;
+        }
+        Log.v( "ConfigFile", "Save time: " + ( System.nanoTime() - start ) / 1000000 + "ms (" + mBytesWritten
+                + " bytes) for " + mFilename );
         return true;
     }
     
+    /**
+     * Returns the number of bytes written by the last call to {@link #save()}.
+     * 
+     * @return The size of the saved file, or zero if the last save had nothing to write or failed.
+     */
+    public long getBytesWritten()
+    {
+        return mBytesWritten;
+    }
+    
+    /**
+     * Determines whether the data has changed since the file was loaded or last saved.
+     * 
+     * @return True if there are unsaved changes.
+     */
+    public boolean isDirty()
+    {
+        if( mDirty )
+            return true;
+        
+        for( ConfigSection section : mConfigMap.values() )
+        {
+            if( section != null && section.dirty )
+                return true;
+        }
+        return false;
+    }
+    
     /**
      * Returns a handle to the configMap keyset.
      * 
@@ -276,23 +464,42 @@ public class ConfigFile
      */
     public Set<String> keySet()
     {
-        return mConfigMap.keySet();
+        return mReadOnly ? Collections.unmodifiableSet( mConfigMap.keySet() ) : mConfigMap.keySet();
+    }
+    
+    private void checkWritable()
+    {
+        if( mReadOnly )
+            throw new IllegalStateException( "Config file is read-only: " + mFilename );
     }
     
     /**
-     * The ConfigSection class reads all the parameters in the next section of the config file.
-     * Saves the name of the next section (or null if end of file or error). Can also be used to add
-     * a new section to an existing configuration.
+     * The ConfigSection class holds the parameters of one section of the config file, along with
+     * its lines for saving back. Can also be used to add a new section to an existing
+     * configuration.
      */
     public static class ConfigSection
     {
         public String name; // Section name
         private HashMap<String, ConfigParameter> parameters; // Parameters sorted by name for easy
                                                              // lookup
-        private LinkedList<ConfigLine> lines; // All the lines in this section, including comments
+        private List<ConfigLine> lines; // All the lines in this section, including comments
+        
+        // True if parameters have changed since the file was loaded or saved
+        private boolean dirty = false;
+        
+        // True if the section belongs to a read-only config file
+        private boolean readOnly = false;
         
-        // Name of the next section, or null if there are no sections left to read in the file:
-        private String nextName = null;
+        // The text of the file and the range of this section's lines, until lazyLoad() is called
+        private char[] text;
+        private int bodyStart;
+        private int bodyEnd;
+        
+        // Parameter names and values, in file order, used instead of 'parameters' and 'lines'
+        // once the section is compacted
+        private String[] keys;
+        private String[] values;
         
         /**
          * Constructor: Creates an empty config section
@@ -301,124 +508,186 @@ public class ConfigFile
          */
         public ConfigSection( String sectionName )
         {
-            parameters = new HashMap<String, ConfigParameter>();
-            lines = new LinkedList<ConfigLine>();
-            
-            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
-                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
-            
             name = sectionName;
+            initialize();
         }
         
-        // TODO: Clean this method up a bit?
         /**
-         * Constructor: Reads the next section of the config file, and saves it in 'parameters'.
+         * Constructor: Creates a config section whose lines are parsed from the file text when
+         * first needed.
          * 
          * @param sectionName The section title.
-         * @param br The config file to read from.
+         * @param text The text of the config file.
+         * @param bodyStart The index of the first line after the section title.
+         * @param bodyEnd The index just past the last line of the section.
          */
-        public ConfigSection( String sectionName, BufferedReader br )
+        private ConfigSection( String sectionName, char[] text, int bodyStart, int bodyEnd )
         {
-            String fullLine, strLine, p, v;
-            ConfigParameter confParam;
-            int x, y;
-            
-            parameters = new HashMap<String, ConfigParameter>();
-            lines = new LinkedList<ConfigLine>();
-            
-            if( !TextUtils.isEmpty( sectionName ) && !sectionName.equals( SECTIONLESS_NAME ) )
-                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + sectionName + "]\n", null ) );
-            
             name = sectionName;
-            
-            // No file to read from. Quit.
-            if( br == null )
-                return;
-            
-            try
+            this.text = text;
+            this.bodyStart = bodyStart;
+            this.bodyEnd = bodyEnd;
+        }
+        
+        /**
+         * Constructor: Copies a config section. If the source has not been parsed yet, the copy
+         * shares its file text and parses it independently.
+         * 
+         * @param source The section to copy.
+         */
+        private ConfigSection( ConfigSection source )
+        {
+            synchronized( source )
             {
-                while( ( fullLine = br.readLine() ) != null )
+                name = source.name;
+                dirty = source.dirty;
+                if( source.keys != null )
                 {
-                    strLine = fullLine.trim();
-                    if( ( strLine.length() < 1 )
-                            || ( strLine.substring( 0, 1 ).equals( "#" ) )
-                            || ( strLine.substring( 0, 1 ).equals( ";" ) )
-                            || ( ( strLine.length() > 1 ) && ( strLine.substring( 0, 2 )
-                                    .equals( "//" ) ) ) )
-                    
-                    { // A comment or blank line.
-                        lines.add( new ConfigLine( ConfigLine.LINE_GARBAGE, fullLine + "\n", null ) );
+                    initialize();
+                    for( int i = 0; i < source.keys.length; i++ )
+                    {
+                        ConfigParameter confParam = new ConfigParameter( source.keys[i], source.values[i] );
+                        lines.add( new ConfigLine( ConfigLine.LINE_PARAM, null, confParam ) );
+                        parameters.put( confParam.parameter, confParam );
                     }
-                    else if( strLine.contains( "=" ) )
+                }
+                else if( source.lines == null )
+                {
+                    text = source.text;
+                    bodyStart = source.bodyStart;
+                    bodyEnd = source.bodyEnd;
+                }
+                else
+                {
+                    parameters = new HashMap<String, ConfigParameter>( source.parameters.size() * 2 );
+                    lines = new ArrayList<ConfigLine>( source.lines.size() );
+                    for( ConfigLine line : source.lines )
                     {
-                        // This should be a "parameter=value" pair:
-                        x = strLine.indexOf( '=' );
-                        
-                        if( x < 1 )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        if( x < ( strLine.length() - 1 ) )
+                        // Every parameter appears on exactly one line
+                        ConfigParameter confParam = null;
+                        if( line.confParam != null )
                         {
-                            p = strLine.substring( 0, x ).trim();
-                            if( p.length() < 1 )
-                                return; // This shouldn't happen (bad syntax). Quit.
-                                
-                            v = strLine.substring( x + 1, strLine.length() ).trim();
-                            // v = v.replace( "\"", "" ); // I'm doing this later, so I can save
-                            // back without losing them
-                            
-                            if( v.length() > 0 )
-                            {
-                                // Save the parameter=value pair
-                                confParam = parameters.get( p );
-                                if( confParam != null )
-                                {
-                                    confParam.value = v;
-                                }
-                                else
-                                {
-                                    confParam = new ConfigParameter( p, v );
-                                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, fullLine
-                                            + "\n", confParam ) );
-                                    parameters.put( p, confParam ); // Save the pair.
-                                }
-                            }
-                        } // It's ok to have an empty assignment (such as "param=")
+                            confParam = new ConfigParameter( line.confParam.parameter, line.confParam.value );
+                            parameters.put( confParam.parameter, confParam );
+                        }
+                        lines.add( new ConfigLine( line.lineType, line.strLine, confParam ) );
                     }
-                    else if( strLine.contains( "[" ) )
+                }
+            }
+        }
+        
+        private void initialize()
+        {
+            parameters = new HashMap<String, ConfigParameter>();
+            lines = new ArrayList<ConfigLine>();
+            
+            if( !TextUtils.isEmpty( name ) && !name.equals( SECTIONLESS_NAME ) )
+                lines.add( new ConfigLine( ConfigLine.LINE_SECTION, "[" + name + "]", null ) );
+        }
+        
+        /**
+         * Populates the parameters and lines from the file text saved by the constructor.
+         * Synchronized, since sections of a shared config file may be first accessed by several
+         * threads at once.
+         */
+        private synchronized void lazyLoad()
+        {
+            if( lines != null || keys != null )
+                return;
+            
+            initialize();
+            LineScanner scanner = new LineScanner( text, bodyStart, bodyEnd );
+            while( scanner.next() )
+            {
+                if( scanner.type == ConfigLine.LINE_GARBAGE )
+                {
+                    // A comment or blank line.
+                    lines.add( new ConfigLine( ConfigLine.LINE_GARBAGE, new String( text, scanner.lineStart,
+                            scanner.lineEnd - scanner.lineStart ), null ) );
+                }
+                else if( scanner.type == ConfigLine.LINE_PARAM && scanner.valueStart < scanner.end )
+                {
+                    // Quotes are kept in the value, so it can be saved back without losing them
+                    String p = new String( text, scanner.nameStart, scanner.nameEnd - scanner.nameStart );
+                    String v = new String( text, scanner.valueStart, scanner.end - scanner.valueStart );
+                    ConfigParameter confParam = parameters.get( p );
+                    if( confParam != null )
                     {
-                        // This should be the beginning of the next section
-                        if( ( strLine.length() < 3 ) || ( !strLine.contains( "]" ) ) )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        x = strLine.indexOf( '[' );
-                        y = strLine.indexOf( ']' );
-                        
-                        if( ( y <= x + 1 ) || ( x == -1 ) || ( y == -1 ) )
-                            return; // This shouldn't happen (bad syntax). Quit.
-                            
-                        p = strLine.substring( x + 1, y ).trim();
-                        
-                        // Save the name of the next section.
-                        nextName = p;
-                        
-                        // Done reading parameters. Return.
-                        return;
+                        confParam.value = v;
                     }
                     else
                     {
-                        // This shouldn't happen (bad syntax). Quit.
-                        return;
+                        // Keep the original text up to the '=' so that the line saves back as read,
+                        // unless it is simply "param=", as most lines are
+                        confParam = new ConfigParameter( p, v );
+                        String prefix = scanner.lineStart == scanner.nameStart && scanner.nameEnd == scanner.equals
+                                ? null
+                                : new String( text, scanner.lineStart, scanner.equals + 1 - scanner.lineStart );
+                        lines.add( new ConfigLine( ConfigLine.LINE_PARAM, prefix, confParam ) );
+                        parameters.put( p, confParam ); // Save the pair.
                     }
                 }
+                // It's ok to have an empty assignment (such as "param="); the line is dropped
             }
-            catch( IOException ioe )
+            
+            // Let the file text go once every section has been loaded
+            text = null;
+        }
+        
+        /**
+         * Parses the file text saved by the constructor straight into the compact form, without
+         * creating lines or parameter objects.
+         * 
+         * @param pool Strings already seen in the file, each mapped to itself.
+         * @param scratch A reusable list to collect names and values in.
+         */
+        private synchronized void compact( HashMap<String, String> pool, ArrayList<String> scratch )
+        {
+            scratch.clear();
+            LineScanner scanner = new LineScanner( text, bodyStart, bodyEnd );
+            while( scanner.next() )
             {
-                // (Don't care)
+                // Comments and empty assignments are dropped, as when loading normally
+                if( scanner.type != ConfigLine.LINE_PARAM || scanner.valueStart == scanner.end )
+                    continue;
+                
+                String p = intern( pool, new String( text, scanner.nameStart, scanner.nameEnd - scanner.nameStart ) );
+                String v = intern( pool, new String( text, scanner.valueStart, scanner.end - scanner.valueStart ) );
+                // Names are at even indices, each followed by its value; all are pooled, so
+                // they can be compared by identity
+                int i = 0;
+                while( i < scratch.size() && scratch.get( i ) != p )
+                    i += 2;
+                if( i < scratch.size() )
+                {
+                    // Repeated parameter; the last value wins
+                    scratch.set( i + 1, v );
+                }
+                else
+                {
+                    scratch.add( p );
+                    scratch.add( v );
+                }
             }
             
-            // Reached end of file or error.. either way, just quit
-            return;
+            int count = scratch.size() / 2;
+            keys = new String[count];
+            values = new String[count];
+            for( int i = 0; i < count; i++ )
+            {
+                keys[i] = scratch.get( 2 * i );
+                values[i] = scratch.get( 2 * i + 1 );
+            }
+            text = null;
+        }
+        
+        private static String intern( HashMap<String, String> pool, String string )
+        {
+            String existing = pool.get( string );
+            if( existing != null )
+                return existing;
+            pool.put( string, string );
+            return string;
         }
         
         /**
@@ -428,7 +697,10 @@ public class ConfigFile
          */
         public Set<String> keySet()
         {
-            return parameters.keySet();
+            lazyLoad();
+            if( keys != null )
+                return new KeySet( keys );
+            return readOnly ? Collections.unmodifiableSet( parameters.keySet() ) : parameters.keySet();
         }
         
         /**
@@ -440,10 +712,22 @@ public class ConfigFile
          */
         public String get( String parameter )
         {
-            // Error: no parameters, or parameter was null
-            if( parameters == null || TextUtils.isEmpty( parameter ) )
+            // Error: parameter was null
+            if( TextUtils.isEmpty( parameter ) )
                 return null;
             
+            lazyLoad();
+            if( keys != null )
+            {
+                // Sections hold a handful of parameters, so a linear search is fastest
+                for( int i = 0; i < keys.length; i++ )
+                {
+                    if( keys[i].equals( parameter ) )
+                        return values[i];
+                }
+                return null;
+            }
+            
             ConfigParameter confParam = parameters.get( parameter );
             
             // Parameter not found
@@ -463,38 +747,227 @@ public class ConfigFile
          */
         public void put( String parameter, String value )
         {
+            if( readOnly )
+                throw new IllegalStateException( "Config section is read-only: " + name );
+            
+            lazyLoad();
             ConfigParameter confParam = parameters.get( parameter );
             if( confParam == null ) // New parameter
             {
                 if( !TextUtils.isEmpty( value ) )
                 {
                     confParam = new ConfigParameter( parameter, value );
-                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, parameter + "=" + value
-                            + "\n", confParam ) );
+                    lines.add( new ConfigLine( ConfigLine.LINE_PARAM, null, confParam ) );
                     parameters.put( parameter, confParam );
+                    dirty = true;
                 }
             }
-            else
+            else if( value == null ? confParam.value != null : !value.equals( confParam.value ) )
             {
                 // Change the parameter's value
                 confParam.value = value;
+                dirty = true;
             }
         }
         
         /**
          * Writes the entire section to file.
          * 
-         * @param fw File to write to.
+         * @param writer File to write to.
          * 
          * @throws IOException if a writing error occurs.
          */
-        public void save( FileWriter fw ) throws IOException
+        public void save( Writer writer ) throws IOException
         {
+            lazyLoad();
+            if( keys != null )
+            {
+                // Comments were dropped when compacting; write the parameters alone
+                if( !TextUtils.isEmpty( name ) && !name.equals( SECTIONLESS_NAME ) )
+                    writer.write( "[" + name + "]\n" );
+                for( int i = 0; i < keys.length; i++ )
+                    writer.write( keys[i] + "=" + values[i] + "\n" );
+                return;
+            }
+            
             for( ConfigLine line : lines )
             {
                 if( line != null )
-                    line.save( fw );
+                    line.save( writer );
+            }
+        }
+    }
+    
+    /**
+     * The KeySet class is a read-only view of the parameter names of a compacted section.
+     */
+    private static class KeySet extends AbstractSet<String>
+    {
+        private final String[] keys;
+        
+        public KeySet( String[] keys )
+        {
+            this.keys = keys;
+        }
+        
+        @Override
+        public Iterator<String> iterator()
+        {
+            return new Iterator<String>()
+            {
+                private int next = 0;
+                
+                @Override
+                public boolean hasNext()
+                {
+                    return next < keys.length;
+                }
+                
+                @Override
+                public String next()
+                {
+                    if( next >= keys.length )
+                        throw new NoSuchElementException();
+                    return keys[next++];
+                }
+                
+                @Override
+                public void remove()
+                {
+                    throw new UnsupportedOperationException();
+                }
+            };
+        }
+        
+        @Override
+        public int size()
+        {
+            return keys.length;
+        }
+    }
+    
+    /**
+     * The LineScanner class steps through the lines of config file text, classifying each with a
+     * single scan of its characters. It creates no strings; the positions it finds are used to
+     * extract only the parts that are needed.
+     */
+    private static class LineScanner
+    {
+        public static final int BAD_SYNTAX = -1; // Line type that stops parsing
+        
+        private final char[] text;
+        private final int limit;
+        
+        public int type; // ConfigLine.LINE_GARBAGE, LINE_SECTION, LINE_PARAM, or BAD_SYNTAX.
+        public int lineStart; // Start of the line
+        public int lineEnd; // End of the line, excluding the line break
+        public int nextLine; // Start of the next line
+        public int start; // Start of the line without leading whitespace
+        public int end; // End of the line without trailing whitespace
+        public int equals; // Position of the first '=' in a parameter line
+        public int nameStart; // Start of the parameter name or section title
+        public int nameEnd; // End of the parameter name or section title
+        public int valueStart; // Start of the parameter value; equal to 'end' if it is empty
+        
+        /**
+         * Constructor: Scans a range of text.
+         * 
+         * @param text The text of the config file.
+         * @param offset The start of the first line to scan.
+         * @param limit The end of the range to scan.
+         */
+        public LineScanner( char[] text, int offset, int limit )
+        {
+            this.text = text;
+            this.limit = limit;
+            nextLine = offset;
+        }
+        
+        /**
+         * Advances to the next line and classifies it.
+         * 
+         * @return True if there was another line.
+         */
+        public boolean next()
+        {
+            if( nextLine >= limit )
+                return false;
+            
+            // Find the end of the line (\n, \r, or \r\n) and the start of the next one
+            lineStart = nextLine;
+            lineEnd = lineStart;
+            while( lineEnd < limit && text[lineEnd] != '\n' && text[lineEnd] != '\r' )
+                lineEnd++;
+            nextLine = lineEnd + 1;
+            if( lineEnd < limit && text[lineEnd] == '\r' && nextLine < limit && text[nextLine] == '\n' )
+                nextLine++;
+            
+            // Find the line's content without leading and trailing whitespace
+            start = lineStart;
+            end = lineEnd;
+            while( start < end && text[start] <= ' ' )
+                start++;
+            while( end > start && text[end - 1] <= ' ' )
+                end--;
+            
+            char first = start < end ? text[start] : 0;
+            if( start == end || first == '#' || first == ';'
+                    || ( first == '/' && start + 1 < end && text[start + 1] == '/' ) )
+            {
+                // A comment or blank line
+                type = ConfigLine.LINE_GARBAGE;
+                return true;
             }
+            
+            // Locate the first '=', and failing that the first '[' and ']'
+            equals = -1;
+            int open = -1;
+            int close = -1;
+            for( int i = start; i < end && equals < 0; i++ )
+            {
+                char c = text[i];
+                if( c == '=' )
+                    equals = i;
+                else if( c == '[' && open < 0 )
+                    open = i;
+                else if( c == ']' && close < 0 )
+                    close = i;
+            }
+            
+            if( equals >= 0 )
+            {
+                // This should be a "parameter=value" pair
+                if( equals == start )
+                {
+                    type = BAD_SYNTAX;
+                    return true;
+                }
+                
+                type = ConfigLine.LINE_PARAM;
+                nameStart = start;
+                nameEnd = equals;
+                while( text[nameEnd - 1] <= ' ' )
+                    nameEnd--;
+                valueStart = equals + 1;
+                while( valueStart < end && text[valueStart] <= ' ' )
+                    valueStart++;
+            }
+            else if( open >= 0 && end - start >= 3 && close > open + 1 )
+            {
+                // This should be the beginning of the next section
+                nameStart = open + 1;
+                nameEnd = close;
+                while( nameStart < nameEnd && text[nameStart] <= ' ' )
+                    nameStart++;
+                while( nameEnd > nameStart && text[nameEnd - 1] <= ' ' )
+                    nameEnd--;
+                type = nameStart < nameEnd ? ConfigLine.LINE_SECTION : BAD_SYNTAX;
+            }
+            else
+            {
+                type = BAD_SYNTAX;
+            }
+            return true;
         }
     }
     
@@ -508,14 +981,15 @@ public class ConfigFile
         public static final int LINE_PARAM = 2; // Parameter=value pair
         
         public int lineType = 0; // LINE_GARBAGE, LINE_SECTION, or LINE_PARAM.
-        public String strLine = ""; // Actual line from the config file.
+        public String strLine = ""; // Line from the config file, up to and including any '='.
         public ConfigParameter confParam = null; // Null unless this line has a parameter.
         
         /**
          * Constructor: Saves the relevant information about the line.
          * 
          * @param type The type of line.
-         * @param line The line itself.
+         * @param line The line itself, without the line break. For parameter lines, only the part
+         *            up to and including the '=', or null if that is just the parameter name.
          * @param param Config parameters pertaining to the line.
          */
         public ConfigLine( int type, String line, ConfigParameter param )
@@ -528,30 +1002,33 @@ public class ConfigFile
         /**
          * Saves the ConfigLine.
          * 
-         * @param fw The file to save the ConfigLine to.
+         * @param writer The file to save the ConfigLine to.
          * 
          * @throws IOException If a writing error occurs.
          */
-        public void save( FileWriter fw ) throws IOException
+        public void save( Writer writer ) throws IOException
         {
-            int x;
             if( lineType == LINE_PARAM )
             {
-                if( !strLine.contains( "=" ) || confParam == null )
+                if( confParam == null )
                     return; // This shouldn't happen
-                    
-                x = strLine.indexOf( '=' );
                 
-                if( x < 1 )
-                    return; // This shouldn't happen either
-                    
-                if( x < strLine.length() )
-                    fw.write( strLine.substring( 0, x + 1 ) + confParam.value + "\n" );
+                if( strLine == null )
+                {
+                    writer.write( confParam.parameter );
+                    writer.write( '=' );
+                }
+                else
+                {
+                    writer.write( strLine );
+                }
+                writer.write( String.valueOf( confParam.value ) );
             }
             else
             {
-                fw.write( strLine );
+                writer.write( strLine );
             }
+            writer.write( '\n' );
         }
     }
     
@@ -560,7 +1037,6 @@ public class ConfigFile
      */
     private static class ConfigParameter
     {
-        @SuppressWarnings( "unused" )
         public String parameter;
         public String value;
         
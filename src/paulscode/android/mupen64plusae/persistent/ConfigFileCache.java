@@ -0,0 +1,199 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.persistent;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.util.Log;
+
+/**
+ * An app-wide cache of parsed config files, so that files read in several places (skins, profiles)
+ * are only parsed once.
+ * <p>
+ * Entries are keyed by canonical path and remember the last-modified time and length of the file
+ * they were parsed from, so a file is parsed again as soon as it changes on disk. Cached files are
+ * shared and therefore read-only; callers that modify a file must use {@link #getCopy(String)},
+ * which copies the cached data instead of reading the file again. Saving a config file evicts its
+ * entry. Only a few of the most recently used files are kept.
+ * <p>
+ * All methods are thread-safe.
+ */
+public final class ConfigFileCache
+{
+    /** The maximum number of files kept in the cache. */
+    private static final int MAX_ENTRIES = 16;
+    
+    /** The cached files by canonical path, from least to most recently used. */
+    private static final LinkedHashMap<String, Entry> sEntries = new LinkedHashMap<String, Entry>( 16, 0.75f, true )
+    {
+        private static final long serialVersionUID = 1L;
+        
+        @Override
+        protected boolean removeEldestEntry( Map.Entry<String, Entry> eldest )
+        {
+            return size() > MAX_ENTRIES;
+        }
+    };
+    
+    private static int sHitCount = 0;
+    private static int sMissCount = 0;
+    
+    private ConfigFileCache()
+    {
+    }
+    
+    /**
+     * Gets a shared, read-only copy of a config file, parsing the file only if it is not cached or
+     * has changed since it was cached.
+     * 
+     * @param filename The path of the config file.
+     * 
+     * @return The parsed config file. Empty if the file does not exist.
+     * @see ConfigFile#isReadOnly()
+     */
+    public static ConfigFile get( String filename )
+    {
+        File file = new File( filename );
+        String key = getKey( file );
+        long lastModified = file.lastModified();
+        long length = file.length();
+        
+        synchronized( sEntries )
+        {
+            Entry entry = sEntries.get( key );
+            if( entry != null && entry.lastModified == lastModified && entry.length == length )
+            {
+                sHitCount++;
+                return entry.config;
+            }
+            sMissCount++;
+        }
+        
+        // Parse outside the lock so that other files can be served meanwhile
+        long start = System.nanoTime();
+        ConfigFile config = new ConfigFile( filename );
+        config.setReadOnly();
+        int hits;
+        int misses;
+        synchronized( sEntries )
+        {
+            sEntries.put( key, new Entry( config, lastModified, length ) );
+            hits = sHitCount;
+            misses = sMissCount;
+        }
+        Log.v( "ConfigFileCache", "Parse time: " + ( System.nanoTime() - start ) / 1000000 + "ms for " + filename
+                + " (" + hits + " hits, " + misses + " misses)" );
+        return config;
+    }
+    
+    /**
+     * Gets a private, modifiable copy of a config file. Changes to the copy are not seen by other
+     * callers until it is saved.
+     * 
+     * @param filename The path of the config file.
+     * 
+     * @return The parsed config file. Empty if the file does not exist.
+     */
+    public static ConfigFile getCopy( String filename )
+    {
+        return new ConfigFile( get( filename ) );
+    }
+    
+    /**
+     * Drops a config file from the cache, so that it is parsed again on next access.
+     * 
+     * @param filename The path of the config file.
+     */
+    public static void invalidate( String filename )
+    {
+        String key = getKey( new File( filename ) );
+        synchronized( sEntries )
+        {
+            sEntries.remove( key );
+        }
+    }
+    
+    /**
+     * Drops every config file from the cache.
+     */
+    public static void clear()
+    {
+        synchronized( sEntries )
+        {
+            sEntries.clear();
+        }
+    }
+    
+    /**
+     * Gets the number of requests served from the cache without parsing.
+     * 
+     * @return The number of cache hits since the process started.
+     */
+    public static int getHitCount()
+    {
+        synchronized( sEntries )
+        {
+            return sHitCount;
+        }
+    }
+    
+    /**
+     * Gets the number of requests that had to parse the file.
+     * 
+     * @return The number of cache misses since the process started.
+     */
+    public static int getMissCount()
+    {
+        synchronized( sEntries )
+        {
+            return sMissCount;
+        }
+    }
+    
+    private static String getKey( File file )
+    {
+        try
+        {
+            return file.getCanonicalPath();
+        }
+        catch( IOException e )
+        {
+            return file.getAbsolutePath();
+        }
+    }
+    
+    private static class Entry
+    {
+        public final ConfigFile config;
+        public final long lastModified;
+        public final long length;
+        
+        public Entry( ConfigFile config, long lastModified, long length )
+        {
+            this.config = config;
+            this.lastModified = lastModified;
+            this.length = length;
+        }
+    }
+}
\ No newline at end of file
@@ -177,6 +177,11 @@ public class GamePrefs
     private final SharedPreferences mPreferences;
     
     public GamePrefs( Context context, String romMd5, RomHeader header )
+    {
+        this( context, romMd5, header.name, header.countrySymbol );
+    }
+    
+    public GamePrefs( Context context, String romMd5, String headerName, String countrySymbol )
     {
         final AppData appData = new AppData( context );
         final UserPrefs userPrefs = new UserPrefs( context );
@@ -185,7 +190,7 @@ public class GamePrefs
         mPreferences = context.getSharedPreferences( sharedPrefsName, Context.MODE_PRIVATE );
         
         // Game-specific data
-        gameDataDir = String.format( "%s/GameData/%s %s %s", userPrefs.userDataDir, header.name, header.countrySymbol, romMd5 );
+        gameDataDir = String.format( "%s/GameData/%s %s %s", userPrefs.userDataDir, headerName, countrySymbol, romMd5 );
         sramDataDir = gameDataDir + "/SramData";
         autoSaveDir = gameDataDir + "/AutoSaves";
         slotSaveDir = gameDataDir + "/SlotSaves";
@@ -359,8 +364,8 @@ public class GamePrefs
     private static Profile loadProfile( SharedPreferences prefs, String key, String defaultName,
             String customPath, String builtinPath )
     {
-        final ConfigFile custom = new ConfigFile( customPath );
-        final ConfigFile builtin = new ConfigFile( builtinPath );
+        final ConfigFile custom = ConfigFileCache.get( customPath );
+        final ConfigFile builtin = ConfigFileCache.get( builtinPath );
         final String name = prefs.getString( key, defaultName );
         
         if( TextUtils.isEmpty( name ) )
@@ -378,8 +383,8 @@ public class GamePrefs
     private static ControllerProfile loadControllerProfile( SharedPreferences prefs, String key,
             String defaultName, String customPath, String builtinPath )
     {
-        final ConfigFile custom = new ConfigFile( customPath );
-        final ConfigFile builtin = new ConfigFile( builtinPath );
+        final ConfigFile custom = ConfigFileCache.get( customPath );
+        final ConfigFile builtin = ConfigFileCache.get( builtinPath );
         final String name = prefs.getString( key, defaultName );
         
         if( custom.keySet().contains( name ) )
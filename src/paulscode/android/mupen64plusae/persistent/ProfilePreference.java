@@ -81,8 +81,8 @@ public class ProfilePreference extends CompatibleListPreference
     
     public void populateProfiles( String builtinPath, String customPath, String defaultValue )
     {
-        ConfigFile configBuiltin = new ConfigFile( builtinPath );
-        ConfigFile configCustom = new ConfigFile( customPath );
+        ConfigFile configBuiltin = ConfigFileCache.get( builtinPath );
+        ConfigFile configCustom = ConfigFileCache.get( customPath );
         List<Profile> profiles = new ArrayList<Profile>();
         profiles.addAll( Profile.getProfiles( configBuiltin, true ) );
         profiles.addAll( Profile.getProfiles( configCustom, false ) );
@@ -105,9 +105,12 @@ public class UserPrefs
     /** The subdirectory where hi-res textures must be unzipped. */
     public final String hiResTextureDir;
     
-    /** The path of the rom info cache for the gallery. */
+    /** The path of the old rom info cache for the gallery, converted to the catalog on first use. */
     public final String romInfoCache_cfg;
     
+    /** The path of the rom catalog for the gallery. */
+    public final String romCatalog_dat;
+    
     /** The path of the custom controller profiles file. */
     public final String controllerProfiles_cfg;
     
@@ -284,6 +287,7 @@ public class UserPrefs
         coreUserCacheDir = userDataDir + "/CoreConfig/UserCache";
         hiResTextureDir = coreUserDataDir + "/mupen64plus/hires_texture/"; // MUST match what rice assumes natively
         romInfoCache_cfg = galleryDataDir + "/romInfoCache.cfg";
+        romCatalog_dat = galleryDataDir + "/romCatalog.dat";
         controllerProfiles_cfg = profilesDir + "/controller.cfg";
         touchscreenProfiles_cfg = profilesDir + "/touchscreen.cfg";
         emulationProfiles_cfg = profilesDir + "/emulation.cfg";
@@ -304,7 +308,7 @@ public class UserPrefs
         isTouchpadEnabled = appData.hardwareInfo.isXperiaPlay && mPreferences.getBoolean( "touchpadEnabled", true );
         isTouchpadFeedbackEnabled = mPreferences.getBoolean( "touchpadFeedback", false );
         touchpadSkin = appData.touchpadSkinsDir + "/Xperia-Play";
-        ConfigFile touchpad_cfg = new ConfigFile( appData.touchpadProfiles_cfg );
+        ConfigFile touchpad_cfg = ConfigFileCache.get( appData.touchpadProfiles_cfg );
         ConfigSection section = touchpad_cfg.get( mPreferences.getString( "touchpadLayout", "" ) );
         if( section != null )
             touchpadProfile = new Profile( true, section );
@@ -528,7 +532,7 @@ public class UserPrefs
         } );
         builder.create().show();
     }
-
+    
     public String getEmulationProfileDefault()
     {
         return getString( KEY_EMULATION_PROFILE_DEFAULT, DEFAULT_EMULATION_PROFILE_DEFAULT );
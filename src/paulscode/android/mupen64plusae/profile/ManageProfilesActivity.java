@@ -29,6 +29,7 @@ import org.mupen64plusae.v3.alpha.R;
 
 import paulscode.android.mupen64plusae.persistent.AppData;
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFileCache;
 import paulscode.android.mupen64plusae.persistent.UserPrefs;
 import paulscode.android.mupen64plusae.util.Prompt;
 import paulscode.android.mupen64plusae.util.Prompt.PromptConfirmListener;
@@ -130,10 +131,8 @@ abstract public class ManageProfilesActivity extends ListActivity
         mUserPrefs.enforceLocale( this );
         
         // Get the config files from the subclass-specified paths
-        String customPath = getConfigFilePath( false );
-        String builtinPath = getConfigFilePath( true );
-        mConfigBuiltin = new ConfigFile( builtinPath );
-        mConfigCustom = new ConfigFile( customPath );
+        mConfigBuiltin = ConfigFileCache.get( getConfigFilePath( true ) );
+        mConfigCustom = ConfigFileCache.getCopy( getConfigFilePath( false ) );
     }
     
     @Override
@@ -142,7 +141,7 @@ abstract public class ManageProfilesActivity extends ListActivity
         super.onResume();
         
         // Reload in case we're returning from an editor
-        mConfigCustom.reload();
+        mConfigCustom = ConfigFileCache.getCopy( getConfigFilePath( false ) );
         refreshList();
     }
     
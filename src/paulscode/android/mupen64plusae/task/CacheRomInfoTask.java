@@ -20,33 +20,71 @@
  */
 package paulscode.android.mupen64plusae.task;
 
-import java.io.DataInputStream;
-import java.io.DataOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
-import java.io.IOException;
-import java.net.URL;
-import java.util.ArrayList;
-import java.util.List;
-import java.util.Locale;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicBoolean;
 
-import paulscode.android.mupen64plusae.persistent.ConfigFile;
-import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.util.CoverArtDownloader;
+import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.util.RomCatalog;
 import paulscode.android.mupen64plusae.util.RomDatabase;
 import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+import paulscode.android.mupen64plusae.util.RomFileWalker;
+import paulscode.android.mupen64plusae.util.RomHeader;
+import paulscode.android.mupen64plusae.util.RomSource;
+import paulscode.android.mupen64plusae.util.RomSource.ImageInfo;
+import paulscode.android.mupen64plusae.util.ThumbnailCache;
 import android.os.AsyncTask;
 import android.text.TextUtils;
+import android.util.Log;
 
-public class CacheRomInfoTask extends AsyncTask<Void, ConfigSection, ConfigFile>
+public class CacheRomInfoTask extends AsyncTask<Void, RomCatalog.Entry, RomCatalog>
 {
     public interface CacheRomInfoListener
     {
-        public void onCacheRomInfoProgress( ConfigSection section );
+        public void onCacheRomInfoProgress( RomCatalog.Entry entry );
         
-        public void onCacheRomInfoFinished( ConfigFile file, boolean canceled );
+        public void onCacheRomInfoFinished( RomCatalog catalog, boolean canceled );
     }
     
-    public CacheRomInfoTask( File searchPath, String databasePath, String configPath, String artDir, CacheRomInfoListener listener )
+    /** The default number of threads used to hash ROM files. */
+    public static final int DEFAULT_NUM_HASHERS = Runtime.getRuntime().availableProcessors();
+    
+    /** The maximum number of files waiting to be hashed, per hashing thread. */
+    private static final int QUEUE_DEPTH_PER_HASHER = 4;
+    
+    /** How often to check for cancellation while waiting on another thread, in milliseconds. */
+    private static final long CANCEL_POLL_INTERVAL = 100;
+    
+    /** Marker placed in the queue by the producer after the last file has been dispatched. */
+    private static final Future<HashResult> END_OF_SCAN = new FutureTask<HashResult>( new Callable<HashResult>()
+    {
+        @Override
+        public HashResult call()
+        {
+            return null;
+        }
+    } );
+    
+    public CacheRomInfoTask( File searchPath, String databasePath, String catalogPath, String artDir,
+            ThumbnailCache thumbnails, CacheRomInfoListener listener )
+    {
+        this( searchPath, databasePath, catalogPath, artDir, thumbnails, DEFAULT_NUM_HASHERS, listener );
+    }
+    
+    public CacheRomInfoTask( File searchPath, String databasePath, String catalogPath, String artDir,
+            ThumbnailCache thumbnails, int numHashers, CacheRomInfoListener listener )
     {
         if( searchPath == null )
             throw new IllegalArgumentException( "Root path cannot be null" );
@@ -54,148 +92,391 @@ public class CacheRomInfoTask extends AsyncTask<Void, ConfigSection, ConfigFile>
             throw new IllegalArgumentException( "Root path does not exist: " + searchPath.getAbsolutePath() );
         if( TextUtils.isEmpty( databasePath ) )
             throw new IllegalArgumentException( "ROM database path cannot be null or empty" );
-        if( TextUtils.isEmpty( configPath ) )
-            throw new IllegalArgumentException( "Config file path cannot be null or empty" );
+        if( TextUtils.isEmpty( catalogPath ) )
+            throw new IllegalArgumentException( "Catalog path cannot be null or empty" );
         if( TextUtils.isEmpty( artDir ) )
             throw new IllegalArgumentException( "Art directory cannot be null or empty" );
+        if( thumbnails == null )
+            throw new IllegalArgumentException( "Thumbnail cache cannot be null" );
+        if( numHashers < 1 )
+            throw new IllegalArgumentException( "Number of hashing threads must be at least one" );
         if( listener == null )
             throw new IllegalArgumentException( "Listener cannot be null" );
         
         mSearchPath = searchPath;
         mDatabasePath = databasePath;
-        mConfigPath = configPath;
+        mCatalogPath = catalogPath;
         mArtDir = artDir;
+        mThumbnails = thumbnails;
+        mNumHashers = numHashers;
         mListener = listener;
     }
     
     private final File mSearchPath;
     private final String mDatabasePath;
-    private final String mConfigPath;
+    private final String mCatalogPath;
     private final String mArtDir;
+    private final ThumbnailCache mThumbnails;
+    private final int mNumHashers;
     private final CacheRomInfoListener mListener;
     
+    /**
+     * Scans the search path using a three-stage pipeline. A producer thread walks the directory
+     * tree and dispatches each ROM file to a pool of hashing threads as soon as it is found. This
+     * thread acts as the single writer: it consumes the results in discovery order, so progress is
+     * reported in the same order as a sequential scan, and it is the only thread that touches the
+     * catalog.
+     * <p>
+     * The scan is incremental. Files whose path, size, and last-modified time match an existing
+     * cache entry are not re-hashed. Once the scan completes, entries for files under the search
+     * path that were not found are pruned, as are entries for files that no longer exist anywhere;
+     * entries for other search paths are kept.
+     * <p>
+     * The scan holds the catalog's write lock throughout, so it waits for a cancelled scan or a
+     * library watcher batch that is still writing.
+     */
     @Override
-    protected ConfigFile doInBackground( Void... params )
+    protected RomCatalog doInBackground( Void... params )
     {
-        final List<File> files = getRomFiles( mSearchPath );
-        final RomDatabase database = new RomDatabase( mDatabasePath );
-        final ConfigFile config = new ConfigFile( mConfigPath );
-        config.clear();
+        RomCatalog catalog = RomCatalog.open( mCatalogPath );
         
-        for( final File file : files )
+        // Wait for any earlier scan, or a batch from the library watcher, to finish writing
+        try
         {
-            if( isCancelled() ) break;
-            String md5 = ComputeMd5Task.computeMd5( file );
-            
-            if( isCancelled() ) break;
-            RomDetail detail = database.lookupByMd5WithFallback( md5, file );
-            
-            if( isCancelled() ) break;
-            String artPath = mArtDir + "/" + detail.artName;
-            config.put( md5, "goodName", detail.goodName );
-            config.put( md5, "romPath", file.getAbsolutePath() );
-            config.put( md5, "artPath", artPath );
-            downloadFile( detail.artUrl, artPath );
-            
-            if( isCancelled() ) break;
-            this.publishProgress( config.get( md5 ) );
+            while( !RomCatalog.lockForWriting( CANCEL_POLL_INTERVAL ) )
+            {
+                if( isCancelled() )
+                    return catalog;
+            }
+        }
+        catch( InterruptedException e )
+        {
+            return catalog;
+        }
+        
+        try
+        {
+            return scan( catalog );
+        }
+        finally
+        {
+            RomCatalog.unlockForWriting();
+        }
+    }
+    
+    private RomCatalog scan( final RomCatalog catalog )
+    {
+        final Map<String, CachedRom> cachedRoms = getCachedRoms( catalog );
+        final Set<String> foundMd5s = new HashSet<String>();
+        RomDatabase database = null;
+        boolean completed = false;
+        
+        // Art is fetched, and thumbnailed, on its own threads so that hashing never waits on it
+        final CoverArtDownloader downloader = new CoverArtDownloader( mThumbnails );
+        
+        // The bounded queue keeps the producer from running too far ahead of the hashers
+        final ExecutorService hashers = Executors.newFixedThreadPool( mNumHashers );
+        final BlockingQueue<Future<HashResult>> pending = new ArrayBlockingQueue<Future<HashResult>>(
+                mNumHashers * QUEUE_DEPTH_PER_HASHER );
+        final AtomicBoolean walked = new AtomicBoolean( false );
+        
+        Thread producer = new Thread( "CacheRomInfoProducer" )
+        {
+            @Override
+            public void run()
+            {
+                boolean interrupted = false;
+                try
+                {
+                    dispatchRomFiles( mSearchPath, cachedRoms, hashers, pending );
+                    walked.set( true );
+                }
+                catch( InterruptedException e )
+                {
+                    // Writer has quit; nobody is waiting for the end marker
+                    interrupted = true;
+                }
+                catch( RuntimeException e )
+                {
+                    Log.e( "CacheRomInfoTask", "ROM scan failed", e );
+                }
+                finally
+                {
+                    // Always end the scan, even if the walk failed, so the writer is not left waiting
+                    if( !interrupted )
+                    {
+                        try
+                        {
+                            pending.put( END_OF_SCAN );
+                        }
+                        catch( InterruptedException ignored )
+                        {
+                        }
+                    }
+                }
+            }
+        };
+        producer.start();
+        
+        try
+        {
+            while( !isCancelled() )
+            {
+                Future<HashResult> future = pending.take();
+                if( future == END_OF_SCAN )
+                {
+                    // Let the remaining art arrive before the gallery is refreshed, unless cancelled
+                    boolean idle = false;
+                    while( !idle && !isCancelled() )
+                        idle = downloader.awaitIdle( CANCEL_POLL_INTERVAL );
+                    
+                    // A walk cut short by cancellation or failure must not prune the cache
+                    completed = !isCancelled() && walked.get();
+                    break;
+                }
+                
+                HashResult result;
+                try
+                {
+                    result = future.get();
+                }
+                catch( ExecutionException e )
+                {
+                    Log.w( "CacheRomInfoTask", "Failed to hash ROM file", e.getCause() );
+                    continue;
+                }
+                
+                if( isCancelled() ) break;
+                if( result.md5 == null ) continue;
+                foundMd5s.add( result.md5 );
+                if( isOtherCopy( catalog, result.md5, result.file ) ) continue;
+                
+                // Unchanged files keep their existing cache entry, but may still need a thumbnail;
+                // entries imported without the ROM header fields are looked up again
+                RomCatalog.Entry cached = result.isCached ? catalog.get( result.md5 ) : null;
+                if( cached != null && cached.hasHeader() )
+                {
+                    if( !ThumbnailCache.isCurrent( cached.artPath ) )
+                        downloader.enqueue( null, cached.artPath );
+                    continue;
+                }
+                
+                // Only pay for parsing the database if something actually changed
+                if( database == null )
+                    database = RomDatabase.getInstance( mDatabasePath );
+                RomDetail detail = database.lookupByMd5WithFallback( result.md5, result.file, result.header );
+                
+                if( isCancelled() ) break;
+                RomCatalog.Entry entry = cacheRom( catalog, detail, result.header, mArtDir, result.file,
+                        result.size, result.lastModified, result.md5, downloader );
+                
+                if( isCancelled() ) break;
+                this.publishProgress( entry );
+            }
+        }
+        catch( InterruptedException e )
+        {
+            Log.w( "CacheRomInfoTask", "ROM scan interrupted" );
+        }
+        finally
+        {
+            producer.interrupt();
+            hashers.shutdownNow();
+            downloader.shutdownNow();
+        }
+        
+        // Prune entries for ROMs that were deleted from the search path, or from anywhere else
+        if( completed )
+        {
+            String searchPath = mSearchPath.getAbsolutePath();
+            for( RomCatalog.Entry entry : catalog.getAll() )
+            {
+                if( foundMd5s.contains( entry.md5 ) )
+                    continue;
+                
+                if( entry.romPath == null || FileUtil.isSameOrDescendant( entry.romPath, searchPath )
+                        || !new File( entry.romPath ).exists() )
+                    catalog.remove( entry.md5 );
+            }
+        }
+        
+        // Updates were appended as they were made; fold them in once they add up
+        catalog.close();
+        catalog.compactIfNeeded();
+        return catalog;
+    }
+    
+    /**
+     * Records a ROM in the catalog and queues its cover art for download.
+     * 
+     * @param catalog The ROM catalog.
+     * @param detail The database details of the ROM.
+     * @param header The header of the ROM, or null to read it from the file.
+     * @param artDir The directory where cover art is stored.
+     * @param file The ROM file.
+     * @param size The size of the ROM file, in bytes.
+     * @param lastModified The last-modified time of the ROM file.
+     * @param md5 The MD5 hash of the ROM image.
+     * @param downloader The downloader used to fetch cover art.
+     * 
+     * @return The catalog entry for the ROM.
+     */
+    static RomCatalog.Entry cacheRom( RomCatalog catalog, RomDetail detail, RomHeader header, String artDir,
+            File file, long size, long lastModified, String md5, CoverArtDownloader downloader )
+    {
+        // Store the header fields too, so the play menu never has to open the ROM
+        if( header == null )
+            header = new RomHeader( file );
+        String artPath = artDir + "/" + detail.artName;
+        RomCatalog.Entry entry = new RomCatalog.Entry( md5, file, size, lastModified, artPath, detail, header );
+        catalog.put( entry );
+        downloader.enqueue( detail.artUrl, artPath );
+        return entry;
+    }
+    
+    /**
+     * Tells whether a ROM file is a copy of one that the catalog already records under another
+     * path. Copies share a single entry, which stays with the copy recorded first so that it does
+     * not switch between them on every scan.
+     * 
+     * @param catalog The ROM catalog.
+     * @param md5 The MD5 hash of the ROM image.
+     * @param file The ROM file.
+     * 
+     * @return True if the entry for the image belongs to another file that still exists.
+     */
+    static boolean isOtherCopy( RomCatalog catalog, String md5, File file )
+    {
+        RomCatalog.Entry entry = catalog.get( md5 );
+        return entry != null && !TextUtils.isEmpty( entry.romPath )
+                && !entry.romPath.equals( file.getAbsolutePath() ) && new File( entry.romPath ).exists();
+    }
+    
+    private static Map<String, CachedRom> getCachedRoms( RomCatalog catalog )
+    {
+        // Snapshot the catalog so that the producer never reads it while it is being written
+        Map<String, CachedRom> result = new HashMap<String, CachedRom>();
+        for( RomCatalog.Entry entry : catalog.getAll() )
+        {
+            if( !TextUtils.isEmpty( entry.romPath ) )
+                result.put( entry.romPath, new CachedRom( entry.md5, entry.romSize, entry.romModified ) );
         }
-        config.save();
-        return config;
+        return result;
     }
     
     @Override
-    protected void onProgressUpdate( ConfigSection... values )
+    protected void onProgressUpdate( RomCatalog.Entry... values )
     {
         mListener.onCacheRomInfoProgress( values[0] );
     }
     
     @Override
-    protected void onPostExecute( ConfigFile result )
+    protected void onPostExecute( RomCatalog result )
     {
         mListener.onCacheRomInfoFinished( result, false );
     }
     
     @Override
-    protected void onCancelled( ConfigFile result )
+    protected void onCancelled( RomCatalog result )
     {
         mListener.onCacheRomInfoFinished( result, true );
     }
     
-    private List<File> getRomFiles( File searchPath )
+    private void dispatchRomFiles( File searchPath, final Map<String, CachedRom> cachedRoms,
+            final ExecutorService hashers, final BlockingQueue<Future<HashResult>> pending )
+            throws InterruptedException
     {
-        List<File> result = new ArrayList<File>();
-        if( searchPath.isDirectory() )
+        // Each file is handed to the hashers as soon as it is found, not after the walk ends
+        new RomFileWalker().walk( searchPath, new RomFileWalker.Visitor()
         {
-            for( File file : searchPath.listFiles() )
+            @Override
+            public boolean onRomFile( File file ) throws InterruptedException
             {
-                if( isCancelled() ) break;
-                result.addAll( getRomFiles( file ) );
+                if( isCancelled() )
+                    return false;
+                pending.put( dispatchRomFile( file, cachedRoms, hashers ) );
+                return true;
             }
-        }
-        else
+        } );
+    }
+    
+    private Future<HashResult> dispatchRomFile( File file, Map<String, CachedRom> cachedRoms, ExecutorService hashers )
+    {
+        long size = file.length();
+        long lastModified = file.lastModified();
+        
+        // Reuse the cached hash if the file does not appear to have changed
+        CachedRom cached = cachedRoms.get( file.getAbsolutePath() );
+        if( cached != null && cached.size == size && cached.lastModified == lastModified )
         {
-            String name = searchPath.getName().toLowerCase( Locale.US );
-            if( name.matches( ".*\\.(n64|v64|z64|zip)$" ) )
-                result.add( searchPath );
+            FutureTask<HashResult> done = new FutureTask<HashResult>( new HashJob( file, size, lastModified, cached.md5 ) );
+            done.run();
+            return done;
         }
-        return result;
+        
+        return hashers.submit( new HashJob( file, size, lastModified, null ) );
     }
     
-    private Throwable downloadFile( String sourceUrl, String destPath )
+    private class HashJob implements Callable<HashResult>
     {
-        // Be sure destination directory exists
-        new File( destPath ).getParentFile().mkdirs();
+        private final File mFile;
+        private final long mSize;
+        private final long mLastModified;
+        private final String mCachedMd5;
         
-        // Download file
-        URL url = null;
-        DataInputStream input = null;
-        FileOutputStream fos = null;
-        DataOutputStream output = null;
-        try
+        public HashJob( File file, long size, long lastModified, String cachedMd5 )
+        {
+            mFile = file;
+            mSize = size;
+            mLastModified = lastModified;
+            mCachedMd5 = cachedMd5;
+        }
+        
+        @Override
+        public HashResult call()
         {
-            url = new URL( sourceUrl );
-            input = new DataInputStream( url.openStream() );
-            fos = new FileOutputStream( destPath );
-            output = new DataOutputStream( fos );
+            if( mCachedMd5 != null )
+                return new HashResult( mFile, mSize, mLastModified, mCachedMd5, null, true );
             
-            int contentLength = url.openConnection().getContentLength();
-            byte[] buffer = new byte[contentLength];
-            input.readFully( buffer );
-            output.write( buffer );
-            output.flush();
+            // Don't bother hashing if the scan has been abandoned
+            ImageInfo info = isCancelled() ? null : RomSource.scan( mFile );
+            if( info == null )
+                return new HashResult( mFile, mSize, mLastModified, null, null, false );
+            return new HashResult( mFile, mSize, mLastModified, info.md5, info.header, false );
         }
-        catch( Throwable error )
+    }
+    
+    private static class HashResult
+    {
+        public final File file;
+        public final long size;
+        public final long lastModified;
+        public final String md5;
+        public final RomHeader header;
+        public final boolean isCached;
+        
+        public HashResult( File file, long size, long lastModified, String md5, RomHeader header, boolean isCached )
         {
-            return error;
+            this.file = file;
+            this.size = size;
+            this.lastModified = lastModified;
+            this.md5 = md5;
+            this.header = header;
+            this.isCached = isCached;
         }
-        finally
+    }
+    
+    private static class CachedRom
+    {
+        public final String md5;
+        public final long size;
+        public final long lastModified;
+        
+        public CachedRom( String md5, long size, long lastModified )
         {
-            if( output != null )
-                try
-                {
-                    output.close();
-                }
-                catch( IOException ignored )
-                {
-                }
-            if( fos != null )
-                try
-                {
-                    fos.close();
-                }
-                catch( IOException ignored )
-                {
-                }
-            if( input != null )
-                try
-                {
-                    input.close();
-                }
-                catch( IOException ignored )
-                {
-                }
+            this.md5 = md5;
+            this.size = size;
+            this.lastModified = lastModified;
         }
-        return null;
     }
 }
\ No newline at end of file
@@ -21,11 +21,8 @@
 package paulscode.android.mupen64plusae.task;
 
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.InputStream;
-import java.security.MessageDigest;
-import java.util.Locale;
 
+import paulscode.android.mupen64plusae.util.RomSource;
 import android.os.AsyncTask;
 
 public class ComputeMd5Task extends AsyncTask<Void, Void, String>
@@ -65,47 +62,6 @@ public class ComputeMd5Task extends AsyncTask<Void, Void, String>
     
     public static String computeMd5( File file )
     {
-        // From http://stackoverflow.com/a/16938703
-        InputStream inputStream = null;
-        try
-        {
-            inputStream = new FileInputStream( file );
-            MessageDigest digester = MessageDigest.getInstance( "MD5" );
-            byte[] bytes = new byte[8192];
-            int byteCount;
-            while( ( byteCount = inputStream.read( bytes ) ) > 0 )
-            {
-                digester.update( bytes, 0, byteCount );
-            }
-            return convertHashToString( digester.digest() );
-        }
-        catch( Exception e )
-        {
-            return null;
-        }
-        finally
-        {
-            if( inputStream != null )
-            {
-                try
-                {
-                    inputStream.close();
-                }
-                catch( Exception e )
-                {
-                }
-            }
-        }
-    }
-    
-    private static String convertHashToString( byte[] md5Bytes )
-    {
-        // From http://stackoverflow.com/a/16938703
-        String returnVal = "";
-        for( int i = 0; i < md5Bytes.length; i++ )
-        {
-            returnVal += Integer.toString( ( md5Bytes[i] & 0xff ) + 0x100, 16 ).substring( 1 );
-        }
-        return returnVal.toUpperCase( Locale.US );
+        return RomSource.computeMd5( file );
     }
 }
\ No newline at end of file
@@ -23,33 +23,62 @@
  */
 package paulscode.android.mupen64plusae.task;
 
+import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.InputStreamReader;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import paulscode.android.mupen64plusae.util.FileUtil;
+import android.content.res.AssetFileDescriptor;
 import android.content.res.AssetManager;
 import android.os.AsyncTask;
 import android.text.TextUtils;
 import android.util.Log;
 
+/**
+ * Extracts a directory of assets to disk, writing only the files that are missing or have changed.
+ * <p>
+ * The files to extract are listed in a manifest shipped next to the asset directory (e.g.
+ * mupen64plus_data.manifest, generated by tools/make-asset-manifest.sh) giving the hash and size of
+ * each file. A copy of the manifest is kept in the destination directory once every file has been
+ * extracted; a file is skipped if its entry matches that copy and the file on disk has the expected
+ * size. Files no longer listed are deleted. Files are extracted in parallel. If the manifest is
+ * missing, every asset in the directory is extracted.
+ */
 public class ExtractAssetsTask extends AsyncTask<Void, String, List<ExtractAssetsTask.Failure>>
 {
     public interface ExtractAssetsListener
     {
-        public void onExtractAssetsProgress( String nextFileToExtract );
+        public void onExtractAssetsProgress( String nextFileToExtract, int totalFiles );
         public void onExtractAssetsFinished( List<Failure> failures );
     }
     
+    /** The name of the copy of the manifest kept in the destination directory. */
+    private static final String INSTALLED_MANIFEST = ".assets.manifest";
+    
+    /** The number of files extracted at once. */
+    private static final int THREAD_COUNT = 4;
+    
+    /** The size of the buffer used to copy each file. */
+    private static final int BUFFER_SIZE = 64 * 1024;
+    
     public ExtractAssetsTask( AssetManager assetManager, String srcPath, String dstPath, ExtractAssetsListener listener )
     {
         if (assetManager == null )
@@ -62,7 +91,7 @@ public class ExtractAssetsTask extends AsyncTask<Void, String, List<ExtractAsset
             throw new IllegalArgumentException( "Listener cannot be null" );
         
         mAssetManager = assetManager;
-        mSrcPath = srcPath;
+        mSrcPath = srcPath.startsWith( "/" ) ? srcPath.substring( 1 ) : srcPath;
         mDstPath = dstPath;
         mListener = listener;
     }
@@ -71,17 +100,18 @@ public class ExtractAssetsTask extends AsyncTask<Void, String, List<ExtractAsset
     private final String mSrcPath;
     private final String mDstPath;
     private final ExtractAssetsListener mListener;
+    private volatile int mTotalFiles = 0;
     
     @Override
     protected List<Failure> doInBackground( Void... params )
     {
-        return extractAssets( mSrcPath, mDstPath );
+        return extractAssets();
     }
     
     @Override
     protected void onProgressUpdate( String... values )
     {
-        mListener.onExtractAssetsProgress( values[0] );
+        mListener.onExtractAssetsProgress( values[0], mTotalFiles );
     }
     
     @Override
@@ -132,108 +162,230 @@ public class ExtractAssetsTask extends AsyncTask<Void, String, List<ExtractAsset
         }
     }
     
-    private List<Failure> extractAssets( String srcPath, String dstPath )
+    private List<Failure> extractAssets()
     {
-        final List<Failure> failures = new ArrayList<Failure>();
+        final List<Failure> failures = Collections.synchronizedList( new ArrayList<Failure>() );
+        String manifestPath = mSrcPath + ".manifest";
+        File installedManifest = new File( mDstPath, INSTALLED_MANIFEST );
         
-        if( srcPath.startsWith( "/" ) )
-            srcPath = srcPath.substring( 1 );
+        // Compare the files to extract with what was last extracted
+        Map<String, ManifestEntry> entries = readManifest( mAssetManager, manifestPath );
+        boolean hasManifest = entries != null;
+        if( !hasManifest )
+        {
+            Log.w( "ExtractAssetsTask", "Asset manifest not found, extracting all assets" );
+            entries = new LinkedHashMap<String, ManifestEntry>();
+            listAssets( mAssetManager, mSrcPath, "", entries );
+        }
         
-        String[] srcSubPaths = getAssetList( mAssetManager, srcPath );
+        // Installs from before the manifest, or whose last extraction failed, may hold files that
+        // no longer ship; start them over from an empty folder, as every extraction used to
+        if( !installedManifest.exists() )
+            FileUtil.deleteFolder( new File( mDstPath ) );
+        Map<String, ManifestEntry> installed = readManifest( installedManifest );
         
-        if( srcSubPaths.length > 0 )
+        List<ManifestEntry> changed = new ArrayList<ManifestEntry>();
+        for( ManifestEntry entry : entries.values() )
         {
-            // srcPath is a directory
-            
-            // Ensure the parent directories exist
-            new File( dstPath ).mkdirs();
-            
-            // Some files are too big for Android 2.2 and below, so we break them into parts.
-            // We use a simple naming scheme where we just append .part0, .part1, etc.
-            Pattern pattern = Pattern.compile( "(.+)\\.part(\\d+)$" );
-            HashMap<String, Integer> fileParts = new HashMap<String, Integer>();
-            
-            // Recurse into each subdirectory
-            for( String srcSubPath : srcSubPaths )
+            ManifestEntry previous = installed.get( entry.path );
+            File file = new File( mDstPath, entry.path );
+            if( entry.md5 == null || !entry.equals( previous ) || file.length() != entry.size )
+                changed.add( entry );
+        }
+        for( ManifestEntry previous : installed.values() )
+        {
+            if( !entries.containsKey( previous.path ) )
+                new File( mDstPath, previous.path ).delete();
+        }
+        
+        // Forget what was extracted until everything is extracted again
+        new File( mDstPath ).mkdirs();
+        installedManifest.delete();
+        mTotalFiles = changed.size();
+        
+        // Extract the files in parallel, since most are small and the time goes in opening them
+        ExecutorService executor = Executors.newFixedThreadPool( THREAD_COUNT );
+        try
+        {
+            List<Future<?>> futures = new ArrayList<Future<?>>();
+            for( final ManifestEntry entry : changed )
+            {
+                futures.add( executor.submit( new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        failures.addAll( extractEntry( entry ) );
+                    }
+                } ) );
+            }
+            for( Future<?> future : futures )
+                future.get();
+        }
+        catch( InterruptedException e )
+        {
+            Thread.currentThread().interrupt();
+            failures.add( new Failure( mSrcPath, mDstPath, Failure.Reason.ASSET_IO_EXCEPTION ) );
+        }
+        catch( ExecutionException e )
+        {
+            Log.e( "ExtractAssetsTask", "Extraction failed: " + e.getCause() );
+            failures.add( new Failure( mSrcPath, mDstPath, Failure.Reason.ASSET_IO_EXCEPTION ) );
+        }
+        finally
+        {
+            executor.shutdownNow();
+        }
+        
+        // Record what was extracted, so that it is skipped next time
+        if( failures.isEmpty() && hasManifest )
+            failures.addAll( extractFile( new String[] { manifestPath }, installedManifest.getPath() ) );
+        
+        return failures;
+    }
+    
+    private List<Failure> extractEntry( ManifestEntry entry )
+    {
+        String srcPath = mSrcPath + "/" + entry.path;
+        String dstPath = mDstPath + "/" + entry.path;
+        
+        // Call the progress listener before extracting
+        publishProgress( dstPath );
+        new File( dstPath ).getParentFile().mkdirs();
+        if( entry.parts == 0 )
+            return extractFile( new String[] { srcPath }, dstPath );
+        
+        // Some files are too big for Android 2.2 and below, so we break them into parts.
+        // We use a simple naming scheme where we just append .part0, .part1, etc.
+        String[] srcPaths = new String[entry.parts];
+        for( int i = 0; i < entry.parts; i++ )
+            srcPaths[i] = srcPath + ".part" + i;
+        return extractFile( srcPaths, dstPath );
+    }
+    
+    /**
+     * Extracts one or more assets, one after another, into a single file. Split files are thus
+     * joined as they are extracted, without writing the parts to disk.
+     */
+    private List<Failure> extractFile( String[] srcPaths, String dstPath )
+    {
+        List<Failure> failures = new ArrayList<Failure>();
+        String srcPath = srcPaths[0];
+        FileOutputStream out = null;
+        try
+        {
+            out = new FileOutputStream( dstPath );
+            for( int i = 0; i < srcPaths.length && failures.isEmpty(); i++ )
             {
-                Matcher matcher = pattern.matcher( srcSubPath );
-                if( matcher.matches() )
+                srcPath = srcPaths[i];
+                failures.addAll( copyAsset( srcPath, dstPath, out ) );
+            }
+        }
+        catch( FileNotFoundException e )
+        {
+            Failure failure = new Failure( srcPath, dstPath, Failure.Reason.FILE_UNWRITABLE );
+            Log.e( "ExtractAssetsTask", failure.toString() );
+            failures.add( failure );
+        }
+        finally
+        {
+            if( out != null )
+            {
+                try
                 {
-                    String name = matcher.group(1);
-                    if( fileParts.containsKey( name ) )
-                        fileParts.put( name, fileParts.get( name ) + 1 );
-                    else
-                        fileParts.put( name, 1 );
+                    out.close();
+                }
+                catch( IOException e )
+                {
+                    Failure failure = new Failure( srcPath, dstPath, Failure.Reason.FILE_UNCLOSABLE );
+                    Log.e( "ExtractAssetsTask", failure.toString() );
+                    failures.add( failure );
                 }
-                String suffix = "/" + srcSubPath;
-                failures.addAll( extractAssets( srcPath + suffix, dstPath + suffix ) );
             }
-            
-            // Combine the large broken files, if any
-            combineFileParts( fileParts, dstPath );
         }
-        else // srcPath is a file.
+        
+        return failures;
+    }
+    
+    private List<Failure> copyAsset( String srcPath, String dstPath, FileOutputStream out )
+    {
+        List<Failure> failures = new ArrayList<Failure>();
+        
+        // Assets stored uncompressed can be copied straight from the APK by the kernel; compressed
+        // assets have no file descriptor, and are read through a stream instead
+        AssetFileDescriptor descriptor = null;
+        try
+        {
+            descriptor = mAssetManager.openFd( srcPath );
+        }
+        catch( IOException ignored )
         {
-            // Call the progress listener before extracting
-            publishProgress( dstPath );
-            
-            // IO objects, initialize null to eliminate lint error
-            OutputStream out = null;
-            InputStream in = null;
-            
-            // Extract the file
-            try
+        }
+        
+        // IO objects, initialize null to eliminate lint error
+        InputStream in = null;
+        
+        // Extract the file
+        try
+        {
+            if( descriptor != null && descriptor.getLength() >= 0 )
+            {
+                FileInputStream fileIn = descriptor.createInputStream();
+                in = fileIn;
+                FileChannel channel = fileIn.getChannel();
+                long position = descriptor.getStartOffset();
+                long remaining = descriptor.getLength();
+                while( remaining > 0 )
+                {
+                    long copied = channel.transferTo( position, remaining, out.getChannel() );
+                    if( copied <= 0 )
+                        throw new IOException( "Unexpected end of asset " + srcPath );
+                    position += copied;
+                    remaining -= copied;
+                }
+            }
+            else
             {
-                out = new FileOutputStream( dstPath );
                 in = mAssetManager.open( srcPath );
-                byte[] buffer = new byte[1024];
+                byte[] buffer = new byte[BUFFER_SIZE];
                 int read;
                 
                 while( ( read = in.read( buffer ) ) != -1 )
                 {
                     out.write( buffer, 0, read );
                 }
-                out.flush();
             }
-            catch( FileNotFoundException e )
-            {
-                Failure failure = new Failure( srcPath, dstPath, Failure.Reason.FILE_UNWRITABLE ); 
-                Log.e( "ExtractAssetsTask", failure.toString() );
-                failures.add( failure );
-            }
-            catch( IOException e )
+        }
+        catch( IOException e )
+        {
+            Failure failure = new Failure( srcPath, dstPath, Failure.Reason.ASSET_IO_EXCEPTION );
+            Log.e( "ExtractAssetsTask", failure.toString() );
+            failures.add( failure );
+        }
+        finally
+        {
+            if( in != null )
             {
-                Failure failure = new Failure( srcPath, dstPath, Failure.Reason.ASSET_IO_EXCEPTION ); 
-                Log.e( "ExtractAssetsTask", failure.toString() );
-                failures.add( failure );
+                try
+                {
+                    in.close();
+                }
+                catch( IOException e )
+                {
+                    Failure failure = new Failure( srcPath, dstPath, Failure.Reason.ASSET_UNCLOSABLE );
+                    Log.e( "ExtractAssetsTask", failure.toString() );
+                    failures.add( failure );
+                }
             }
-            finally
+            if( descriptor != null )
             {
-                if( out != null )
+                try
                 {
-                    try
-                    {
-                        out.close();
-                    }
-                    catch( IOException e )
-                    {
-                        Failure failure = new Failure( srcPath, dstPath, Failure.Reason.FILE_UNCLOSABLE ); 
-                        Log.e( "ExtractAssetsTask", failure.toString() );
-                        failures.add( failure );
-                    }
+                    descriptor.close();
                 }
-                if( in != null )
+                catch( IOException ignored )
                 {
-                    try
-                    {
-                        in.close();
-                    }
-                    catch( IOException e )
-                    {
-                        Failure failure = new Failure( srcPath, dstPath, Failure.Reason.ASSET_UNCLOSABLE ); 
-                        Log.e( "ExtractAssetsTask", failure.toString() );
-                        failures.add( failure );
-                    }
+                    // Already closed along with the stream
                 }
             }
         }
@@ -241,96 +393,152 @@ public class ExtractAssetsTask extends AsyncTask<Void, String, List<ExtractAsset
         return failures;
     }
     
-    private static String[] getAssetList( AssetManager assetManager, String srcPath )
+    /**
+     * Lists every file in an asset directory, for when there is no manifest. Split files are
+     * listed once, under their combined name, and without a hash so that they are always
+     * extracted.
+     */
+    private static void listAssets( AssetManager assetManager, String srcPath, String relativePath,
+            Map<String, ManifestEntry> entries )
     {
-        String[] srcSubPaths = null;
+        String[] srcSubPaths = getAssetList( assetManager, srcPath );
+        if( srcSubPaths == null || srcSubPaths.length == 0 )
+        {
+            // srcPath is a file
+            entries.put( relativePath, new ManifestEntry( relativePath, null, -1, 0 ) );
+            return;
+        }
         
+        Pattern pattern = Pattern.compile( "(.+)\\.part(\\d+)$" );
+        HashMap<String, Integer> fileParts = new HashMap<String, Integer>();
+        String prefix = relativePath.length() == 0 ? "" : relativePath + "/";
+        for( String srcSubPath : srcSubPaths )
+        {
+            Matcher matcher = pattern.matcher( srcSubPath );
+            if( matcher.matches() )
+            {
+                String name = matcher.group( 1 );
+                if( fileParts.containsKey( name ) )
+                    fileParts.put( name, fileParts.get( name ) + 1 );
+                else
+                    fileParts.put( name, 1 );
+            }
+            else
+            {
+                listAssets( assetManager, srcPath + "/" + srcSubPath, prefix + srcSubPath, entries );
+            }
+        }
+        for( String name : fileParts.keySet() )
+            entries.put( prefix + name, new ManifestEntry( prefix + name, null, -1, fileParts.get( name ) ) );
+    }
+    
+    private static Map<String, ManifestEntry> readManifest( AssetManager assetManager, String path )
+    {
         try
         {
-            srcSubPaths = assetManager.list( srcPath );
+            return readManifest( assetManager.open( path ) );
         }
         catch( IOException e )
         {
-            Log.w( "ExtractAssetsTask", "Failed to get asset file list." );
+            return null;
         }
-        
-        return srcSubPaths;
     }
-
-    private static List<Failure> combineFileParts( Map<String, Integer> filePieces, String dstPath )
+    
+    private static Map<String, ManifestEntry> readManifest( File file )
     {
-        List<Failure> failures = new ArrayList<Failure>();
-        for (String name : filePieces.keySet() )
+        try
         {
-            String src = null;
-            String dst = dstPath + "/" + name;
-            OutputStream out = null;
-            InputStream in = null;
-            try
+            return readManifest( new FileInputStream( file ) );
+        }
+        catch( IOException e )
+        {
+            return new HashMap<String, ManifestEntry>();
+        }
+    }
+    
+    /**
+     * Reads a manifest, one file per line: MD5 hash, size in bytes, number of parts (0 if the
+     * file is not split), and path relative to the asset directory, separated by spaces.
+     */
+    private static Map<String, ManifestEntry> readManifest( InputStream stream ) throws IOException
+    {
+        Map<String, ManifestEntry> entries = new LinkedHashMap<String, ManifestEntry>();
+        BufferedReader reader = new BufferedReader( new InputStreamReader( stream ) );
+        try
+        {
+            String line;
+            while( ( line = reader.readLine() ) != null )
             {
-                out = new FileOutputStream( dst );
-                byte[] buffer = new byte[1024];
-                int read;
-                for( int i = 0; i < filePieces.get( name ); i++ )
+                String[] fields = line.split( " ", 4 );
+                if( fields.length < 4 )
+                    continue;
+                
+                try
                 {
-                    src = dst + ".part" + i;
-                    try
-                    {
-                        in = new FileInputStream( src );
-                        while( ( read = in.read( buffer ) ) != -1 )
-                        {
-                            out.write( buffer, 0, read );
-                        }
-                        out.flush();
-                    }
-                    catch( IOException e )
-                    {
-                        Failure failure = new Failure( src, dst, Failure.Reason.FILE_IO_EXCEPTION ); 
-                        Log.e( "ExtractAssetsTask", failure.toString() );
-                        failures.add( failure );
-                    }
-                    finally
-                    {
-                        if( in != null )
-                        {
-                            try
-                            {
-                                in.close();
-                                new File( src ).delete();
-                            }
-                            catch( IOException e )
-                            {
-                                Failure failure = new Failure( src, dst, Failure.Reason.FILE_UNCLOSABLE ); 
-                                Log.e( "ExtractAssetsTask", failure.toString() );
-                                failures.add( failure );
-                            }
-                        }
-                    }
+                    ManifestEntry entry = new ManifestEntry( fields[3], fields[0],
+                            Long.parseLong( fields[1] ), Integer.parseInt( fields[2] ) );
+                    entries.put( entry.path, entry );
                 }
-            }
-            catch( FileNotFoundException e )
-            {
-                Failure failure = new Failure( src, dst, Failure.Reason.FILE_UNWRITABLE ); 
-                Log.e( "ExtractAssetsTask", failure.toString() );
-                failures.add( failure );
-            }
-            finally
-            {
-                if( out != null )
+                catch( NumberFormatException e )
                 {
-                    try
-                    {
-                        out.close();
-                    }
-                    catch( IOException e )
-                    {
-                        Failure failure = new Failure( src, dst, Failure.Reason.FILE_UNCLOSABLE ); 
-                        Log.e( "ExtractAssetsTask", failure.toString() );
-                        failures.add( failure );
-                    }
+                    Log.w( "ExtractAssetsTask", "Invalid manifest line: " + line );
                 }
             }
         }
-        return failures;
+        finally
+        {
+            reader.close();
+        }
+        return entries;
+    }
+    
+    private static String[] getAssetList( AssetManager assetManager, String srcPath )
+    {
+        String[] srcSubPaths = null;
+        
+        try
+        {
+            srcSubPaths = assetManager.list( srcPath );
+        }
+        catch( IOException e )
+        {
+            Log.w( "ExtractAssetsTask", "Failed to get asset file list." );
+        }
+        
+        return srcSubPaths;
+    }
+    
+    /** A file listed in an asset manifest. */
+    private static final class ManifestEntry
+    {
+        public final String path;
+        public final String md5;
+        public final long size;
+        public final int parts;
+        
+        public ManifestEntry( String path, String md5, long size, int parts )
+        {
+            this.path = path;
+            this.md5 = md5;
+            this.size = size;
+            this.parts = parts;
+        }
+        
+        @Override
+        public boolean equals( Object o )
+        {
+            if( !( o instanceof ManifestEntry ) )
+                return false;
+            
+            ManifestEntry other = (ManifestEntry) o;
+            return path.equals( other.path ) && TextUtils.equals( md5, other.md5 ) && size == other.size
+                    && parts == other.parts;
+        }
+        
+        @Override
+        public int hashCode()
+        {
+            return path.hashCode();
+        }
     }
-}
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
+import paulscode.android.mupen64plusae.cheat.CheatStore;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+
+/**
+ * Looks up the cheats for a ROM in the background, for when the cheat index is stale and would
+ * otherwise be compiled on the UI thread.
+ */
+public class LoadCheatsTask extends AsyncTask<Void, Void, CheatSection>
+{
+    public interface LoadCheatsListener
+    {
+        public void onLoadCheatsFinished( String crc, CheatSection section );
+    }
+    
+    public LoadCheatsTask( String cheatPath, String crc, LoadCheatsListener listener )
+    {
+        if( TextUtils.isEmpty( cheatPath ) )
+            throw new IllegalArgumentException( "Cheat path cannot be null or empty" );
+        if( TextUtils.isEmpty( crc ) )
+            throw new IllegalArgumentException( "CRC cannot be null or empty" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mCheatPath = cheatPath;
+        mCrc = crc;
+        mListener = listener;
+    }
+    
+    private final String mCheatPath;
+    private final String mCrc;
+    private final LoadCheatsListener mListener;
+    
+    @Override
+    protected CheatSection doInBackground( Void... params )
+    {
+        return CheatStore.lookup( mCheatPath, mCrc );
+    }
+    
+    @Override
+    protected void onPostExecute( CheatSection result )
+    {
+        mListener.onLoadCheatsFinished( mCrc, result );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,79 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import paulscode.android.mupen64plusae.cheat.CheatStore;
+import paulscode.android.mupen64plusae.cheat.CheatUtils;
+import paulscode.android.mupen64plusae.cheat.CheatUtils.MergeStats;
+import android.os.AsyncTask;
+import android.text.TextUtils;
+
+/**
+ * Merges the user cheats into the default cheats in the background, then compiles the indices used
+ * to load the cheats for a single ROM. Does little more than check timestamps if neither file has
+ * changed since the last merge.
+ */
+public class MergeCheatsTask extends AsyncTask<Void, Void, MergeStats>
+{
+    public interface MergeCheatsListener
+    {
+        public void onMergeCheatsFinished( MergeStats stats );
+    }
+    
+    public MergeCheatsTask( String defaultPath, String userPath, String volatilePath, MergeCheatsListener listener )
+    {
+        if( TextUtils.isEmpty( defaultPath ) )
+            throw new IllegalArgumentException( "Default path cannot be null or empty" );
+        if( TextUtils.isEmpty( userPath ) )
+            throw new IllegalArgumentException( "User path cannot be null or empty" );
+        if( TextUtils.isEmpty( volatilePath ) )
+            throw new IllegalArgumentException( "Volatile path cannot be null or empty" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mDefaultPath = defaultPath;
+        mUserPath = userPath;
+        mVolatilePath = volatilePath;
+        mListener = listener;
+    }
+    
+    private final String mDefaultPath;
+    private final String mUserPath;
+    private final String mVolatilePath;
+    private final MergeCheatsListener mListener;
+    
+    @Override
+    protected MergeStats doInBackground( Void... params )
+    {
+        MergeStats stats = CheatUtils.mergeCheatFiles( mDefaultPath, mUserPath, mVolatilePath );
+        
+        // Compile the cheat indices now, rather than when a game is first opened
+        CheatStore.prepare( mDefaultPath );
+        CheatStore.prepare( mVolatilePath );
+        return stats;
+    }
+    
+    @Override
+    protected void onPostExecute( MergeStats result )
+    {
+        mListener.onMergeCheatsFinished( result );
+    }
+}
\ No newline at end of file
@@ -0,0 +1,499 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.task;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+import paulscode.android.mupen64plusae.util.CoverArtDownloader;
+import paulscode.android.mupen64plusae.util.FileUtil;
+import paulscode.android.mupen64plusae.util.RomCatalog;
+import paulscode.android.mupen64plusae.util.RomDatabase;
+import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+import paulscode.android.mupen64plusae.util.RomFileWalker;
+import paulscode.android.mupen64plusae.util.RomSource;
+import paulscode.android.mupen64plusae.util.RomSource.ImageInfo;
+import paulscode.android.mupen64plusae.util.ThumbnailCache;
+import android.os.FileObserver;
+import android.os.Handler;
+import android.os.Looper;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Keeps the ROM catalog in step with the ROM search directories while the gallery is visible,
+ * catching up with anything that changed while it was not, each time it starts.
+ * <p>
+ * Every directory under the search roots is watched for ROM files being added, removed, or
+ * renamed. Changes are collected and applied in a single batch once the directories have been
+ * quiet for a short while, so copying a folder of ROMs costs one catalog update rather than one
+ * per file. Only the affected files are hashed; the rest of the catalog is left alone. The listener
+ * is notified on the main thread after each batch that changed the catalog.
+ * <p>
+ * Call {@link #start()} and {@link #stop()} from the owning activity's lifecycle callbacks. Each
+ * batch holds the catalog's write lock, so it waits for a {@link CacheRomInfoTask} that is still
+ * writing, and a batch that outlives {@link #stop()} finishes before the next writer starts.
+ */
+public class RomLibraryWatcher
+{
+    public interface RomLibraryListener
+    {
+        public void onRomLibraryChanged( RomCatalog catalog );
+    }
+    
+    /** The default quiet period before a batch of changes is applied, in milliseconds. */
+    public static final long DEFAULT_DEBOUNCE = 2000;
+    
+    /** The events that can add, remove, or rename a ROM file or a directory containing one. */
+    private static final int EVENT_MASK = FileObserver.CLOSE_WRITE | FileObserver.CREATE | FileObserver.DELETE
+            | FileObserver.DELETE_SELF | FileObserver.MOVED_FROM | FileObserver.MOVED_TO | FileObserver.MOVE_SELF;
+    
+    private final List<String> mRoots;
+    private final String mDatabasePath;
+    private final String mCatalogPath;
+    private final String mArtDir;
+    private final ThumbnailCache mThumbnails;
+    private final long mDebounce;
+    private final RomLibraryListener mListener;
+    private final Handler mHandler = new Handler( Looper.getMainLooper() );
+    private final RomFileWalker mWalker = new RomFileWalker();
+    
+    /** Runs the batches, one at a time, and schedules them after the quiet period. */
+    private ScheduledExecutorService mExecutor = null;
+    private CoverArtDownloader mDownloader = null;
+    private ScheduledFuture<?> mPendingSync = null;
+    
+    /** Observers keyed by directory path; each only sees its own directory, not subdirectories. */
+    private final Map<String, FileObserver> mObservers = new HashMap<String, FileObserver>();
+    
+    /** Changes waiting for the next batch, guarded by {@code this}. */
+    private Set<String> mChangedFiles = new HashSet<String>();
+    private Set<String> mAddedDirs = new HashSet<String>();
+    private Set<String> mRemovedPaths = new HashSet<String>();
+    
+    public RomLibraryWatcher( List<String> roots, String databasePath, String catalogPath, String artDir,
+            ThumbnailCache thumbnails, RomLibraryListener listener )
+    {
+        this( roots, databasePath, catalogPath, artDir, thumbnails, DEFAULT_DEBOUNCE, listener );
+    }
+    
+    public RomLibraryWatcher( List<String> roots, String databasePath, String catalogPath, String artDir,
+            ThumbnailCache thumbnails, long debounce, RomLibraryListener listener )
+    {
+        if( roots == null )
+            throw new IllegalArgumentException( "Root paths cannot be null" );
+        if( TextUtils.isEmpty( databasePath ) )
+            throw new IllegalArgumentException( "ROM database path cannot be null or empty" );
+        if( TextUtils.isEmpty( catalogPath ) )
+            throw new IllegalArgumentException( "Catalog path cannot be null or empty" );
+        if( TextUtils.isEmpty( artDir ) )
+            throw new IllegalArgumentException( "Art directory cannot be null or empty" );
+        if( thumbnails == null )
+            throw new IllegalArgumentException( "Thumbnail cache cannot be null" );
+        if( debounce < 0 )
+            throw new IllegalArgumentException( "Debounce period cannot be negative" );
+        if( listener == null )
+            throw new IllegalArgumentException( "Listener cannot be null" );
+        
+        mRoots = new ArrayList<String>( roots );
+        mDatabasePath = databasePath;
+        mCatalogPath = catalogPath;
+        mArtDir = artDir;
+        mThumbnails = thumbnails;
+        mDebounce = debounce;
+        mListener = listener;
+    }
+    
+    /**
+     * Starts watching the search roots. Directories are registered in the background, then the
+     * roots are compared with the catalog to pick up changes made while nothing was watching.
+     */
+    public synchronized void start()
+    {
+        if( mExecutor != null )
+            return;
+        
+        mExecutor = Executors.newSingleThreadScheduledExecutor();
+        mDownloader = new CoverArtDownloader( mThumbnails );
+        mExecutor.execute( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                // Watch first, so that nothing changed during the comparison is missed
+                for( String root : mRoots )
+                    watchTree( new File( root ) );
+                catchUp();
+            }
+        } );
+    }
+    
+    /**
+     * Stops watching. Changes that have not yet been applied are discarded; the next full refresh
+     * picks them up.
+     */
+    public synchronized void stop()
+    {
+        if( mExecutor == null )
+            return;
+        
+        mExecutor.shutdownNow();
+        mExecutor = null;
+        mDownloader.shutdownNow();
+        mDownloader = null;
+        mPendingSync = null;
+        
+        for( FileObserver observer : mObservers.values() )
+            observer.stopWatching();
+        mObservers.clear();
+        mChangedFiles.clear();
+        mAddedDirs.clear();
+        mRemovedPaths.clear();
+    }
+    
+    /**
+     * Queues and applies the changes made under the roots since the catalog was last updated,
+     * using the same size and date comparison as a full refresh, so only changed files are hashed.
+     */
+    private void catchUp()
+    {
+        final Map<String, RomCatalog.Entry> entriesByPath = new HashMap<String, RomCatalog.Entry>();
+        for( RomCatalog.Entry entry : RomCatalog.open( mCatalogPath ).getAll() )
+        {
+            if( entry.romPath != null )
+                entriesByPath.put( entry.romPath, entry );
+        }
+        
+        final Set<String> changedFiles = new HashSet<String>();
+        Set<String> removedPaths = new HashSet<String>();
+        try
+        {
+            for( String root : mRoots )
+            {
+                mWalker.walk( new File( root ), new RomFileWalker.Visitor()
+                {
+                    @Override
+                    public boolean onRomFile( File file )
+                    {
+                        RomCatalog.Entry entry = entriesByPath.get( file.getAbsolutePath() );
+                        if( entry == null || entry.romSize != file.length()
+                                || entry.romModified != file.lastModified() )
+                            changedFiles.add( file.getAbsolutePath() );
+                        return !Thread.currentThread().isInterrupted();
+                    }
+                } );
+                
+                for( String path : entriesByPath.keySet() )
+                {
+                    if( FileUtil.isSameOrDescendant( path, root ) && !new File( path ).exists() )
+                        removedPaths.add( path );
+                }
+            }
+        }
+        catch( InterruptedException e )
+        {
+            return;
+        }
+        
+        if( changedFiles.isEmpty() && removedPaths.isEmpty() )
+            return;
+        synchronized( this )
+        {
+            if( mExecutor == null )
+                return;
+            mChangedFiles.addAll( changedFiles );
+            mRemovedPaths.addAll( removedPaths );
+        }
+        sync();
+    }
+    
+    private void watchTree( File root )
+    {
+        for( File dir : mWalker.listDirectories( root ) )
+            watchDirectory( dir.getAbsolutePath() );
+    }
+    
+    private synchronized void watchDirectory( final String dir )
+    {
+        if( mExecutor == null || mObservers.containsKey( dir ) )
+            return;
+        
+        FileObserver observer = new FileObserver( dir, EVENT_MASK )
+        {
+            @Override
+            public void onEvent( int event, String path )
+            {
+                onDirectoryEvent( dir, event & FileObserver.ALL_EVENTS, path );
+            }
+        };
+        mObservers.put( dir, observer );
+        observer.startWatching();
+    }
+    
+    private synchronized void unwatchDirectory( String dir )
+    {
+        // Drop the directory and everything watched beneath it
+        for( String watched : new ArrayList<String>( mObservers.keySet() ) )
+        {
+            if( FileUtil.isSameOrDescendant( watched, dir ) )
+                mObservers.remove( watched ).stopWatching();
+        }
+    }
+    
+    private synchronized void onDirectoryEvent( String dir, int event, String path )
+    {
+        if( mExecutor == null )
+            return;
+        
+        if( event == FileObserver.DELETE_SELF || event == FileObserver.MOVE_SELF )
+        {
+            mRemovedPaths.add( dir );
+        }
+        else if( path != null )
+        {
+            String fullPath = dir + "/" + path;
+            boolean isRom = RomFileWalker.isRomName( path );
+            if( event == FileObserver.MOVED_FROM || event == FileObserver.DELETE )
+            {
+                // Could be a ROM or a directory of them; the batch checks which
+                mChangedFiles.remove( fullPath );
+                mRemovedPaths.add( fullPath );
+            }
+            else if( isRom && ( event == FileObserver.CLOSE_WRITE || event == FileObserver.MOVED_TO ) )
+            {
+                // Wait for CLOSE_WRITE rather than CREATE so that the file is complete
+                mChangedFiles.add( fullPath );
+            }
+            else if( !isRom && ( event == FileObserver.CREATE || event == FileObserver.MOVED_TO ) )
+            {
+                mAddedDirs.add( fullPath );
+            }
+            else
+            {
+                return;
+            }
+        }
+        else
+        {
+            return;
+        }
+        
+        // Restart the quiet period
+        if( mPendingSync != null )
+            mPendingSync.cancel( false );
+        try
+        {
+            mPendingSync = mExecutor.schedule( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    sync();
+                }
+            }, mDebounce, TimeUnit.MILLISECONDS );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // Watcher is stopping
+        }
+    }
+    
+    private void sync()
+    {
+        Set<String> changedFiles;
+        Set<String> addedDirs;
+        Set<String> removedPaths;
+        CoverArtDownloader downloader;
+        synchronized( this )
+        {
+            if( mExecutor == null )
+                return;
+            
+            changedFiles = mChangedFiles;
+            addedDirs = mAddedDirs;
+            removedPaths = mRemovedPaths;
+            downloader = mDownloader;
+            mChangedFiles = new HashSet<String>();
+            mAddedDirs = new HashSet<String>();
+            mRemovedPaths = new HashSet<String>();
+        }
+        
+        // Removed or renamed directories take their observers with them
+        for( String path : removedPaths )
+        {
+            if( !new File( path ).exists() )
+                unwatchDirectory( path );
+        }
+        
+        // New directories (created, or moved in with their contents) are watched and walked
+        for( String path : addedDirs )
+        {
+            File dir = new File( path );
+            if( !dir.isDirectory() )
+                continue;
+            watchTree( dir );
+            final Set<String> found = changedFiles;
+            try
+            {
+                mWalker.walk( dir, new RomFileWalker.Visitor()
+                {
+                    @Override
+                    public boolean onRomFile( File file )
+                    {
+                        found.add( file.getAbsolutePath() );
+                        return !Thread.currentThread().isInterrupted();
+                    }
+                } );
+            }
+            catch( InterruptedException e )
+            {
+                return;
+            }
+        }
+        
+        // Wait for a scan that is still writing, even if it has been cancelled
+        try
+        {
+            if( !RomCatalog.lockForWriting( Long.MAX_VALUE ) )
+                return;
+        }
+        catch( InterruptedException e )
+        {
+            return;
+        }
+        try
+        {
+            apply( changedFiles, removedPaths, downloader );
+        }
+        finally
+        {
+            RomCatalog.unlockForWriting();
+        }
+    }
+    
+    private void apply( Set<String> changedFiles, Set<String> removedPaths, CoverArtDownloader downloader )
+    {
+        RomCatalog catalog = RomCatalog.open( mCatalogPath );
+        Map<String, RomCatalog.Entry> entriesByPath = new HashMap<String, RomCatalog.Entry>();
+        for( RomCatalog.Entry entry : catalog.getAll() )
+        {
+            if( entry.romPath != null )
+                entriesByPath.put( entry.romPath, entry );
+        }
+        boolean modified = false;
+        
+        // Drop entries for ROMs that are gone, or that live under a directory that is gone,
+        // remembering them by size and date so that a rename does not cost a re-hash
+        Map<String, String> md5sBySignature = new HashMap<String, String>();
+        for( String removed : removedPaths )
+        {
+            if( new File( removed ).exists() )
+                continue;
+            for( RomCatalog.Entry entry : entriesByPath.values() )
+            {
+                if( FileUtil.isSameOrDescendant( entry.romPath, removed ) && catalog.get( entry.md5 ) != null )
+                {
+                    md5sBySignature.put( entry.romSize + ":" + entry.romModified, entry.md5 );
+                    catalog.remove( entry.md5 );
+                    modified = true;
+                }
+            }
+        }
+        
+        // Hash and look up new or rewritten ROMs
+        try
+        {
+            for( String path : changedFiles )
+            {
+                if( Thread.currentThread().isInterrupted() )
+                    return;
+                
+                File file = new File( path );
+                long size = file.length();
+                long lastModified = file.lastModified();
+                RomCatalog.Entry old = entriesByPath.get( path );
+                if( old != null && catalog.get( old.md5 ) != null && old.romSize == size
+                        && old.romModified == lastModified )
+                    continue;
+                
+                RomDatabase database = RomDatabase.getInstance( mDatabasePath );
+                String renamedMd5 = old == null ? md5sBySignature.get( size + ":" + lastModified ) : null;
+                if( renamedMd5 != null && !CacheRomInfoTask.isOtherCopy( catalog, renamedMd5, file ) )
+                {
+                    RomDetail detail = database.lookupByMd5WithFallback( renamedMd5, file );
+                    CacheRomInfoTask.cacheRom( catalog, detail, null, mArtDir, file, size, lastModified, renamedMd5,
+                            downloader );
+                    modified = true;
+                    continue;
+                }
+                
+                ImageInfo info = RomSource.scan( file );
+                if( info == null || CacheRomInfoTask.isOtherCopy( catalog, info.md5, file ) )
+                    continue;
+                if( old != null && !old.md5.equals( info.md5 ) )
+                    catalog.remove( old.md5 );
+                
+                RomDetail detail = database.lookupByMd5WithFallback( info.md5, file, info.header );
+                CacheRomInfoTask.cacheRom( catalog, detail, info.header, mArtDir, file, size, lastModified,
+                        info.md5, downloader );
+                modified = true;
+            }
+        }
+        finally
+        {
+            // Updates are appended as they are made, so whatever was applied is kept
+            catalog.close();
+        }
+        
+        if( !modified || !isRunning() )
+            return;
+        
+        catalog.compactIfNeeded();
+        Log.i( "RomLibraryWatcher", "Applied " + changedFiles.size() + " changed and " + removedPaths.size()
+                + " removed paths" );
+        
+        final RomCatalog result = catalog;
+        mHandler.post( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                if( isRunning() )
+                    mListener.onRomLibraryChanged( result );
+            }
+        } );
+    }
+    
+    private synchronized boolean isRunning()
+    {
+        return mExecutor != null;
+    }
+}
@@ -0,0 +1,350 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Downloads cover art on a small pool of background threads, independently of the caller.
+ * <p>
+ * Each image is streamed to a temporary file in the destination directory and renamed into place
+ * once complete, so a partially downloaded image is never mistaken for a cached one. Images that
+ * already exist on disk are not downloaded again. Transient failures (I/O errors, server errors)
+ * are retried with exponential backoff; missing images (HTTP 4xx) are not.
+ * <p>
+ * The source URL is used as given, so the downloader can be pointed at any HTTP server.
+ * <p>
+ * An optional listener is told, on a download thread, whenever an image becomes available,
+ * including images that were already on disk when queued.
+ */
+public class CoverArtDownloader
+{
+    /** The default number of concurrent downloads. */
+    public static final int DEFAULT_MAX_CONCURRENT = 2;
+    
+    /** The default number of attempts per image, including the first. */
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    
+    /** The default delay before the first retry, in milliseconds. Doubles after each retry. */
+    public static final long DEFAULT_INITIAL_BACKOFF = 1000;
+    
+    private static final int CONNECT_TIMEOUT = 10000;
+    private static final int READ_TIMEOUT = 20000;
+    private static final int BUFFER_SIZE = 16 * 1024;
+    
+    /**
+     * Receives notice of images that are ready on disk.
+     */
+    public interface Listener
+    {
+        /**
+         * Called on a download thread once an image has been downloaded, or when an image that
+         * was queued turned out to be on disk already.
+         * 
+         * @param destPath The path of the image.
+         */
+        public void onArtAvailable( String destPath );
+    }
+    
+    /** The outcome of a single download attempt. */
+    private enum Result
+    {
+        SUCCESS, RETRY, FAILURE
+    }
+    
+    private final ScheduledExecutorService mExecutor;
+    private final int mMaxAttempts;
+    private final long mInitialBackoff;
+    private final Listener mListener;
+    
+    /** Destination paths queued or in progress, guarded by itself. */
+    private final Set<String> mPending = new HashSet<String>();
+    
+    /**
+     * Creates a downloader with the default settings.
+     */
+    public CoverArtDownloader()
+    {
+        this( null );
+    }
+    
+    /**
+     * Creates a downloader with the default settings.
+     * 
+     * @param listener The listener to notify as images become available, or null.
+     */
+    public CoverArtDownloader( Listener listener )
+    {
+        this( DEFAULT_MAX_CONCURRENT, DEFAULT_MAX_ATTEMPTS, DEFAULT_INITIAL_BACKOFF, listener );
+    }
+    
+    /**
+     * Creates a downloader.
+     * 
+     * @param maxConcurrent The maximum number of simultaneous downloads.
+     * @param maxAttempts The maximum number of attempts per image, including the first.
+     * @param initialBackoff The delay before the first retry, in milliseconds.
+     * @param listener The listener to notify as images become available, or null.
+     */
+    public CoverArtDownloader( int maxConcurrent, int maxAttempts, long initialBackoff, Listener listener )
+    {
+        if( maxConcurrent < 1 )
+            throw new IllegalArgumentException( "Must allow at least one concurrent download" );
+        if( maxAttempts < 1 )
+            throw new IllegalArgumentException( "Must allow at least one attempt" );
+        if( initialBackoff < 0 )
+            throw new IllegalArgumentException( "Backoff cannot be negative" );
+        
+        mExecutor = new ScheduledThreadPoolExecutor( maxConcurrent );
+        mMaxAttempts = maxAttempts;
+        mInitialBackoff = initialBackoff;
+        mListener = listener;
+    }
+    
+    /**
+     * Queues an image for download and returns immediately. Does nothing if the image is already
+     * queued, or if it is already on disk and there is no listener to notify.
+     * 
+     * @param sourceUrl The URL of the image; may be null if the image is already on disk.
+     * @param destPath The path where the image should be stored.
+     */
+    public void enqueue( String sourceUrl, String destPath )
+    {
+        if( TextUtils.isEmpty( destPath ) )
+            return;
+        if( new File( destPath ).exists() ? mListener == null : TextUtils.isEmpty( sourceUrl ) )
+            return;
+        
+        synchronized( mPending )
+        {
+            if( !mPending.add( destPath ) )
+                return;
+        }
+        schedule( new Download( sourceUrl, destPath ), 0 );
+    }
+    
+    /**
+     * Blocks until every queued download has finished or given up, or until the timeout elapses.
+     * Callers that may be cancelled wait in short slices, checking in between.
+     * 
+     * @param timeoutMillis The longest time to wait, in milliseconds.
+     * 
+     * @return True if no downloads remain, false if the wait timed out.
+     * 
+     * @throws InterruptedException If the calling thread is interrupted while waiting.
+     */
+    public boolean awaitIdle( long timeoutMillis ) throws InterruptedException
+    {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized( mPending )
+        {
+            while( !mPending.isEmpty() )
+            {
+                long remaining = deadline - System.currentTimeMillis();
+                if( remaining <= 0 )
+                    return false;
+                mPending.wait( remaining );
+            }
+            return true;
+        }
+    }
+    
+    /**
+     * Stops accepting downloads. Downloads already queued (including pending retries) continue.
+     */
+    public void shutdown()
+    {
+        mExecutor.shutdown();
+    }
+    
+    /**
+     * Stops accepting downloads and abandons any that are queued or in progress.
+     */
+    public void shutdownNow()
+    {
+        mExecutor.shutdownNow();
+        synchronized( mPending )
+        {
+            mPending.clear();
+            mPending.notifyAll();
+        }
+    }
+    
+    private void schedule( Download download, long delay )
+    {
+        try
+        {
+            mExecutor.schedule( download, delay, TimeUnit.MILLISECONDS );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // Downloader was shut down
+            finish( download );
+        }
+    }
+    
+    private void finish( Download download )
+    {
+        synchronized( mPending )
+        {
+            mPending.remove( download.destPath );
+            mPending.notifyAll();
+        }
+    }
+    
+    private class Download implements Runnable
+    {
+        public final String sourceUrl;
+        public final String destPath;
+        private int mAttempts = 0;
+        
+        public Download( String sourceUrl, String destPath )
+        {
+            this.sourceUrl = sourceUrl;
+            this.destPath = destPath;
+        }
+        
+        @Override
+        public void run()
+        {
+            // Images already on disk only need the listener to hear about them
+            File dest = new File( destPath );
+            Result result = dest.exists() ? Result.SUCCESS : downloadFile( sourceUrl, dest );
+            mAttempts++;
+            if( result == Result.RETRY && mAttempts < mMaxAttempts )
+            {
+                long backoff = mInitialBackoff << ( mAttempts - 1 );
+                Log.i( "CoverArtDownloader", "Retrying " + sourceUrl + " in " + backoff + " ms" );
+                schedule( this, backoff );
+            }
+            else
+            {
+                try
+                {
+                    if( result != Result.SUCCESS )
+                        Log.w( "CoverArtDownloader", "Giving up on " + sourceUrl );
+                    else if( mListener != null )
+                        mListener.onArtAvailable( destPath );
+                }
+                finally
+                {
+                    finish( this );
+                }
+            }
+        }
+    }
+    
+    private static Result downloadFile( String sourceUrl, File dest )
+    {
+        // Be sure destination directory exists
+        File destDir = dest.getParentFile();
+        destDir.mkdirs();
+        
+        HttpURLConnection connection = null;
+        InputStream input = null;
+        OutputStream output = null;
+        File temp = null;
+        try
+        {
+            connection = (HttpURLConnection) new URL( sourceUrl ).openConnection();
+            connection.setConnectTimeout( CONNECT_TIMEOUT );
+            connection.setReadTimeout( READ_TIMEOUT );
+            int responseCode = connection.getResponseCode();
+            if( responseCode >= 400 && responseCode < 500 )
+                return Result.FAILURE;
+            if( responseCode != HttpURLConnection.HTTP_OK )
+                return Result.RETRY;
+            
+            // Stream to a temporary file so that an interrupted download leaves nothing behind
+            temp = File.createTempFile( dest.getName(), ".part", destDir );
+            input = connection.getInputStream();
+            output = new FileOutputStream( temp );
+            byte[] buffer = new byte[BUFFER_SIZE];
+            int count;
+            while( ( count = input.read( buffer ) ) != -1 )
+                output.write( buffer, 0, count );
+            output.close();
+            output = null;
+            
+            if( !temp.renameTo( dest ) )
+                return Result.RETRY;
+            temp = null;
+            return Result.SUCCESS;
+        }
+        catch( MalformedURLException e )
+        {
+            return Result.FAILURE;
+        }
+        catch( IOException e )
+        {
+            Log.w( "CoverArtDownloader", "Failed to download " + sourceUrl + ": " + e.getMessage() );
+            return Result.RETRY;
+        }
+        catch( ClassCastException e )
+        {
+            // Not an HTTP URL
+            return Result.FAILURE;
+        }
+        finally
+        {
+            if( output != null )
+            {
+                try
+                {
+                    output.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( input != null )
+            {
+                try
+                {
+                    input.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( connection != null )
+                connection.disconnect();
+            if( temp != null )
+                temp.delete();
+        }
+    }
+}
@@ -0,0 +1,308 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Handler;
+import android.text.TextUtils;
+import android.util.Log;
+import android.widget.ImageView;
+
+/**
+ * Loads cover art into image views off the UI thread.
+ * <p>
+ * Images are decoded on a small background pool, downsampled to roughly the size they will be
+ * displayed at, and kept in a memory cache bounded by the total size of the bitmaps it holds. The
+ * least recently used images are evicted first. Images are cached by modification time as well as
+ * path, so art that is downloaded again is shown once it has been replaced on disk. When a view is
+ * recycled for a different item, the load for its previous item is cancelled, so scrolling
+ * through a large library only decodes what is actually on screen.
+ * <p>
+ * Given a {@link ThumbnailCache}, each image is loaded from its thumbnail, which is built on the
+ * spot if a scan has not built it yet; if it cannot be built, the full image is decoded instead.
+ * <p>
+ * All public methods must be called on the UI thread.
+ */
+public class CoverArtLoader
+{
+    /** The number of threads used to decode images. */
+    private static final int NUM_DECODERS = 2;
+    
+    private final int mTargetWidth;
+    private final int mTargetHeight;
+    private final int mPlaceholderId;
+    private final ThumbnailCache mThumbnails;
+    private final BitmapCache mCache;
+    private final ExecutorService mExecutor = Executors.newFixedThreadPool( NUM_DECODERS );
+    private final Handler mHandler = new Handler();
+    
+    /** The load currently bound to each view. */
+    private final Map<ImageView, Load> mLoads = new WeakHashMap<ImageView, Load>();
+    
+    /**
+     * Creates a loader.
+     * 
+     * @param targetWidth The width at which images will be displayed, in pixels.
+     * @param targetHeight The height at which images will be displayed, in pixels.
+     * @param maxCacheBytes The maximum total size of the cached bitmaps, in bytes.
+     * @param placeholderId The drawable shown while an image loads, or when there is none.
+     * @param thumbnails The thumbnails to load images from, or null to always decode the full image.
+     */
+    public CoverArtLoader( int targetWidth, int targetHeight, int maxCacheBytes, int placeholderId,
+            ThumbnailCache thumbnails )
+    {
+        if( targetWidth < 1 || targetHeight < 1 )
+            throw new IllegalArgumentException( "Target size must be positive" );
+        if( maxCacheBytes < 0 )
+            throw new IllegalArgumentException( "Cache size cannot be negative" );
+        
+        mTargetWidth = targetWidth;
+        mTargetHeight = targetHeight;
+        mCache = new BitmapCache( maxCacheBytes );
+        mPlaceholderId = placeholderId;
+        mThumbnails = thumbnails;
+    }
+    
+    /**
+     * Shows an image in a view, loading it in the background if it is not already cached. Any
+     * load previously started for the view is cancelled.
+     * 
+     * @param artPath The path of the full-size image file; may be null or missing.
+     * @param view The view to show the image in.
+     */
+    public void load( String artPath, ImageView view )
+    {
+        Load previous = mLoads.remove( view );
+        if( previous != null )
+        {
+            if( previous.artPath.equals( artPath ) && !previous.future.isDone() )
+            {
+                // Already on its way
+                mLoads.put( view, previous );
+                return;
+            }
+            previous.cancel();
+        }
+        
+        String key = TextUtils.isEmpty( artPath ) ? null : getCacheKey( artPath );
+        Bitmap bitmap = key == null ? null : mCache.get( key );
+        if( bitmap != null )
+        {
+            view.setImageBitmap( bitmap );
+            return;
+        }
+        
+        view.setImageResource( mPlaceholderId );
+        if( TextUtils.isEmpty( artPath ) )
+            return;
+        
+        Load load = new Load( artPath, key, view );
+        try
+        {
+            load.future = mExecutor.submit( load );
+            mLoads.put( view, load );
+        }
+        catch( RejectedExecutionException e )
+        {
+            // Loader was shut down
+        }
+    }
+    
+    /**
+     * Drops all cached images.
+     */
+    public void clearCache()
+    {
+        mCache.clear();
+    }
+    
+    /**
+     * Cancels all pending loads and stops the background threads. Cached images remain valid.
+     */
+    public void shutdown()
+    {
+        for( Load load : mLoads.values() )
+            load.cancel();
+        mLoads.clear();
+        mExecutor.shutdownNow();
+    }
+    
+    /**
+     * Decodes an image file, downsampled by the largest power of two that keeps it at least as
+     * large as the target size.
+     * 
+     * @param path The path of the image file.
+     * @param targetWidth The minimum width of the result, in pixels.
+     * @param targetHeight The minimum height of the result, in pixels.
+     * 
+     * @return The decoded image, or null if it could not be decoded.
+     */
+    public static Bitmap decodeSampled( String path, int targetWidth, int targetHeight )
+    {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile( path, options );
+        if( options.outWidth <= 0 || options.outHeight <= 0 )
+            return null;
+        
+        int sampleSize = 1;
+        while( options.outWidth / ( sampleSize * 2 ) >= targetWidth
+                && options.outHeight / ( sampleSize * 2 ) >= targetHeight )
+            sampleSize *= 2;
+        
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = sampleSize;
+        return BitmapFactory.decodeFile( path, options );
+    }
+    
+    private static String getCacheKey( String artPath )
+    {
+        return artPath + ":" + new File( artPath ).lastModified();
+    }
+    
+    private class Load implements Runnable
+    {
+        public final String artPath;
+        private final String mKey;
+        private final WeakReference<ImageView> mView;
+        public Future<?> future;
+        private volatile boolean mCancelled = false;
+        
+        public Load( String artPath, String key, ImageView view )
+        {
+            this.artPath = artPath;
+            mKey = key;
+            
+            // Weak, so that the entry in mLoads does not keep its own key alive
+            mView = new WeakReference<ImageView>( view );
+        }
+        
+        public void cancel()
+        {
+            mCancelled = true;
+            if( future != null )
+                future.cancel( false );
+        }
+        
+        @Override
+        public void run()
+        {
+            if( mCancelled || !new File( artPath ).exists() )
+                return;
+            
+            // Art from before thumbnails existed gets its thumbnail now, rather than at the next scan
+            String decodePath = artPath;
+            if( mThumbnails != null && mThumbnails.update( artPath ) )
+                decodePath = ThumbnailCache.getThumbnailPath( artPath );
+            if( mCancelled )
+                return;
+            
+            final Bitmap bitmap = decodeSampled( decodePath, mTargetWidth, mTargetHeight );
+            if( bitmap == null )
+            {
+                Log.w( "CoverArtLoader", "Could not decode " + artPath );
+                return;
+            }
+            
+            mHandler.post( new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    mCache.put( mKey, bitmap );
+                    
+                    // Only show the image if the view has not moved on to another item
+                    ImageView view = mView.get();
+                    if( !mCancelled && view != null && mLoads.get( view ) == Load.this )
+                    {
+                        mLoads.remove( view );
+                        view.setImageBitmap( bitmap );
+                    }
+                }
+            } );
+        }
+    }
+    
+    /**
+     * A least-recently-used bitmap cache bounded by total bitmap size.
+     */
+    private static class BitmapCache
+    {
+        private final int mMaxBytes;
+        private int mBytes = 0;
+        
+        /** Iterates from least to most recently used. */
+        private final LinkedHashMap<String, Bitmap> mMap = new LinkedHashMap<String, Bitmap>( 16, 0.75f, true );
+        
+        public BitmapCache( int maxBytes )
+        {
+            mMaxBytes = maxBytes;
+        }
+        
+        public Bitmap get( String key )
+        {
+            return mMap.get( key );
+        }
+        
+        public void put( String key, Bitmap bitmap )
+        {
+            int size = sizeOf( bitmap );
+            if( size > mMaxBytes )
+                return;
+            
+            Bitmap previous = mMap.put( key, bitmap );
+            if( previous != null )
+                mBytes -= sizeOf( previous );
+            mBytes += size;
+            
+            Iterator<Bitmap> iterator = mMap.values().iterator();
+            while( mBytes > mMaxBytes && iterator.hasNext() )
+            {
+                mBytes -= sizeOf( iterator.next() );
+                iterator.remove();
+            }
+        }
+        
+        public void clear()
+        {
+            mMap.clear();
+            mBytes = 0;
+        }
+        
+        private static int sizeOf( Bitmap bitmap )
+        {
+            // Bitmap.getByteCount() requires API 12
+            return bitmap.getRowBytes() * bitmap.getHeight();
+        }
+    }
+}
@@ -163,6 +163,24 @@ public final class FileUtil
         return folder.delete();
     }
     
+    /**
+     * Determines whether a path is the same as, or lies beneath, a given directory. The
+     * comparison is purely textual; neither path needs to exist.
+     * 
+     * @param path The path to test.
+     * @param directory The directory.
+     * 
+     * @return True if {@code path} is {@code directory} or one of its descendants.
+     */
+    public static boolean isSameOrDescendant( String path, String directory )
+    {
+        if( path == null || directory == null )
+            return false;
+        
+        String dir = directory.endsWith( "/" ) ? directory : directory + "/";
+        return path.equals( directory ) || path.startsWith( dir );
+    }
+    
     /**
      * Copies a {@code src} {@link File} to a desired destination represented by a {@code dest}
      * {@link File}
@@ -0,0 +1,209 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Utility class that computes MD5 hashes of ROM files.
+ * <p>
+ * Files are read through a {@link FileChannel}, either by mapping the file in large regions or by
+ * reading into a large per-thread buffer, so that no intermediate stream copies are made. This
+ * class has no Android dependencies so that it can be benchmarked on a desktop JVM (see
+ * tools/benchmark).
+ */
+public final class Md5Hasher
+{
+    /** Size of each region mapped into memory when hashing in {@link Mode#MAPPED} mode. */
+    private static final int MAP_REGION_SIZE = 16 * 1024 * 1024;
+    
+    /**
+     * Largest file hashed in {@link Mode#MAPPED} mode by default. Mapped regions are only released
+     * by the garbage collector, so mapping larger files on several threads at once could exhaust
+     * the address space of a 32-bit device.
+     */
+    private static final long MAX_MAPPED_FILE_SIZE = MAP_REGION_SIZE;
+    
+    /** Size of the per-thread buffer used when hashing in {@link Mode#READ} mode. */
+    private static final int READ_BUFFER_SIZE = 256 * 1024;
+    
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+    
+    /** The strategy used to feed file data to the digest. */
+    public enum Mode
+    {
+        /** Map the file into memory in large regions. */
+        MAPPED,
+        
+        /** Read the file through the channel into a large reusable buffer. */
+        READ
+    }
+    
+    /** Read buffers are large, so each hashing thread keeps its own rather than allocating per file. */
+    private static final ThreadLocal<ByteBuffer> READ_BUFFER = new ThreadLocal<ByteBuffer>()
+    {
+        @Override
+        protected ByteBuffer initialValue()
+        {
+            return ByteBuffer.allocate( READ_BUFFER_SIZE );
+        }
+    };
+    
+    /**
+     * Computes the MD5 hash of a file, mapping it if it fits in a single region and reading it
+     * otherwise.
+     * 
+     * @param file The file to hash.
+     * 
+     * @return The hash as an uppercase hex string, or null if the file could not be read.
+     */
+    public static String computeMd5( File file )
+    {
+        return computeMd5( file, file.length() > MAX_MAPPED_FILE_SIZE ? Mode.READ : Mode.MAPPED );
+    }
+    
+    /**
+     * Computes the MD5 hash of a file.
+     * 
+     * @param file The file to hash.
+     * @param mode The strategy used to read the file.
+     * 
+     * @return The hash as an uppercase hex string, or null if the file could not be read.
+     */
+    public static String computeMd5( File file, Mode mode )
+    {
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( file );
+            FileChannel channel = stream.getChannel();
+            MessageDigest digester = newDigester();
+            if( mode == Mode.MAPPED )
+                updateMapped( digester, channel );
+            else
+                updateRead( digester, channel );
+            return toHexString( digester.digest() );
+        }
+        catch( Exception e )
+        {
+            // Mapping can fail with unchecked exceptions too, e.g. when address space runs out
+            return null;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Feeds the remaining contents of a stream to a digest. The stream is not closed.
+     * 
+     * @param digester The digest to update.
+     * @param stream The stream to read from.
+     * 
+     * @throws IOException If a reading error occurs.
+     */
+    public static void update( MessageDigest digester, InputStream stream ) throws IOException
+    {
+        ByteBuffer buffer = READ_BUFFER.get();
+        byte[] bytes = buffer.array();
+        int byteCount;
+        while( ( byteCount = stream.read( bytes ) ) != -1 )
+            digester.update( bytes, 0, byteCount );
+    }
+    
+    /**
+     * Creates a new MD5 digest.
+     * 
+     * @return A new MD5 digest.
+     */
+    public static MessageDigest newDigester()
+    {
+        try
+        {
+            return MessageDigest.getInstance( "MD5" );
+        }
+        catch( NoSuchAlgorithmException e )
+        {
+            // Every Java platform is required to support MD5
+            throw new RuntimeException( e );
+        }
+    }
+    
+    /**
+     * Converts a hash to an uppercase hex string.
+     * 
+     * @param hash The raw bytes of the hash.
+     * 
+     * @return The hex representation of the hash.
+     */
+    public static String toHexString( byte[] hash )
+    {
+        char[] chars = new char[hash.length * 2];
+        for( int i = 0; i < hash.length; i++ )
+        {
+            chars[2 * i] = HEX_DIGITS[( hash[i] >> 4 ) & 0x0F];
+            chars[2 * i + 1] = HEX_DIGITS[hash[i] & 0x0F];
+        }
+        return new String( chars );
+    }
+    
+    private static void updateMapped( MessageDigest digester, FileChannel channel ) throws IOException
+    {
+        long size = channel.size();
+        for( long position = 0; position < size; position += MAP_REGION_SIZE )
+        {
+            long regionSize = Math.min( MAP_REGION_SIZE, size - position );
+            MappedByteBuffer region = channel.map( FileChannel.MapMode.READ_ONLY, position, regionSize );
+            digester.update( region );
+        }
+    }
+    
+    private static void updateRead( MessageDigest digester, FileChannel channel ) throws IOException
+    {
+        ByteBuffer buffer = READ_BUFFER.get();
+        byte[] bytes = buffer.array();
+        buffer.clear();
+        int byteCount;
+        while( ( byteCount = channel.read( buffer ) ) != -1 )
+        {
+            digester.update( bytes, 0, byteCount );
+            buffer.clear();
+        }
+    }
+}
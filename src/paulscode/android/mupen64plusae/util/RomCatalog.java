@@ -0,0 +1,825 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.CRC32;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.util.RomDatabase.RomDetail;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * The gallery's catalog of ROMs found on the device, stored in a compact, memory-mapped binary
+ * file.
+ * <p>
+ * File layout (all integers big-endian):
+ * <ul>
+ * <li>Header: magic, version, record count, and the offsets of the record table, the string pool,
+ * and the update log.
+ * <li>Record table: one fixed-width record per ROM, sorted by MD5. Each record holds the 16 raw
+ * MD5 bytes, the ROM size and last-modified time, status, players, and rumble, followed by string
+ * pool offsets for the string fields (-1 if absent).
+ * <li>String pool: each distinct string is an unsigned 16-bit byte count followed by its UTF-8
+ * bytes.
+ * <li>Update log: records appended since the file was last compacted. Each is a byte count, an
+ * operation (put or remove) with its data, and a CRC-32 of the operation. Reading stops at the
+ * first incomplete or damaged record, so a crash while appending loses at most that record.
+ * </ul>
+ * Updates are appended to the log, and are visible immediately through this object. Once the log
+ * grows large relative to the record table, {@link #compactIfNeeded()} folds it into a fresh file
+ * that is written to a temporary file and renamed into place.
+ * <p>
+ * There is one instance per catalog file in the process, so every update goes through the same
+ * append stream and no two writers can truncate or replace each other's records. Methods are
+ * synchronized; tasks that apply a batch of related updates hold {@link #lockForWriting(long)} for
+ * the whole batch so that batches never interleave.
+ */
+public final class RomCatalog
+{
+    private static final int MAGIC = 0x4D363443; // "M64C"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int MD5_SIZE = 16;
+    private static final int NUM_STRINGS = 10;
+    private static final int RECORD_SIZE = MD5_SIZE + 8 + 8 + 4 + 4 * NUM_STRINGS;
+    private static final int NO_STRING = -1;
+    private static final String CHARSET = "UTF-8";
+    
+    private static final byte OP_PUT = 1;
+    private static final byte OP_REMOVE = 2;
+    
+    /** Minimum number of logged updates before compaction is considered. */
+    private static final int MIN_LOG_SIZE_TO_COMPACT = 64;
+    
+    /** The open catalogs, keyed by absolute path. */
+    private static final Map<String, RomCatalog> sCatalogs = new HashMap<String, RomCatalog>();
+    
+    /** Held by the task applying a batch of updates. */
+    private static final ReentrantLock sWriteLock = new ReentrantLock();
+    
+    /**
+     * Everything the gallery and play menu need to know about a ROM.
+     */
+    public static class Entry
+    {
+        public final String md5;
+        public final String romPath;
+        public final long romSize;
+        public final long romModified;
+        public final String artPath;
+        public final String goodName;
+        public final String baseName;
+        public final String artUrl;
+        public final String wikiUrl;
+        public final String saveType;
+        public final int status;
+        public final int players;
+        public final boolean rumble;
+        
+        /** The CRC from the ROM header, e.g. "3B941695 F90A5EEB". */
+        public final String crc;
+        
+        /** The internal name from the ROM header. */
+        public final String headerName;
+        
+        /** The country symbol derived from the ROM header, e.g. "(U)". */
+        public final String countrySymbol;
+        
+        /**
+         * Creates an entry from a ROM's database details and header.
+         * 
+         * @param md5 The MD5 hash of the ROM image.
+         * @param file The ROM file.
+         * @param size The size of the ROM file, in bytes.
+         * @param lastModified The last-modified time of the ROM file.
+         * @param artPath The path of the ROM's cover art.
+         * @param detail The ROM's details from the ROM database.
+         * @param header The ROM's header.
+         */
+        public Entry( String md5, File file, long size, long lastModified, String artPath, RomDetail detail,
+                RomHeader header )
+        {
+            this( md5, file.getAbsolutePath(), size, lastModified, artPath, detail.goodName, detail.baseName,
+                    detail.artUrl, detail.wikiUrl, detail.saveType, detail.status, detail.players, detail.rumble,
+                    header.crc, header.name, header.countrySymbol );
+        }
+        
+        Entry( String md5, String romPath, long romSize, long romModified, String artPath, String goodName,
+                String baseName, String artUrl, String wikiUrl, String saveType, int status, int players,
+                boolean rumble, String crc, String headerName, String countrySymbol )
+        {
+            this.md5 = md5;
+            this.romPath = romPath;
+            this.romSize = romSize;
+            this.romModified = romModified;
+            this.artPath = artPath;
+            this.goodName = goodName;
+            this.baseName = baseName;
+            this.artUrl = artUrl;
+            this.wikiUrl = wikiUrl;
+            this.saveType = saveType;
+            this.status = status;
+            this.players = players;
+            this.rumble = rumble;
+            this.crc = crc;
+            this.headerName = headerName;
+            this.countrySymbol = countrySymbol;
+        }
+        
+        /**
+         * Determines whether the entry holds the ROM header fields. Entries imported from the old
+         * INI cache do not, until the ROM is next scanned.
+         * 
+         * @return True if the header fields are present.
+         */
+        public boolean hasHeader()
+        {
+            return crc != null && headerName != null && countrySymbol != null;
+        }
+        
+        private String[] getStrings()
+        {
+            return new String[] { romPath, artPath, goodName, baseName, artUrl, wikiUrl, saveType, crc,
+                    headerName, countrySymbol };
+        }
+        
+        private static Entry fromStrings( String md5, long romSize, long romModified, int status, int players,
+                boolean rumble, String[] s )
+        {
+            return new Entry( md5, s[0], romSize, romModified, s[1], s[2], s[3], s[4], s[5], s[6], status, players,
+                    rumble, s[7], s[8], s[9] );
+        }
+    }
+    
+    private final File mFile;
+    
+    /** The compacted part of the file. */
+    private MappedByteBuffer mBuffer;
+    private int mRecordCount;
+    private int mRecordsOffset;
+    private int mPoolOffset;
+    
+    /** Updates logged since compaction, keyed by MD5; a null value marks a removal. */
+    private final Map<String, Entry> mLog = new HashMap<String, Entry>();
+    private int mLogRecords;
+    
+    /** The length of the valid part of the file. */
+    private long mValidLength;
+    
+    /** The open append stream, if any. */
+    private DataOutputStream mAppender = null;
+    
+    private RomCatalog( File file )
+    {
+        mFile = file;
+    }
+    
+    /**
+     * Opens a catalog, creating an empty one if the file is missing or unreadable. Every call with
+     * the same path returns the same instance.
+     * 
+     * @param path The path of the catalog file.
+     * 
+     * @return The catalog.
+     */
+    public static RomCatalog open( String path )
+    {
+        File file = new File( path ).getAbsoluteFile();
+        synchronized( sCatalogs )
+        {
+            RomCatalog catalog = sCatalogs.get( file.getPath() );
+            if( catalog != null )
+                return catalog;
+            
+            catalog = new RomCatalog( file );
+            synchronized( catalog )
+            {
+                if( !catalog.load() )
+                {
+                    // Start over with an empty catalog
+                    catalog.mLog.clear();
+                    catalog.mLogRecords = 0;
+                    if( !catalog.compact() )
+                        catalog.clearMapping();
+                }
+            }
+            sCatalogs.put( file.getPath(), catalog );
+            return catalog;
+        }
+    }
+    
+    /**
+     * Waits to become the only task updating the catalog. Call {@link #unlockForWriting()} once the
+     * batch of updates is complete.
+     * 
+     * @param timeoutMillis The longest time to wait, in milliseconds.
+     * 
+     * @return True if the lock was acquired, false if the wait timed out.
+     * 
+     * @throws InterruptedException If the calling thread was interrupted while waiting.
+     */
+    public static boolean lockForWriting( long timeoutMillis ) throws InterruptedException
+    {
+        return sWriteLock.tryLock( timeoutMillis, TimeUnit.MILLISECONDS );
+    }
+    
+    /**
+     * Releases the lock acquired by {@link #lockForWriting(long)}.
+     */
+    public static void unlockForWriting()
+    {
+        sWriteLock.unlock();
+    }
+    
+    /**
+     * Converts a ROM info cache in the old INI format into a catalog, then deletes it. Does nothing
+     * if the catalog already exists or there is nothing to convert. The converted entries lack the
+     * ROM header fields until the ROMs are next scanned.
+     * 
+     * @param configPath The path of the old INI cache.
+     * @param catalogPath The path of the catalog file.
+     */
+    public static void importConfigFile( String configPath, String catalogPath )
+    {
+        File configFile = new File( configPath );
+        if( new File( catalogPath ).exists() || !configFile.exists() )
+            return;
+        
+        ConfigFile config = new ConfigFile( configPath );
+        RomCatalog catalog = open( catalogPath );
+        for( String md5 : config.keySet() )
+        {
+            String romPath = config.get( md5, "romPath" );
+            if( ConfigFile.SECTIONLESS_NAME.equals( md5 ) || TextUtils.isEmpty( romPath ) )
+                continue;
+            
+            catalog.put( new Entry( md5, romPath, parseLong( config.get( md5, "romSize" ) ),
+                    parseLong( config.get( md5, "romModified" ) ), config.get( md5, "artPath" ),
+                    config.get( md5, "goodName" ), null, null, null, null,
+                    (int) parseLong( config.get( md5, "status" ) ), (int) parseLong( config.get( md5, "players" ) ),
+                    Boolean.parseBoolean( config.get( md5, "rumble" ) ), null, null, null ) );
+        }
+        if( catalog.compact() )
+            configFile.delete();
+        catalog.close();
+    }
+    
+    /**
+     * Gets the number of ROMs in the catalog.
+     * 
+     * @return The number of entries.
+     */
+    public synchronized int size()
+    {
+        int size = mRecordCount;
+        for( Map.Entry<String, Entry> logged : mLog.entrySet() )
+        {
+            boolean inRecords = findRecord( logged.getKey() ) >= 0;
+            if( logged.getValue() == null && inRecords )
+                size--;
+            else if( logged.getValue() != null && !inRecords )
+                size++;
+        }
+        return size;
+    }
+    
+    /**
+     * Looks up a ROM by MD5.
+     * 
+     * @param md5 The MD5 of the ROM image, as an uppercase hex string.
+     * 
+     * @return The entry, or null if the ROM is not in the catalog.
+     */
+    public synchronized Entry get( String md5 )
+    {
+        if( mLog.containsKey( md5 ) )
+            return mLog.get( md5 );
+        
+        int record = findRecord( md5 );
+        return record < 0 ? null : readRecord( record );
+    }
+    
+    /**
+     * Gets every ROM in the catalog.
+     * 
+     * @return The entries, in no particular order.
+     */
+    public synchronized List<Entry> getAll()
+    {
+        List<Entry> entries = new ArrayList<Entry>( mRecordCount + mLog.size() );
+        for( int i = 0; i < mRecordCount; i++ )
+        {
+            Entry entry = readRecord( i );
+            if( !mLog.containsKey( entry.md5 ) )
+                entries.add( entry );
+        }
+        for( Entry entry : mLog.values() )
+        {
+            if( entry != null )
+                entries.add( entry );
+        }
+        return entries;
+    }
+    
+    /**
+     * Adds or replaces a ROM. The change is buffered until {@link #flush()} or {@link #close()}.
+     * 
+     * @param entry The entry to store.
+     */
+    public synchronized void put( Entry entry )
+    {
+        if( parseMd5( entry.md5 ) == null )
+            throw new IllegalArgumentException( "Invalid MD5: " + entry.md5 );
+        
+        if( append( OP_PUT, entry.md5, entry ) )
+            mLog.put( entry.md5, entry );
+    }
+    
+    /**
+     * Removes a ROM, if present. The change is buffered until {@link #flush()} or {@link #close()}.
+     * 
+     * @param md5 The MD5 of the ROM image.
+     */
+    public synchronized void remove( String md5 )
+    {
+        if( get( md5 ) != null && append( OP_REMOVE, md5, null ) )
+            mLog.put( md5, null );
+    }
+    
+    /**
+     * Writes buffered changes to the file.
+     */
+    public synchronized void flush()
+    {
+        if( mAppender == null )
+            return;
+        
+        try
+        {
+            mAppender.flush();
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomCatalog", "Could not write to " + mFile.getPath() );
+        }
+    }
+    
+    /**
+     * Writes buffered changes to the file and releases the file. The catalog can still be read.
+     */
+    public synchronized void close()
+    {
+        if( mAppender == null )
+            return;
+        
+        try
+        {
+            mAppender.close();
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomCatalog", "Could not write to " + mFile.getPath() );
+        }
+        mAppender = null;
+    }
+    
+    /**
+     * Compacts the catalog if the update log has grown large relative to the record table.
+     * 
+     * @return True if the catalog was compacted.
+     */
+    public synchronized boolean compactIfNeeded()
+    {
+        if( mLogRecords < MIN_LOG_SIZE_TO_COMPACT || mLogRecords < mRecordCount / 4 )
+            return false;
+        return compact();
+    }
+    
+    /**
+     * Rewrites the catalog without an update log, replacing the file atomically.
+     * 
+     * @return True if the catalog was compacted.
+     */
+    public synchronized boolean compact()
+    {
+        close();
+        List<Entry> entries = getAll();
+        Collections.sort( entries, new Comparator<Entry>()
+        {
+            @Override
+            public int compare( Entry lhs, Entry rhs )
+            {
+                return compareMd5( parseMd5( lhs.md5 ), parseMd5( rhs.md5 ) );
+            }
+        } );
+        
+        File tempFile = null;
+        try
+        {
+            // Build the string pool and record table
+            ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+            DataOutputStream pool = new DataOutputStream( poolBytes );
+            Map<String, Integer> poolOffsets = new HashMap<String, Integer>();
+            ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+            DataOutputStream records = new DataOutputStream( recordBytes );
+            for( Entry entry : entries )
+            {
+                records.write( parseMd5( entry.md5 ) );
+                records.writeLong( entry.romSize );
+                records.writeLong( entry.romModified );
+                records.writeByte( entry.status );
+                records.writeByte( entry.players );
+                records.writeByte( entry.rumble ? 1 : 0 );
+                records.writeByte( 0 );
+                for( String value : entry.getStrings() )
+                    records.writeInt( writeString( pool, poolOffsets, value ) );
+            }
+            
+            int recordsOffset = HEADER_SIZE;
+            int poolOffset = recordsOffset + recordBytes.size();
+            int logOffset = poolOffset + poolBytes.size();
+            File dir = mFile.getAbsoluteFile().getParentFile();
+            dir.mkdirs();
+            tempFile = File.createTempFile( mFile.getName(), ".tmp", dir );
+            DataOutputStream out = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( tempFile ) ) );
+            try
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeInt( entries.size() );
+                out.writeInt( recordsOffset );
+                out.writeInt( poolOffset );
+                out.writeInt( logOffset );
+                recordBytes.writeTo( out );
+                poolBytes.writeTo( out );
+            }
+            finally
+            {
+                out.close();
+            }
+            if( !tempFile.renameTo( mFile ) )
+                throw new IOException( "Could not rename " + tempFile.getPath() );
+            tempFile = null;
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomCatalog", "Could not compact " + mFile.getPath() + ": " + e.getMessage() );
+            if( tempFile != null )
+                tempFile.delete();
+            return false;
+        }
+        
+        // The old mapping stays valid until released, so readers are never disturbed
+        mLog.clear();
+        mLogRecords = 0;
+        if( !load() )
+        {
+            Log.w( "RomCatalog", "Could not reopen " + mFile.getPath() );
+            clearMapping();
+            return false;
+        }
+        return true;
+    }
+    
+    private boolean load()
+    {
+        if( !mFile.exists() )
+            return false;
+        
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( mFile );
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if( buffer.capacity() < HEADER_SIZE || buffer.getInt( 0 ) != MAGIC || buffer.getInt( 4 ) != VERSION )
+                return false;
+            
+            int recordCount = buffer.getInt( 8 );
+            int recordsOffset = buffer.getInt( 12 );
+            int poolOffset = buffer.getInt( 16 );
+            int logOffset = buffer.getInt( 20 );
+            if( recordCount < 0 || recordsOffset + (long) recordCount * RECORD_SIZE > poolOffset
+                    || poolOffset > logOffset || logOffset > buffer.capacity() )
+                return false;
+            
+            mBuffer = buffer;
+            mRecordCount = recordCount;
+            mRecordsOffset = recordsOffset;
+            mPoolOffset = poolOffset;
+            mValidLength = replayLog( logOffset );
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomCatalog", "Could not map " + mFile.getPath() );
+            return false;
+        }
+        finally
+        {
+            // The mapping remains valid after the channel is closed
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private void clearMapping()
+    {
+        mBuffer = null;
+        mRecordCount = 0;
+        mValidLength = 0;
+    }
+    
+    private long replayLog( int offset )
+    {
+        // Stop at the first record that is incomplete or fails its checksum
+        int limit = mBuffer.capacity();
+        while( offset + 4 <= limit )
+        {
+            int length = mBuffer.getInt( offset );
+            if( length <= 0 || (long) offset + 4 + length + 4 > limit )
+                break;
+            
+            byte[] body = new byte[length];
+            for( int i = 0; i < length; i++ )
+                body[i] = mBuffer.get( offset + 4 + i );
+            CRC32 crc = new CRC32();
+            crc.update( body );
+            if( (int) crc.getValue() != mBuffer.getInt( offset + 4 + length ) )
+                break;
+            
+            try
+            {
+                DataInputStream in = new DataInputStream( new ByteArrayInputStream( body ) );
+                byte op = in.readByte();
+                String md5 = in.readUTF();
+                if( op == OP_PUT )
+                    mLog.put( md5, readLoggedEntry( md5, in ) );
+                else if( op == OP_REMOVE )
+                    mLog.put( md5, null );
+                else
+                    break;
+            }
+            catch( IOException e )
+            {
+                break;
+            }
+            mLogRecords++;
+            offset += 4 + length + 4;
+        }
+        return offset;
+    }
+    
+    private boolean append( byte op, String md5, Entry entry )
+    {
+        try
+        {
+            if( mAppender == null )
+            {
+                if( mBuffer == null && !compact() )
+                    return false;
+                
+                // Drop any damaged tail left by a crash before appending after it
+                RandomAccessFile file = new RandomAccessFile( mFile, "rw" );
+                try
+                {
+                    if( file.length() != mValidLength )
+                        file.setLength( mValidLength );
+                }
+                finally
+                {
+                    file.close();
+                }
+                mAppender = new DataOutputStream( new BufferedOutputStream( new FileOutputStream( mFile, true ) ) );
+            }
+            
+            ByteArrayOutputStream bodyBytes = new ByteArrayOutputStream();
+            DataOutputStream body = new DataOutputStream( bodyBytes );
+            body.writeByte( op );
+            body.writeUTF( md5 );
+            if( entry != null )
+            {
+                body.writeLong( entry.romSize );
+                body.writeLong( entry.romModified );
+                body.writeByte( entry.status );
+                body.writeByte( entry.players );
+                body.writeBoolean( entry.rumble );
+                for( String value : entry.getStrings() )
+                {
+                    body.writeBoolean( value != null );
+                    if( value != null )
+                        body.writeUTF( value );
+                }
+            }
+            
+            byte[] bytes = bodyBytes.toByteArray();
+            CRC32 crc = new CRC32();
+            crc.update( bytes );
+            mAppender.writeInt( bytes.length );
+            mAppender.write( bytes );
+            mAppender.writeInt( (int) crc.getValue() );
+            mValidLength += 4 + bytes.length + 4;
+            mLogRecords++;
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomCatalog", "Could not append to " + mFile.getPath() + ": " + e.getMessage() );
+            return false;
+        }
+    }
+    
+    private static Entry readLoggedEntry( String md5, DataInputStream in ) throws IOException
+    {
+        long romSize = in.readLong();
+        long romModified = in.readLong();
+        int status = in.readByte();
+        int players = in.readByte();
+        boolean rumble = in.readBoolean();
+        String[] strings = new String[NUM_STRINGS];
+        for( int i = 0; i < NUM_STRINGS; i++ )
+            strings[i] = in.readBoolean() ? in.readUTF() : null;
+        return Entry.fromStrings( md5, romSize, romModified, status, players, rumble, strings );
+    }
+    
+    private int findRecord( String md5 )
+    {
+        byte[] key = parseMd5( md5 );
+        if( key == null || mBuffer == null )
+            return -1;
+        
+        byte[] probe = new byte[MD5_SIZE];
+        int low = 0;
+        int high = mRecordCount - 1;
+        while( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int offset = mRecordsOffset + mid * RECORD_SIZE;
+            for( int i = 0; i < MD5_SIZE; i++ )
+                probe[i] = mBuffer.get( offset + i );
+            
+            int comparison = compareMd5( probe, key );
+            if( comparison < 0 )
+                low = mid + 1;
+            else if( comparison > 0 )
+                high = mid - 1;
+            else
+                return mid;
+        }
+        return -1;
+    }
+    
+    private Entry readRecord( int index )
+    {
+        int offset = mRecordsOffset + index * RECORD_SIZE;
+        byte[] md5 = new byte[MD5_SIZE];
+        for( int i = 0; i < MD5_SIZE; i++ )
+            md5[i] = mBuffer.get( offset + i );
+        offset += MD5_SIZE;
+        
+        long romSize = mBuffer.getLong( offset );
+        long romModified = mBuffer.getLong( offset + 8 );
+        int status = mBuffer.get( offset + 16 );
+        int players = mBuffer.get( offset + 17 );
+        boolean rumble = mBuffer.get( offset + 18 ) != 0;
+        offset += 20;
+        
+        String[] strings = new String[NUM_STRINGS];
+        for( int i = 0; i < NUM_STRINGS; i++ )
+            strings[i] = readString( mBuffer.getInt( offset + 4 * i ) );
+        return Entry.fromStrings( Md5Hasher.toHexString( md5 ), romSize, romModified, status, players, rumble,
+                strings );
+    }
+    
+    private String readString( int poolOffset )
+    {
+        if( poolOffset == NO_STRING )
+            return null;
+        
+        // Absolute reads only, so the mapping's position is never disturbed
+        int offset = mPoolOffset + poolOffset;
+        int length = mBuffer.getShort( offset ) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; i++ )
+            bytes[i] = mBuffer.get( offset + 2 + i );
+        try
+        {
+            return new String( bytes, CHARSET );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            // Every Java platform is required to support UTF-8
+            throw new RuntimeException( e );
+        }
+    }
+    
+    private static int writeString( DataOutputStream pool, Map<String, Integer> poolOffsets, String value )
+            throws IOException
+    {
+        if( value == null )
+            return NO_STRING;
+        
+        // Values such as save types and country symbols are stored only once
+        Integer existing = poolOffsets.get( value );
+        if( existing != null )
+            return existing;
+        
+        byte[] bytes = value.getBytes( CHARSET );
+        if( bytes.length > 0xFFFF )
+            throw new IOException( "String too long for catalog: " + value.substring( 0, 32 ) );
+        
+        int offset = pool.size();
+        pool.writeShort( bytes.length );
+        pool.write( bytes );
+        poolOffsets.put( value, offset );
+        return offset;
+    }
+    
+    private static long parseLong( String value )
+    {
+        try
+        {
+            return TextUtils.isEmpty( value ) ? 0 : Long.parseLong( value );
+        }
+        catch( NumberFormatException e )
+        {
+            return 0;
+        }
+    }
+    
+    private static byte[] parseMd5( String md5 )
+    {
+        if( md5 == null || md5.length() != 2 * MD5_SIZE )
+            return null;
+        
+        byte[] result = new byte[MD5_SIZE];
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int high = Character.digit( md5.charAt( 2 * i ), 16 );
+            int low = Character.digit( md5.charAt( 2 * i + 1 ), 16 );
+            if( high < 0 || low < 0 )
+                return null;
+            result[i] = (byte) ( ( high << 4 ) | low );
+        }
+        return result;
+    }
+    
+    private static int compareMd5( byte[] lhs, byte[] rhs )
+    {
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int difference = ( lhs[i] & 0xFF ) - ( rhs[i] & 0xFF );
+            if( difference != 0 )
+                return difference;
+        }
+        return 0;
+    }
+}
@@ -22,30 +22,181 @@ package paulscode.android.mupen64plusae.util;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 
 import org.apache.commons.lang.NullArgumentException;
 
 import paulscode.android.mupen64plusae.persistent.ConfigFile;
 import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import paulscode.android.mupen64plusae.util.RomDatabaseIndex.Entry;
 import android.text.TextUtils;
 import android.util.Log;
 
+/**
+ * Looks up ROM meta-info in mupen64plus.ini.
+ * <p>
+ * The database is immutable once loaded, so a single instance can be shared by every activity and
+ * background task in the process. Use {@link #getInstance(String)} to obtain it, {@link #warmUp}
+ * to load it ahead of time, and {@link #release()} to drop it when memory is low. The first load
+ * may have to parse the ini file and compile its index, so the UI thread should only call
+ * {@link #getInstance(String)} after {@link #warmUp} has had a chance to run.
+ */
 public class RomDatabase
 {
     private static final String ART_URL_TEMPLATE = "http://paulscode.com/downloads/Mupen64Plus-AE/CoverArt/%s";
     private static final String WIKI_URL_TEMPLATE = "http://littleguy77.wikia.com/wiki/%s";
     
+    // Rough per-object costs on a 32-bit VM, used to estimate the heap footprint; not measured
+    private static final int STRING_OVERHEAD = 40;
+    private static final int SECTION_OVERHEAD = 150;
+    private static final int PARAMETER_OVERHEAD = 8;
+    private static final int INSTANCE_OVERHEAD = 100;
+    
+    /** The shared instance, or null if not loaded. */
+    private static RomDatabase sInstance = null;
+    
+    /** Guards the shared instance; never held while loading. */
+    private static final Object sInstanceLock = new Object();
+    
+    /** Held while loading, so that only one thread parses the ini file at a time. */
+    private static final Object sLoadLock = new Object();
+    
+    /** True while the warm-up thread is running, guarded by {@link #sInstanceLock}. */
+    private static boolean sWarmingUp = false;
+    
+    private final String mPath;
+    private RomDatabaseIndex mIndex = null;
     private ConfigFile mConfigFile = null;
     private final HashMap<String, ArrayList<ConfigSection>> mCrcMap = new HashMap<String, ArrayList<ConfigSection>>();
+    private final long mHeapFootprint;
+    
+    /**
+     * Gets the shared database, loading it on the calling thread if necessary. Returns at once if
+     * the database is already loaded; otherwise waits for a load in progress, or loads it.
+     * 
+     * @param mupen64plusIni The path of the ini file.
+     * 
+     * @return The shared database.
+     */
+    public static RomDatabase getInstance( String mupen64plusIni )
+    {
+        RomDatabase instance = peekInstance( mupen64plusIni );
+        if( instance != null )
+            return instance;
+        
+        synchronized( sLoadLock )
+        {
+            // Another thread may have loaded it while we waited
+            instance = peekInstance( mupen64plusIni );
+            if( instance != null )
+                return instance;
+            
+            long start = System.currentTimeMillis();
+            instance = new RomDatabase( mupen64plusIni );
+            long elapsed = System.currentTimeMillis() - start;
+            Log.i( "RomDatabase", "Loaded in " + elapsed + " ms, heap footprint ~"
+                    + instance.getHeapFootprint() + " bytes (estimated), mapped "
+                    + instance.getMappedFootprint() + " bytes" );
+            synchronized( sInstanceLock )
+            {
+                sInstance = instance;
+            }
+            return instance;
+        }
+    }
+    
+    private static RomDatabase peekInstance( String mupen64plusIni )
+    {
+        synchronized( sInstanceLock )
+        {
+            return sInstance != null && sInstance.mPath.equals( mupen64plusIni ) ? sInstance : null;
+        }
+    }
+    
+    /**
+     * Loads the shared database on a background thread, so that it is ready before the first
+     * lookup. Does nothing if it is already loaded or loading.
+     * 
+     * @param mupen64plusIni The path of the ini file.
+     */
+    public static void warmUp( final String mupen64plusIni )
+    {
+        synchronized( sInstanceLock )
+        {
+            if( sWarmingUp || ( sInstance != null && sInstance.mPath.equals( mupen64plusIni ) ) )
+                return;
+            sWarmingUp = true;
+        }
+        
+        new Thread( new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                try
+                {
+                    getInstance( mupen64plusIni );
+                }
+                finally
+                {
+                    synchronized( sInstanceLock )
+                    {
+                        sWarmingUp = false;
+                    }
+                }
+            }
+        }, "RomDatabaseWarmUp" ).start();
+    }
+    
+    /**
+     * Releases the shared database, e.g. when memory is low or the ini file has been replaced. It
+     * will be reloaded on the next call to {@link #getInstance(String)}. Instances already handed
+     * out remain valid.
+     */
+    public static void release()
+    {
+        synchronized( sInstanceLock )
+        {
+            sInstance = null;
+        }
+    }
     
+    /**
+     * Loads a private copy of the database. Prefer {@link #getInstance(String)}.
+     * 
+     * @param mupen64plusIni The path of the ini file.
+     */
     public RomDatabase( String mupen64plusIni )
     {
-        mConfigFile = new ConfigFile( mupen64plusIni );
+        mPath = mupen64plusIni;
+        
+        // Use the compiled index if it is up to date
+        mIndex = RomDatabaseIndex.open( mupen64plusIni );
+        if( mIndex != null )
+        {
+            mHeapFootprint = INSTANCE_OVERHEAD;
+            return;
+        }
+        
+        // Otherwise parse the ini file and compile the index, then switch over to it
+        ConfigFile configFile = ConfigFile.loadCompact( mupen64plusIni );
+        if( RomDatabaseIndex.compile( configFile, mupen64plusIni ) )
+            mIndex = RomDatabaseIndex.open( mupen64plusIni );
+        if( mIndex != null )
+        {
+            mHeapFootprint = INSTANCE_OVERHEAD;
+            return;
+        }
+        
+        // Index unavailable (e.g. read-only storage); keep the parsed file in memory
+        mConfigFile = configFile;
+        long footprint = INSTANCE_OVERHEAD;
         for( String key : mConfigFile.keySet() )
         {
             ConfigSection section = mConfigFile.get( key );
             if( section != null )
             {
+                footprint += estimateFootprint( key, section );
                 String crc = section.get( "CRC" );
                 if( crc != null )
                 {
@@ -55,15 +206,63 @@ public class RomDatabase
                 }
             }
         }
+        mHeapFootprint = footprint;
+    }
+    
+    /**
+     * Gets a rough estimate of the number of bytes of Java heap retained by this database. It is
+     * computed from typical per-object costs rather than measured. When the compiled index is in
+     * use, its data lives in mapped memory (see {@link #getMappedFootprint()}) and only a nominal
+     * allowance for this object is counted.
+     * 
+     * @return The estimated heap footprint, in bytes.
+     */
+    public long getHeapFootprint()
+    {
+        return mHeapFootprint;
+    }
+    
+    /**
+     * Gets the number of bytes of the compiled index mapped into memory. Mapped pages live outside
+     * the Java heap and can be reclaimed by the system at any time.
+     * 
+     * @return The mapped size in bytes, or zero if the index is not in use.
+     */
+    public long getMappedFootprint()
+    {
+        return mIndex == null ? 0 : mIndex.getMappedSize();
+    }
+    
+    private static long estimateFootprint( String title, ConfigSection section )
+    {
+        // Section title is held by the section map and the section itself
+        long footprint = SECTION_OVERHEAD + STRING_OVERHEAD + 2 * title.length();
+        for( String parameter : section.keySet() )
+        {
+            // Each parameter is a pair of array slots; names are shared by every section, and so
+            // are short values ("Yes", "4"), so only count values that are likely unique
+            String value = section.get( parameter );
+            footprint += PARAMETER_OVERHEAD;
+            if( value != null && value.length() > 8 )
+                footprint += STRING_OVERHEAD + 2 * value.length();
+        }
+        return footprint;
     }
     
     public RomDetail lookupByMd5WithFallback( String md5, File file )
+    {
+        return lookupByMd5WithFallback( md5, file, null );
+    }
+    
+    public RomDetail lookupByMd5WithFallback( String md5, File file, RomHeader header )
     {
         RomDetail detail = lookupByMd5( md5 );
         if( detail == null )
         {
             // MD5 not in the database; lookup by CRC instead
-            String crc = new RomHeader( file ).crc;
+            if( header == null )
+                header = new RomHeader( file );
+            String crc = header.crc;
             RomDetail[] romDetails = lookupByCrc( crc );
             if( romDetails.length == 0 )
             {
@@ -92,22 +291,40 @@ public class RomDatabase
     
     public RomDetail lookupByMd5( String md5 )
     {
-        ConfigSection section = mConfigFile.get( md5 );
-        return section == null ? null : new RomDetail( section );
+        Entry entry = lookupEntry( md5 );
+        return entry == null ? null : new RomDetail( entry );
     }
     
     public RomDetail[] lookupByCrc( String crc )
     {
+        if( mIndex != null )
+        {
+            List<Entry> entries = mIndex.lookupByCrc( crc );
+            RomDetail[] results = new RomDetail[entries.size()];
+            for( int i = 0; i < results.length; i++ )
+                results[i] = new RomDetail( entries.get( i ) );
+            return results;
+        }
+        
         ArrayList<ConfigSection> sections = mCrcMap.get( crc );
         if( sections == null )
             return new RomDetail[0];
         
         RomDetail[] results = new RomDetail[sections.size()];
         for( int i = 0; i < results.length; i++ )
-            results[i] = new RomDetail( sections.get( i ) );
+            results[i] = new RomDetail( new Entry( sections.get( i ) ) );
         return results;
     }
     
+    private Entry lookupEntry( String md5 )
+    {
+        if( mIndex != null )
+            return mIndex.lookupByMd5( md5 );
+        
+        ConfigSection section = mConfigFile.get( md5 );
+        return section == null ? null : new Entry( section );
+    }
+    
     public class RomDetail
     {
         public final String crc;
@@ -121,19 +338,19 @@ public class RomDatabase
         public final int players;
         public final boolean rumble;
         
-        private RomDetail( ConfigSection section )
+        private RomDetail( Entry entry )
         {
-            // Never pass a null section
-            if( section == null )
-                throw new NullArgumentException( "section" );
+            // Never pass a null entry
+            if( entry == null )
+                throw new NullArgumentException( "entry" );
             
-            crc = section.get( "CRC" );
+            crc = entry.crc;
             
             // Use an empty goodname (not null) for certain homebrew ROMs
             if( "00000000 00000000".equals( crc ) )
                 goodName = "";
             else
-                goodName = section.get( "GoodName" );
+                goodName = entry.goodName;
             
             if( goodName != null )
             {
@@ -163,18 +380,18 @@ public class RomDatabase
             
             // Some ROMs have multiple entries. Instead of duplicating common data, the ini file
             // just references another entry.
-            String refMd5 = section.get( "RefMD5" );
+            String refMd5 = entry.refMd5;
             if( !TextUtils.isEmpty( refMd5 ) )
-                section = mConfigFile.get( refMd5 );
+                entry = lookupEntry( refMd5 );
             
-            if( section != null )
+            if( entry != null )
             {
-                saveType = section.get( "SaveType" );
-                String statusString = section.get( "Status" );
-                String playersString = section.get( "Players" );
+                saveType = entry.saveType;
+                String statusString = entry.status;
+                String playersString = entry.players;
                 status = TextUtils.isEmpty( statusString ) ? 0 : Integer.parseInt( statusString );
                 players = TextUtils.isEmpty( playersString ) ? 0 : Integer.parseInt( playersString );
-                rumble = "Yes".equals( section.get( "Rumble" ) );
+                rumble = "Yes".equals( entry.rumble );
             }
             else
             {
@@ -0,0 +1,509 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+import android.util.Log;
+
+/**
+ * A compiled, memory-mapped index of mupen64plus.ini that answers MD5 and CRC lookups without
+ * parsing the ini file.
+ * <p>
+ * File layout (all integers big-endian):
+ * <ul>
+ * <li>Header: magic, version, source length, source last-modified time, entry count, CRC count,
+ * and the offsets of the three tables below.
+ * <li>Entry table: one fixed-width record per ROM, sorted by MD5. Each record holds the 16 raw MD5
+ * bytes followed by string pool offsets for GoodName, CRC, RefMD5, SaveType, Status, Players, and
+ * Rumble (-1 if the field is absent).
+ * <li>CRC table: (crc1, crc2, entry index) triples sorted by CRC, in ini order within each CRC.
+ * <li>String pool: each distinct string is an unsigned 16-bit byte count followed by its UTF-8
+ * bytes.
+ * </ul>
+ * The source length and last-modified time are checked on open, so a stale index is never used.
+ */
+public final class RomDatabaseIndex
+{
+    private static final int MAGIC = 0x4D363449; // "M64I"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 44;
+    private static final int MD5_SIZE = 16;
+    private static final int NUM_FIELDS = 7;
+    private static final int ENTRY_SIZE = MD5_SIZE + 4 * NUM_FIELDS;
+    private static final int CRC_RECORD_SIZE = 12;
+    private static final int NO_STRING = -1;
+    private static final String CHARSET = "UTF-8";
+    
+    // Order of the string fields in each entry record
+    private static final int FIELD_GOOD_NAME = 0;
+    private static final int FIELD_CRC = 1;
+    private static final int FIELD_REF_MD5 = 2;
+    private static final int FIELD_SAVE_TYPE = 3;
+    private static final int FIELD_STATUS = 4;
+    private static final int FIELD_PLAYERS = 5;
+    private static final int FIELD_RUMBLE = 6;
+    private static final String[] FIELD_KEYS = { "GoodName", "CRC", "RefMD5", "SaveType", "Status",
+            "Players", "Rumble" };
+    
+    /**
+     * The raw ini fields of a single ROM entry.
+     */
+    static class Entry
+    {
+        public final String goodName;
+        public final String crc;
+        public final String refMd5;
+        public final String saveType;
+        public final String status;
+        public final String players;
+        public final String rumble;
+        
+        Entry( String goodName, String crc, String refMd5, String saveType, String status,
+                String players, String rumble )
+        {
+            this.goodName = goodName;
+            this.crc = crc;
+            this.refMd5 = refMd5;
+            this.saveType = saveType;
+            this.status = status;
+            this.players = players;
+            this.rumble = rumble;
+        }
+        
+        Entry( ConfigSection section )
+        {
+            this( section.get( "GoodName" ), section.get( "CRC" ), section.get( "RefMD5" ),
+                    section.get( "SaveType" ), section.get( "Status" ), section.get( "Players" ),
+                    section.get( "Rumble" ) );
+        }
+    }
+    
+    private final MappedByteBuffer mBuffer;
+    private final int mEntryCount;
+    private final int mCrcCount;
+    private final int mEntriesOffset;
+    private final int mCrcOffset;
+    private final int mPoolOffset;
+    
+    private RomDatabaseIndex( MappedByteBuffer buffer )
+    {
+        mBuffer = buffer;
+        mEntryCount = buffer.getInt( 24 );
+        mCrcCount = buffer.getInt( 28 );
+        mEntriesOffset = buffer.getInt( 32 );
+        mCrcOffset = buffer.getInt( 36 );
+        mPoolOffset = buffer.getInt( 40 );
+    }
+    
+    /**
+     * Gets the path of the index compiled from a given ini file.
+     * 
+     * @param mupen64plusIni The path of the ini file.
+     * 
+     * @return The path of the index file.
+     */
+    public static String getIndexPath( String mupen64plusIni )
+    {
+        return mupen64plusIni + ".idx";
+    }
+    
+    /**
+     * Maps the index for an ini file into memory.
+     * 
+     * @param mupen64plusIni The path of the ini file.
+     * 
+     * @return The index, or null if it is missing, corrupt, or older than the ini file.
+     */
+    public static RomDatabaseIndex open( String mupen64plusIni )
+    {
+        File source = new File( mupen64plusIni );
+        File indexFile = new File( getIndexPath( mupen64plusIni ) );
+        if( !source.exists() || !indexFile.exists() )
+            return null;
+        
+        FileInputStream stream = null;
+        try
+        {
+            stream = new FileInputStream( indexFile );
+            FileChannel channel = stream.getChannel();
+            MappedByteBuffer buffer = channel.map( FileChannel.MapMode.READ_ONLY, 0, channel.size() );
+            if( buffer.capacity() < HEADER_SIZE || buffer.getInt( 0 ) != MAGIC
+                    || buffer.getInt( 4 ) != VERSION || buffer.getLong( 8 ) != source.length()
+                    || buffer.getLong( 16 ) != source.lastModified() )
+                return null;
+            
+            return new RomDatabaseIndex( buffer );
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomDatabaseIndex", "Could not map index file " + indexFile.getPath() );
+            return null;
+        }
+        finally
+        {
+            // The mapping remains valid after the channel is closed
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    /**
+     * Compiles the index for an ini file and writes it next to the ini file.
+     * 
+     * @param config The parsed ini file.
+     * @param mupen64plusIni The path of the ini file.
+     * 
+     * @return True if the index was written.
+     */
+    public static boolean compile( ConfigFile config, String mupen64plusIni )
+    {
+        File source = new File( mupen64plusIni );
+        File indexFile = new File( getIndexPath( mupen64plusIni ) );
+        File tempFile = null;
+        
+        // Collect the entries keyed by a valid MD5, in ini order
+        final List<byte[]> md5s = new ArrayList<byte[]>();
+        final List<ConfigSection> sections = new ArrayList<ConfigSection>();
+        for( String key : config.keySet() )
+        {
+            byte[] md5 = parseMd5( key );
+            ConfigSection section = config.get( key );
+            if( md5 != null && section != null )
+            {
+                md5s.add( md5 );
+                sections.add( section );
+            }
+        }
+        
+        // Sort entries by MD5, remembering where each ini entry ended up
+        Integer[] order = new Integer[md5s.size()];
+        for( int i = 0; i < order.length; i++ )
+            order[i] = i;
+        Arrays.sort( order, new Comparator<Integer>()
+        {
+            @Override
+            public int compare( Integer lhs, Integer rhs )
+            {
+                return compareMd5( md5s.get( lhs ), md5s.get( rhs ) );
+            }
+        } );
+        int[] sortedIndex = new int[order.length];
+        for( int i = 0; i < order.length; i++ )
+            sortedIndex[order[i]] = i;
+        
+        try
+        {
+            // Build the string pool and entry table
+            ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+            DataOutputStream pool = new DataOutputStream( poolBytes );
+            Map<String, Integer> poolOffsets = new HashMap<String, Integer>();
+            ByteArrayOutputStream entryBytes = new ByteArrayOutputStream();
+            DataOutputStream entries = new DataOutputStream( entryBytes );
+            for( int i = 0; i < order.length; i++ )
+            {
+                ConfigSection section = sections.get( order[i] );
+                entries.write( md5s.get( order[i] ) );
+                for( String key : FIELD_KEYS )
+                    entries.writeInt( writeString( pool, poolOffsets, section.get( key ) ) );
+            }
+            
+            // Build the CRC table, keeping ini order among equal CRCs (sort is stable)
+            List<long[]> crcs = new ArrayList<long[]>();
+            for( int i = 0; i < sections.size(); i++ )
+            {
+                long[] crc = parseCrc( sections.get( i ).get( "CRC" ) );
+                if( crc != null )
+                    crcs.add( new long[] { crc[0], crc[1], sortedIndex[i] } );
+            }
+            Collections.sort( crcs, new Comparator<long[]>()
+            {
+                @Override
+                public int compare( long[] lhs, long[] rhs )
+                {
+                    if( lhs[0] != rhs[0] )
+                        return lhs[0] < rhs[0] ? -1 : 1;
+                    if( lhs[1] != rhs[1] )
+                        return lhs[1] < rhs[1] ? -1 : 1;
+                    return 0;
+                }
+            } );
+            
+            // Write everything to a temporary file, then swap it in
+            int entriesOffset = HEADER_SIZE;
+            int crcOffset = entriesOffset + entryBytes.size();
+            int poolOffset = crcOffset + crcs.size() * CRC_RECORD_SIZE;
+            // Unique name, in case another thread is compiling the same index
+            tempFile = File.createTempFile( indexFile.getName(), ".tmp", indexFile.getParentFile() );
+            DataOutputStream out = new DataOutputStream( new FileOutputStream( tempFile ) );
+            try
+            {
+                out.writeInt( MAGIC );
+                out.writeInt( VERSION );
+                out.writeLong( source.length() );
+                out.writeLong( source.lastModified() );
+                out.writeInt( order.length );
+                out.writeInt( crcs.size() );
+                out.writeInt( entriesOffset );
+                out.writeInt( crcOffset );
+                out.writeInt( poolOffset );
+                entryBytes.writeTo( out );
+                for( long[] crc : crcs )
+                {
+                    out.writeInt( (int) crc[0] );
+                    out.writeInt( (int) crc[1] );
+                    out.writeInt( (int) crc[2] );
+                }
+                poolBytes.writeTo( out );
+            }
+            finally
+            {
+                out.close();
+            }
+            if( !tempFile.renameTo( indexFile ) )
+                throw new IOException( "Could not rename " + tempFile.getPath() );
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.w( "RomDatabaseIndex", "Could not write index file " + indexFile.getPath() );
+            if( tempFile != null )
+                tempFile.delete();
+            return false;
+        }
+    }
+    
+    /**
+     * Gets the size of the memory-mapped index.
+     * 
+     * @return The size in bytes.
+     */
+    public int getMappedSize()
+    {
+        return mBuffer.capacity();
+    }
+    
+    /**
+     * Looks up a ROM entry by MD5.
+     * 
+     * @param md5 The MD5 of the ROM, as a hex string.
+     * 
+     * @return The entry, or null if not found.
+     */
+    Entry lookupByMd5( String md5 )
+    {
+        byte[] key = parseMd5( md5 );
+        if( key == null )
+            return null;
+        
+        byte[] probe = new byte[MD5_SIZE];
+        int low = 0;
+        int high = mEntryCount - 1;
+        while( low <= high )
+        {
+            int mid = ( low + high ) >>> 1;
+            int offset = mEntriesOffset + mid * ENTRY_SIZE;
+            for( int i = 0; i < MD5_SIZE; i++ )
+                probe[i] = mBuffer.get( offset + i );
+            
+            int comparison = compareMd5( probe, key );
+            if( comparison < 0 )
+                low = mid + 1;
+            else if( comparison > 0 )
+                high = mid - 1;
+            else
+                return readEntry( mid );
+        }
+        return null;
+    }
+    
+    /**
+     * Looks up all ROM entries with a given CRC, in ini order.
+     * 
+     * @param crc The CRC of the ROM, formatted as in the ROM header (e.g. "3B941695 F90A5EEB").
+     * 
+     * @return The matching entries, possibly empty.
+     */
+    List<Entry> lookupByCrc( String crc )
+    {
+        List<Entry> results = new ArrayList<Entry>();
+        long[] key = parseCrc( crc );
+        if( key == null )
+            return results;
+        
+        // Find the first record with this CRC
+        int low = 0;
+        int high = mCrcCount;
+        while( low < high )
+        {
+            int mid = ( low + high ) >>> 1;
+            if( compareCrcRecord( mid, key ) < 0 )
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        
+        for( int i = low; i < mCrcCount && compareCrcRecord( i, key ) == 0; i++ )
+            results.add( readEntry( mBuffer.getInt( mCrcOffset + i * CRC_RECORD_SIZE + 8 ) ) );
+        return results;
+    }
+    
+    private int compareCrcRecord( int record, long[] key )
+    {
+        int offset = mCrcOffset + record * CRC_RECORD_SIZE;
+        long crc1 = mBuffer.getInt( offset ) & 0xFFFFFFFFL;
+        long crc2 = mBuffer.getInt( offset + 4 ) & 0xFFFFFFFFL;
+        if( crc1 != key[0] )
+            return crc1 < key[0] ? -1 : 1;
+        if( crc2 != key[1] )
+            return crc2 < key[1] ? -1 : 1;
+        return 0;
+    }
+    
+    private Entry readEntry( int index )
+    {
+        int offset = mEntriesOffset + index * ENTRY_SIZE + MD5_SIZE;
+        String[] fields = new String[NUM_FIELDS];
+        for( int i = 0; i < NUM_FIELDS; i++ )
+            fields[i] = readString( mBuffer.getInt( offset + 4 * i ) );
+        return new Entry( fields[FIELD_GOOD_NAME], fields[FIELD_CRC], fields[FIELD_REF_MD5],
+                fields[FIELD_SAVE_TYPE], fields[FIELD_STATUS], fields[FIELD_PLAYERS],
+                fields[FIELD_RUMBLE] );
+    }
+    
+    private String readString( int poolOffset )
+    {
+        if( poolOffset == NO_STRING )
+            return null;
+        
+        // Absolute reads only, so concurrent lookups don't disturb each other
+        int offset = mPoolOffset + poolOffset;
+        int length = mBuffer.getShort( offset ) & 0xFFFF;
+        byte[] bytes = new byte[length];
+        for( int i = 0; i < length; i++ )
+            bytes[i] = mBuffer.get( offset + 2 + i );
+        try
+        {
+            return new String( bytes, CHARSET );
+        }
+        catch( UnsupportedEncodingException e )
+        {
+            // Every Java platform is required to support UTF-8
+            throw new RuntimeException( e );
+        }
+    }
+    
+    private static int writeString( DataOutputStream pool, Map<String, Integer> poolOffsets, String value )
+            throws IOException
+    {
+        if( value == null )
+            return NO_STRING;
+        
+        // Values such as "Yes", "4", and shared CRCs are stored only once
+        Integer existing = poolOffsets.get( value );
+        if( existing != null )
+            return existing;
+        
+        byte[] bytes = value.getBytes( CHARSET );
+        if( bytes.length > 0xFFFF )
+            throw new IOException( "String too long for index: " + value.substring( 0, 32 ) );
+        
+        int offset = pool.size();
+        pool.writeShort( bytes.length );
+        pool.write( bytes );
+        poolOffsets.put( value, offset );
+        return offset;
+    }
+    
+    private static byte[] parseMd5( String md5 )
+    {
+        if( md5 == null || md5.length() != 2 * MD5_SIZE )
+            return null;
+        
+        byte[] result = new byte[MD5_SIZE];
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int high = Character.digit( md5.charAt( 2 * i ), 16 );
+            int low = Character.digit( md5.charAt( 2 * i + 1 ), 16 );
+            if( high < 0 || low < 0 )
+                return null;
+            result[i] = (byte) ( ( high << 4 ) | low );
+        }
+        return result;
+    }
+    
+    private static long[] parseCrc( String crc )
+    {
+        // Only canonical CRC strings are indexed, since lookups are by exact string
+        if( crc == null || crc.length() != 17 || crc.charAt( 8 ) != ' ' )
+            return null;
+        
+        try
+        {
+            long crc1 = Long.parseLong( crc.substring( 0, 8 ), 16 );
+            long crc2 = Long.parseLong( crc.substring( 9 ), 16 );
+            if( !crc.equals( String.format( Locale.US, "%08X %08X", crc1, crc2 ) ) )
+                return null;
+            return new long[] { crc1, crc2 };
+        }
+        catch( NumberFormatException e )
+        {
+            return null;
+        }
+    }
+    
+    private static int compareMd5( byte[] lhs, byte[] rhs )
+    {
+        for( int i = 0; i < MD5_SIZE; i++ )
+        {
+            int difference = ( lhs[i] & 0xFF ) - ( rhs[i] & 0xFF );
+            if( difference != 0 )
+                return difference;
+        }
+        return 0;
+    }
+}
@@ -0,0 +1,202 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Walks a directory tree and hands each ROM file to a visitor as soon as it is found, rather than
+ * collecting the whole tree first.
+ * <p>
+ * The walk is iterative (depth-first, using an explicit stack) so deep trees cannot overflow the
+ * thread stack. Hidden directories, well-known system directories, and anything deeper than the
+ * depth limit are pruned without being listed. Within each directory, files are visited before
+ * descending into subdirectories, so the first results arrive after a single directory listing.
+ */
+public final class RomFileWalker
+{
+    /** The default maximum directory depth below the starting directory. */
+    public static final int DEFAULT_MAX_DEPTH = 12;
+    
+    /** Matches file names with a ROM extension; compiled once and shared. */
+    private static final Pattern ROM_NAME = Pattern.compile( ".+\\.(n64|v64|z64|zip)$",
+            Pattern.CASE_INSENSITIVE );
+    
+    /** Directories under the filesystem root that never contain user ROMs but can be large or slow to list. */
+    private static final Set<String> SYSTEM_PATHS = new HashSet<String>( Arrays.asList( "/proc", "/sys", "/dev",
+            "/acct" ) );
+    
+    /** The folder Android creates on each storage volume for recovered fragments. */
+    private static final String LOST_DIR = "LOST.DIR";
+    
+    /**
+     * Receives ROM files as they are discovered.
+     */
+    public interface Visitor
+    {
+        /**
+         * Called for each ROM file, in discovery order.
+         * 
+         * @param file The ROM file.
+         * 
+         * @return True to continue walking, false to stop.
+         * 
+         * @throws InterruptedException If the visitor was interrupted; ends the walk.
+         */
+        public boolean onRomFile( File file ) throws InterruptedException;
+    }
+    
+    private final int mMaxDepth;
+    
+    /**
+     * Creates a walker with the default depth limit.
+     */
+    public RomFileWalker()
+    {
+        this( DEFAULT_MAX_DEPTH );
+    }
+    
+    /**
+     * Creates a walker.
+     * 
+     * @param maxDepth The maximum directory depth below the starting directory.
+     */
+    public RomFileWalker( int maxDepth )
+    {
+        if( maxDepth < 0 )
+            throw new IllegalArgumentException( "Depth limit cannot be negative" );
+        
+        mMaxDepth = maxDepth;
+    }
+    
+    /**
+     * Determines whether a file name has a ROM extension.
+     * 
+     * @param name The file name.
+     * 
+     * @return True if the name denotes a ROM file.
+     */
+    public static boolean isRomName( String name )
+    {
+        return ROM_NAME.matcher( name ).matches();
+    }
+    
+    /**
+     * Walks the tree rooted at a path, visiting every ROM file found.
+     * 
+     * @param root The directory to walk, or a single file.
+     * @param visitor The visitor to receive ROM files.
+     * 
+     * @return True if the walk finished, false if the visitor stopped it early.
+     * 
+     * @throws InterruptedException If the visitor was interrupted.
+     */
+    public boolean walk( File root, Visitor visitor ) throws InterruptedException
+    {
+        if( !root.isDirectory() )
+            return !isRomName( root.getName() ) || visitor.onRomFile( root );
+        
+        LinkedList<File> dirs = new LinkedList<File>();
+        LinkedList<Integer> depths = new LinkedList<Integer>();
+        dirs.addFirst( root );
+        depths.addFirst( 0 );
+        
+        while( !dirs.isEmpty() )
+        {
+            File dir = dirs.removeFirst();
+            int depth = depths.removeFirst();
+            
+            File[] files = dir.listFiles();
+            if( files == null )
+                continue;
+            
+            // Visit files right away; remember subdirectories for later
+            int insertAt = 0;
+            for( File file : files )
+            {
+                String name = file.getName();
+                if( isRomName( name ) && file.isFile() )
+                {
+                    if( !visitor.onRomFile( file ) )
+                        return false;
+                }
+                else if( depth < mMaxDepth && !isPruned( file ) && file.isDirectory() )
+                {
+                    // Keep subdirectories in listing order on the stack
+                    dirs.add( insertAt, file );
+                    depths.add( insertAt, depth + 1 );
+                    insertAt++;
+                }
+            }
+        }
+        return true;
+    }
+    
+    /**
+     * Lists the directories that a walk from a given root would descend into, including the root
+     * itself, subject to the same pruning and depth limit.
+     * 
+     * @param root The directory to walk.
+     * 
+     * @return The directories, parents before children.
+     */
+    public List<File> listDirectories( File root )
+    {
+        List<File> result = new ArrayList<File>();
+        if( !root.isDirectory() )
+            return result;
+        
+        LinkedList<Integer> depths = new LinkedList<Integer>();
+        result.add( root );
+        depths.add( 0 );
+        for( int i = 0; i < result.size(); i++ )
+        {
+            int depth = depths.removeFirst();
+            File[] files = depth < mMaxDepth ? result.get( i ).listFiles() : null;
+            if( files == null )
+                continue;
+            
+            for( File file : files )
+            {
+                if( !isPruned( file ) && file.isDirectory() )
+                {
+                    result.add( file );
+                    depths.add( depth + 1 );
+                }
+            }
+        }
+        return result;
+    }
+    
+    private static boolean isPruned( File dir )
+    {
+        // System directories are matched by absolute path, so a user folder named "sys" is walked
+        String name = dir.getName();
+        return name.startsWith( "." ) || LOST_DIR.equals( name ) || SYSTEM_PATHS.contains( dir.getAbsolutePath() );
+    }
+}
@@ -20,9 +20,7 @@
  */
 package paulscode.android.mupen64plusae.util;
 
-import java.io.DataInputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.IOException;
 
 import android.util.Log;
@@ -72,7 +70,18 @@ public final class RomHeader
      */
     public RomHeader( File file )
     {
-        byte[] buffer = readFile( file );
+        this( readFile( file ) );
+    }
+    
+    /**
+     * Constructor.
+     * 
+     * @param header The raw header bytes of the ROM image, or null if unavailable.
+     */
+    public RomHeader( byte[] header )
+    {
+        // Don't byte-swap the caller's copy
+        byte[] buffer = header == null ? null : copyHeader( header );
         
         if( buffer == null )
         {
@@ -172,30 +181,23 @@ public final class RomHeader
     
     private static byte[] readFile( File file )
     {
-        byte[] buffer = new byte[0x40];
-        DataInputStream in = null;
+        // Reads the header of the image itself, even if the file is an archive
         try
         {
-            in = new DataInputStream( new FileInputStream( file ) );
-            in.read( buffer );
+            return RomSource.readHeader( file );
         }
         catch( IOException e )
         {
             Log.w( "RomHeader", "ROM file could not be read" );
-            buffer = null;
-        }
-        finally
-        {
-            try
-            {
-                if( in != null )
-                    in.close();
-            }
-            catch( IOException e )
-            {
-                Log.w( "RomHeader", "ROM file could not be closed" );
-            }
+            return null;
         }
+    }
+    
+    private static byte[] copyHeader( byte[] header )
+    {
+        // Arrays.copyOf( header, length ) requires API 9, so do it manually
+        byte[] buffer = new byte[RomSource.HEADER_SIZE];
+        System.arraycopy( header, 0, buffer, 0, Math.min( header.length, buffer.length ) );
         return buffer;
     }
     
@@ -0,0 +1,243 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Enumeration;
+import java.util.Locale;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Utility class that provides access to the N64 image stored in a ROM file, whether the file is a
+ * loose image (.n64, .v64, .z64) or an archive (.zip) containing one.
+ * <p>
+ * Archived images are streamed straight out of the archive, so the MD5 and header of a zipped ROM
+ * are those of the image inside it (matching mupen64plus.ini) rather than those of the container,
+ * and no temporary file is ever written.
+ */
+public final class RomSource
+{
+    /** Size of the N64 cartridge header, in bytes. */
+    public static final int HEADER_SIZE = 0x40;
+    
+    /**
+     * The MD5 hash and header of an N64 image, gathered in a single pass.
+     */
+    public static class ImageInfo
+    {
+        /** The MD5 hash of the image, as an uppercase hex string. */
+        public final String md5;
+        
+        /** The header of the image. */
+        public final RomHeader header;
+        
+        private ImageInfo( String md5, RomHeader header )
+        {
+            this.md5 = md5;
+            this.header = header;
+        }
+    }
+    
+    /**
+     * Determines whether a file is an archive that may contain an N64 image.
+     * 
+     * @param file The file to check.
+     * 
+     * @return True if the file is an archive.
+     */
+    public static boolean isArchive( File file )
+    {
+        return file.getName().toLowerCase( Locale.US ).endsWith( ".zip" );
+    }
+    
+    /**
+     * Determines whether a file name denotes a loose N64 image.
+     * 
+     * @param name The file name.
+     * 
+     * @return True if the name has an N64 image extension.
+     */
+    public static boolean isImageName( String name )
+    {
+        String lowerName = name.toLowerCase( Locale.US );
+        return lowerName.endsWith( ".n64" ) || lowerName.endsWith( ".v64" ) || lowerName.endsWith( ".z64" );
+    }
+    
+    /**
+     * Opens a stream over the N64 image stored in a file. For archives, this is the first entry
+     * with an N64 image extension. The caller must close the stream.
+     * 
+     * @param file The ROM file.
+     * 
+     * @return A stream positioned at the start of the image.
+     * 
+     * @throws IOException If the file could not be read or contains no N64 image.
+     */
+    public static InputStream openImage( File file ) throws IOException
+    {
+        if( !isArchive( file ) )
+            return new FileInputStream( file );
+        
+        final ZipFile zipFile = new ZipFile( file );
+        try
+        {
+            Enumeration<? extends ZipEntry> entries = zipFile.entries();
+            while( entries.hasMoreElements() )
+            {
+                ZipEntry entry = entries.nextElement();
+                if( !entry.isDirectory() && isImageName( entry.getName() ) )
+                {
+                    // Closing the entry stream also closes the archive
+                    return new FilterInputStream( zipFile.getInputStream( entry ) )
+                    {
+                        @Override
+                        public void close() throws IOException
+                        {
+                            try
+                            {
+                                super.close();
+                            }
+                            finally
+                            {
+                                zipFile.close();
+                            }
+                        }
+                    };
+                }
+            }
+        }
+        catch( IOException e )
+        {
+            zipFile.close();
+            throw e;
+        }
+        
+        zipFile.close();
+        throw new FileNotFoundException( "No N64 image found in " + file.getAbsolutePath() );
+    }
+    
+    /**
+     * Reads the header of the N64 image stored in a file.
+     * 
+     * @param file The ROM file.
+     * 
+     * @return The raw (not yet byte-swapped) header bytes.
+     * 
+     * @throws IOException If the file could not be read or the image is too short.
+     */
+    public static byte[] readHeader( File file ) throws IOException
+    {
+        InputStream stream = openImage( file );
+        try
+        {
+            byte[] buffer = new byte[HEADER_SIZE];
+            readFully( stream, buffer );
+            return buffer;
+        }
+        finally
+        {
+            stream.close();
+        }
+    }
+    
+    /**
+     * Computes the MD5 hash of the N64 image stored in a file.
+     * 
+     * @param file The ROM file.
+     * 
+     * @return The hash as an uppercase hex string, or null if the image could not be read.
+     */
+    public static String computeMd5( File file )
+    {
+        if( !isArchive( file ) )
+            return Md5Hasher.computeMd5( file );
+        
+        ImageInfo info = scan( file );
+        return info == null ? null : info.md5;
+    }
+    
+    /**
+     * Computes the MD5 hash and reads the header of the N64 image stored in a file. Archived images
+     * are decompressed only once, with the header captured as the data streams through the digest.
+     * 
+     * @param file The ROM file.
+     * 
+     * @return The hash and header, or null if the image could not be read.
+     */
+    public static ImageInfo scan( File file )
+    {
+        if( !isArchive( file ) )
+        {
+            String md5 = Md5Hasher.computeMd5( file );
+            return md5 == null ? null : new ImageInfo( md5, new RomHeader( file ) );
+        }
+        
+        InputStream stream = null;
+        try
+        {
+            stream = openImage( file );
+            MessageDigest digester = Md5Hasher.newDigester();
+            byte[] header = new byte[HEADER_SIZE];
+            readFully( stream, header );
+            digester.update( header );
+            Md5Hasher.update( digester, stream );
+            return new ImageInfo( Md5Hasher.toHexString( digester.digest() ), new RomHeader( header ) );
+        }
+        catch( IOException e )
+        {
+            return null;
+        }
+        finally
+        {
+            if( stream != null )
+            {
+                try
+                {
+                    stream.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+        }
+    }
+    
+    private static void readFully( InputStream stream, byte[] buffer ) throws IOException
+    {
+        // Inflater streams may return fewer bytes than requested, so keep reading
+        int offset = 0;
+        while( offset < buffer.length )
+        {
+            int count = stream.read( buffer, offset, buffer.length - offset );
+            if( count == -1 )
+                throw new EOFException();
+            offset += count;
+        }
+    }
+}
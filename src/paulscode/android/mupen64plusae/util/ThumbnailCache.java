@@ -0,0 +1,181 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+package paulscode.android.mupen64plusae.util;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import android.graphics.Bitmap;
+import android.text.TextUtils;
+import android.util.Log;
+
+/**
+ * Maintains small, pre-scaled copies of cover art for the gallery.
+ * <p>
+ * Each thumbnail is stored next to its source image, scaled to fit a gallery cell and compressed
+ * as JPEG, so the gallery decodes a few kilobytes per item instead of a full-size PNG. A thumbnail
+ * is rebuilt whenever it is missing or older than its source image.
+ */
+public class ThumbnailCache implements CoverArtDownloader.Listener
+{
+    /** The suffix appended to the source image path to form the thumbnail path. */
+    public static final String SUFFIX = ".thumb.jpg";
+    
+    private static final int JPEG_QUALITY = 85;
+    
+    private final int mWidth;
+    private final int mHeight;
+    
+    /**
+     * Creates a thumbnail cache.
+     * 
+     * @param width The maximum thumbnail width, in pixels.
+     * @param height The maximum thumbnail height, in pixels.
+     */
+    public ThumbnailCache( int width, int height )
+    {
+        if( width < 1 || height < 1 )
+            throw new IllegalArgumentException( "Thumbnail size must be positive" );
+        
+        mWidth = width;
+        mHeight = height;
+    }
+    
+    /**
+     * Gets the path of the thumbnail for a source image.
+     * 
+     * @param artPath The path of the source image.
+     * 
+     * @return The path of the thumbnail, or null if there is no source image.
+     */
+    public static String getThumbnailPath( String artPath )
+    {
+        return TextUtils.isEmpty( artPath ) ? null : artPath + SUFFIX;
+    }
+    
+    /**
+     * Determines whether the thumbnail for a source image exists and is at least as new as it.
+     * 
+     * @param artPath The path of the source image.
+     * 
+     * @return True if the thumbnail is up to date.
+     */
+    public static boolean isCurrent( String artPath )
+    {
+        if( TextUtils.isEmpty( artPath ) )
+            return false;
+        
+        File thumb = new File( getThumbnailPath( artPath ) );
+        return thumb.exists() && thumb.lastModified() >= new File( artPath ).lastModified();
+    }
+    
+    /**
+     * Builds the thumbnail for a source image if it is missing or stale. May be slow; do not call
+     * on the UI thread.
+     * 
+     * @param artPath The path of the source image.
+     * 
+     * @return True if an up-to-date thumbnail is available.
+     */
+    public boolean update( String artPath )
+    {
+        if( TextUtils.isEmpty( artPath ) || !new File( artPath ).exists() )
+            return false;
+        if( isCurrent( artPath ) )
+            return true;
+        
+        Bitmap source = CoverArtLoader.decodeSampled( artPath, mWidth, mHeight );
+        if( source == null )
+        {
+            Log.w( "ThumbnailCache", "Could not decode " + artPath );
+            return false;
+        }
+        
+        // Fit within the cell, keeping the aspect ratio
+        float scale = Math.min( (float) mWidth / source.getWidth(), (float) mHeight / source.getHeight() );
+        Bitmap thumbnail = source;
+        if( scale < 1 )
+        {
+            int width = Math.max( 1, Math.round( source.getWidth() * scale ) );
+            int height = Math.max( 1, Math.round( source.getHeight() * scale ) );
+            thumbnail = Bitmap.createScaledBitmap( source, width, height, true );
+            source.recycle();
+        }
+        
+        try
+        {
+            return write( thumbnail, new File( getThumbnailPath( artPath ) ) );
+        }
+        finally
+        {
+            thumbnail.recycle();
+        }
+    }
+    
+    @Override
+    public void onArtAvailable( String destPath )
+    {
+        update( destPath );
+    }
+    
+    private static boolean write( Bitmap thumbnail, File dest )
+    {
+        // Write to a temporary file so that the gallery never sees a partial thumbnail
+        File temp = null;
+        OutputStream output = null;
+        try
+        {
+            temp = File.createTempFile( dest.getName(), ".part", dest.getParentFile() );
+            output = new FileOutputStream( temp );
+            if( !thumbnail.compress( Bitmap.CompressFormat.JPEG, JPEG_QUALITY, output ) )
+                return false;
+            output.close();
+            output = null;
+            
+            if( !temp.renameTo( dest ) )
+                return false;
+            temp = null;
+            return true;
+        }
+        catch( IOException e )
+        {
+            Log.w( "ThumbnailCache", "Could not write " + dest.getAbsolutePath() + ": " + e.getMessage() );
+            return false;
+        }
+        finally
+        {
+            if( output != null )
+            {
+                try
+                {
+                    output.close();
+                }
+                catch( IOException ignored )
+                {
+                }
+            }
+            if( temp != null )
+                temp.delete();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CountDownLatch;
+
+import paulscode.android.mupen64plusae.cheat.CheatFile;
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatBlock;
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatCode;
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatOption;
+import paulscode.android.mupen64plusae.cheat.CheatFile.CheatSection;
+
+/**
+ * Measures the time taken by {@link CheatFile} to open the default cheat database and then parse
+ * every section, on the calling thread and with {@link CheatFile#loadAll(int)} on several threads.
+ * The database ships split into parts, which are first joined into a temporary file. Each thread
+ * count is first checked to parse exactly as a single thread does, including when many threads
+ * read the same sections at once. Run with tools/benchmark/run.sh.
+ */
+public class CheatFileBenchmark
+{
+    private static final String DATABASE = "mupen64plus_data/mupencheat.default";
+    private static final int WARMUP_RUNS = 10;
+    private static final int MEASURED_RUNS = 20;
+    private static final int CONTENDED_THREADS = 8;
+    
+    public static void main( String[] args ) throws Exception
+    {
+        File assets = new File( args.length > 0 ? args[0] : "assets" );
+        File database = File.createTempFile( "bench", ".txt" );
+        try
+        {
+            if( !joinParts( new File( assets, DATABASE ), database ) )
+            {
+                System.out.println( "No parts of " + DATABASE + " found in " + assets.getPath() );
+                return;
+            }
+            
+            int cores = Runtime.getRuntime().availableProcessors();
+            List<Integer> threadCounts = new ArrayList<Integer>();
+            for( int threads = 1; threads <= Math.max( 4, cores ); threads *= 2 )
+                threadCounts.add( threads );
+            if( !threadCounts.contains( cores ) )
+                threadCounts.add( cores );
+            
+            String expected = dump( parse( database, 1 ) );
+            for( int threads : threadCounts )
+            {
+                if( !expected.equals( dump( parse( database, threads ) ) ) )
+                    throw new IllegalStateException( "Parse mismatch with " + threads + " threads" );
+            }
+            if( !expected.equals( dumpContended( database ) ) )
+                throw new IllegalStateException( "Parse mismatch with contended sections" );
+            
+            for( int i = 0; i < WARMUP_RUNS; i++ )
+            {
+                for( int threads : threadCounts )
+                    parse( database, threads );
+            }
+            
+            System.out.println( String.format( Locale.US, "%s (%dK, %d sections), %d cores",
+                    DATABASE, database.length() / 1024, parse( database, 1 ).keySet().size(), cores ) );
+            System.out.println( String.format( Locale.US, "%-8s %10s %10s %10s", "Threads", "open (ms)",
+                    "parse (ms)", "total (ms)" ) );
+            for( int threads : threadCounts )
+            {
+                long open = 0;
+                long load = 0;
+                for( int i = 0; i < MEASURED_RUNS; i++ )
+                {
+                    long start = System.nanoTime();
+                    CheatFile cheats = new CheatFile( database.getPath() );
+                    long opened = System.nanoTime();
+                    if( !cheats.loadAll( threads ) )
+                        throw new IllegalStateException( "Parse failed with " + threads + " threads" );
+                    load += System.nanoTime() - opened;
+                    open += opened - start;
+                }
+                System.out.println( String.format( Locale.US, "%-8d %10.2f %10.2f %10.2f", threads,
+                        open / 1e6 / MEASURED_RUNS, load / 1e6 / MEASURED_RUNS, ( open + load ) / 1e6
+                                / MEASURED_RUNS ) );
+            }
+        }
+        finally
+        {
+            database.delete();
+        }
+    }
+    
+    private static CheatFile parse( File database, int threads )
+    {
+        CheatFile cheats = new CheatFile( database.getPath() );
+        if( !cheats.loadAll( threads ) )
+            throw new IllegalStateException( "Parse failed with " + threads + " threads" );
+        return cheats;
+    }
+    
+    /** Parses every section from many threads at once, each visiting the sections in turn. */
+    private static String dumpContended( File database ) throws InterruptedException
+    {
+        final CheatFile cheats = new CheatFile( database.getPath() );
+        final CountDownLatch start = new CountDownLatch( 1 );
+        final String[] dumps = new String[CONTENDED_THREADS];
+        Thread[] threads = new Thread[CONTENDED_THREADS];
+        for( int i = 0; i < threads.length; i++ )
+        {
+            final int index = i;
+            threads[i] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        start.await();
+                        dumps[index] = dump( cheats );
+                    }
+                    catch( InterruptedException ignored )
+                    {
+                    }
+                }
+            };
+            threads[i].start();
+        }
+        start.countDown();
+        for( Thread thread : threads )
+            thread.join();
+        
+        for( String dump : dumps )
+        {
+            if( dump == null || !dump.equals( dumps[0] ) )
+                return null;
+        }
+        return dumps[0];
+    }
+    
+    private static String dump( CheatFile cheats )
+    {
+        StringBuilder text = new StringBuilder();
+        for( String key : cheats.keySet() )
+        {
+            CheatSection section = cheats.get( key );
+            text.append( "crc " ).append( key ).append( '\n' );
+            for( int i = 0; i < section.size(); i++ )
+            {
+                CheatBlock block = section.get( i );
+                text.append( block.name ).append( '|' ).append( block.getDescription() ).append( '\n' );
+                for( int j = 0; j < block.size(); j++ )
+                {
+                    CheatCode code = block.get( j );
+                    text.append( code.address ).append( ' ' ).append( code.code );
+                    if( code.options != null )
+                    {
+                        for( CheatOption option : code.options )
+                            text.append( ' ' ).append( option.code ).append( '=' ).append( option.name );
+                    }
+                    text.append( '\n' );
+                }
+            }
+            text.append( section.goodName ).append( '\n' );
+        }
+        return text.toString();
+    }
+    
+    /** Joins the numbered parts of a split asset (name.part0, name.part1, ...) into one file. */
+    private static boolean joinParts( File asset, File dest ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( dest );
+        try
+        {
+            int part = 0;
+            File file;
+            while( ( file = new File( asset.getPath() + ".part" + part ) ).exists() )
+            {
+                InputStream in = new FileInputStream( file );
+                try
+                {
+                    byte[] buffer = new byte[8192];
+                    int count;
+                    while( ( count = in.read( buffer ) ) > 0 )
+                        out.write( buffer, 0, count );
+                }
+                finally
+                {
+                    in.close();
+                }
+                part++;
+            }
+            return part > 0;
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+}
\ No newline at end of file
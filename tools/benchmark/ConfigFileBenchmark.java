@@ -0,0 +1,405 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+
+import paulscode.android.mupen64plusae.persistent.ConfigFile;
+import paulscode.android.mupen64plusae.persistent.ConfigFile.ConfigSection;
+
+/**
+ * Measures the time and memory allocated by {@link ConfigFile} to parse each config file shipped
+ * in the assets, against the line-based parser it replaced. Sections are parsed on first access,
+ * so the current parser is measured both opening the file ("indexed") and then loading every
+ * section ("loaded"), as well as in its read-only compact form ("compact"). Each file is first
+ * checked to parse, and save back, exactly as it did before. The heap retained by each form is
+ * then measured for the largest file. Run with tools/benchmark/run.sh.
+ */
+public class ConfigFileBenchmark
+{
+    private static final int WARMUP_RUNS = 100;
+    private static final int MEASURED_RUNS = 100;
+    
+    private static final int LEGACY = 0;
+    private static final int INDEXED = 1;
+    private static final int LOADED = 2;
+    private static final int COMPACT = 3;
+    private static final String[] MODE_NAMES = { "legacy", "indexed", "loaded", "compact" };
+    private static final int RETAINED_COPIES = 10;
+    
+    public static void main( String[] args ) throws Exception
+    {
+        File assets = new File( args.length > 0 ? args[0] : "assets" );
+        List<File> files = new ArrayList<File>();
+        findConfigFiles( assets, files );
+        if( files.isEmpty() )
+        {
+            System.out.println( "No config files found in " + assets.getPath() );
+            return;
+        }
+        
+        // Warm up every parser on every file first, so that no file is measured with a cold JIT
+        for( File file : files )
+        {
+            verify( file );
+            for( int i = 0; i < WARMUP_RUNS; i++ )
+            {
+                for( int mode = 0; mode < MODE_NAMES.length; mode++ )
+                    parse( file, mode );
+            }
+        }
+        
+        StringBuilder modes = new StringBuilder();
+        for( String name : MODE_NAMES )
+            modes.append( String.format( Locale.US, " %9s", name ) );
+        System.out.println( String.format( Locale.US, "%-24s %6s %39s   %39s", "File", "Size",
+                "time (ms)", "allocated (KB)" ) );
+        System.out.println( String.format( Locale.US, "%-24s %6s%s  %s", "", "", modes, modes ) );
+        for( File file : files )
+        {
+            StringBuilder times = new StringBuilder();
+            StringBuilder allocations = new StringBuilder();
+            for( int mode = 0; mode < MODE_NAMES.length; mode++ )
+            {
+                times.append( String.format( Locale.US, " %9.3f", measureTime( file, mode ) ) );
+                allocations.append( String.format( Locale.US, " %9s", formatKb( measureAllocation( file, mode ) ) ) );
+            }
+            System.out.println( String.format( Locale.US, "%-24s %5dK%s  %s", file.getName(),
+                    file.length() / 1024, times, allocations ) );
+        }
+        
+        File largest = files.get( 0 );
+        for( File file : files )
+        {
+            if( file.length() > largest.length() )
+                largest = file;
+        }
+        System.out.println();
+        System.out.println( "Retained heap for " + largest.getName() + " (KB):" );
+        for( int mode = 0; mode < MODE_NAMES.length; mode++ )
+        {
+            if( mode != INDEXED )
+                System.out.println( String.format( Locale.US, "%-24s %9s", MODE_NAMES[mode],
+                        formatKb( measureRetained( largest, mode ) ) ) );
+        }
+    }
+    
+    private static void findConfigFiles( File dir, List<File> files )
+    {
+        File[] children = dir.listFiles();
+        if( children == null )
+            return;
+        
+        for( File child : children )
+        {
+            String name = child.getName();
+            if( child.isDirectory() )
+                findConfigFiles( child, files );
+            else if( name.endsWith( ".ini" ) || name.endsWith( ".cfg" ) )
+                files.add( child );
+        }
+    }
+    
+    private static void verify( File file ) throws IOException
+    {
+        // Parse a copy, since saving writes back to the parsed file
+        File copy = File.createTempFile( "bench", ".cfg" );
+        try
+        {
+            copyFile( file, copy );
+            ConfigFile current = new ConfigFile( copy.getPath() );
+            LinkedHashMap<String, LegacySection> legacy = legacyParse( file );
+            
+            if( !new ArrayList<String>( legacy.keySet() ).equals( new ArrayList<String>( current.keySet() ) ) )
+                throw new IllegalStateException( "Section mismatch in " + file.getPath() );
+            for( LegacySection section : legacy.values() )
+            {
+                for( String parameter : section.parameters.keySet() )
+                {
+                    if( !section.parameters.get( parameter ).equals( current.get( section.name, parameter ) ) )
+                        throw new IllegalStateException( "Value mismatch in " + file.getPath() + ": ["
+                                + section.name + "] " + parameter );
+                }
+                if( section.parameters.size() != current.get( section.name ).keySet().size() )
+                    throw new IllegalStateException( "Parameter mismatch in " + file.getPath() + ": ["
+                            + section.name + "]" );
+            }
+            
+            // Saving without changes must not touch the file
+            current.save();
+            if( current.getBytesWritten() != 0 )
+                throw new IllegalStateException( "Unchanged file was rewritten: " + file.getPath() );
+            
+            // Remove the copy to force a rewrite, then compare as saved, since characters the
+            // charset cannot encode are replaced on writing
+            copy.delete();
+            current.save();
+            if( current.getBytesWritten() != copy.length() )
+                throw new IllegalStateException( "Wrong byte count reported for " + file.getPath() );
+            if( !new String( legacySave( legacy ).getBytes() ).equals( readFile( copy ) ) )
+                throw new IllegalStateException( "Saved text mismatch in " + file.getPath() );
+            
+            // The compact form must hold the same sections and values
+            ConfigFile compact = ConfigFile.loadCompact( file.getPath() );
+            if( !new ArrayList<String>( legacy.keySet() ).equals( new ArrayList<String>( compact.keySet() ) ) )
+                throw new IllegalStateException( "Compact section mismatch in " + file.getPath() );
+            for( LegacySection section : legacy.values() )
+            {
+                if( !section.parameters.equals( toMap( compact.get( section.name ) ) ) )
+                    throw new IllegalStateException( "Compact value mismatch in " + file.getPath() + ": ["
+                            + section.name + "]" );
+            }
+        }
+        finally
+        {
+            copy.delete();
+        }
+    }
+    
+    private static double measureTime( File file, int mode ) throws IOException
+    {
+        long start = System.nanoTime();
+        for( int i = 0; i < MEASURED_RUNS; i++ )
+            parse( file, mode );
+        return ( System.nanoTime() - start ) / 1e6 / MEASURED_RUNS;
+    }
+    
+    private static long measureAllocation( File file, int mode ) throws IOException
+    {
+        // Only HotSpot-based JVMs can report per-thread allocation
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if( !( bean instanceof com.sun.management.ThreadMXBean ) )
+            return -1;
+        
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        long id = Thread.currentThread().getId();
+        long before = threads.getThreadAllocatedBytes( id );
+        for( int i = 0; i < MEASURED_RUNS; i++ )
+            parse( file, mode );
+        return ( threads.getThreadAllocatedBytes( id ) - before ) / MEASURED_RUNS;
+    }
+    
+    private static long measureRetained( File file, int mode ) throws IOException
+    {
+        // Hold several copies at once, to average out the noise of the collector
+        Object[] copies = new Object[RETAINED_COPIES];
+        long before = usedHeap();
+        for( int i = 0; i < copies.length; i++ )
+            copies[i] = parse( file, mode );
+        long after = usedHeap();
+        if( copies[copies.length - 1] == null )
+            throw new IllegalStateException();
+        return ( after - before ) / copies.length;
+    }
+    
+    private static long usedHeap()
+    {
+        Runtime runtime = Runtime.getRuntime();
+        for( int i = 0; i < 4; i++ )
+            System.gc();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+    
+    private static Object parse( File file, int mode ) throws IOException
+    {
+        if( mode == LEGACY )
+            return legacyParse( file );
+        if( mode == COMPACT )
+            return ConfigFile.loadCompact( file.getPath() );
+        
+        ConfigFile config = new ConfigFile( file.getPath() );
+        if( mode == LOADED )
+        {
+            for( String section : config.keySet() )
+                config.get( section ).keySet();
+        }
+        return config;
+    }
+    
+    private static HashMap<String, String> toMap( ConfigSection section )
+    {
+        HashMap<String, String> map = new HashMap<String, String>();
+        for( String parameter : section.keySet() )
+            map.put( parameter, section.get( parameter ) );
+        return map;
+    }
+    
+    private static void copyFile( File src, File dest ) throws IOException
+    {
+        InputStream in = new FileInputStream( src );
+        OutputStream out = new FileOutputStream( dest );
+        try
+        {
+            byte[] buffer = new byte[8192];
+            int count;
+            while( ( count = in.read( buffer ) ) > 0 )
+                out.write( buffer, 0, count );
+        }
+        finally
+        {
+            in.close();
+            out.close();
+        }
+    }
+    
+    private static String readFile( File file ) throws IOException
+    {
+        StringBuilder text = new StringBuilder();
+        InputStreamReader reader = new InputStreamReader( new FileInputStream( file ) );
+        try
+        {
+            char[] buffer = new char[8192];
+            int count;
+            while( ( count = reader.read( buffer ) ) > 0 )
+                text.append( buffer, 0, count );
+        }
+        finally
+        {
+            reader.close();
+        }
+        return text.toString();
+    }
+    
+    private static String formatKb( long bytes )
+    {
+        return bytes < 0 ? "n/a" : String.valueOf( bytes / 1024 );
+    }
+    
+    /** The section reader previously used by ConfigFile, kept here as the baseline. */
+    private static LinkedHashMap<String, LegacySection> legacyParse( File file ) throws IOException
+    {
+        LinkedHashMap<String, LegacySection> sections = new LinkedHashMap<String, LegacySection>();
+        BufferedReader br = new BufferedReader( new InputStreamReader( new FileInputStream( file ) ) );
+        try
+        {
+            LegacySection section = new LegacySection( ConfigFile.SECTIONLESS_NAME, br );
+            sections.put( section.name, section );
+            while( section.nextName != null && section.nextName.length() > 0 )
+            {
+                section = new LegacySection( section.nextName, br );
+                sections.put( section.name, section );
+            }
+        }
+        finally
+        {
+            br.close();
+        }
+        return sections;
+    }
+    
+    private static String legacySave( LinkedHashMap<String, LegacySection> sections )
+    {
+        StringBuilder text = new StringBuilder();
+        for( LegacySection section : sections.values() )
+        {
+            for( String[] line : section.lines )
+            {
+                if( line[1] == null )
+                {
+                    text.append( line[0] );
+                }
+                else
+                {
+                    int x = line[0].indexOf( '=' );
+                    text.append( line[0].substring( 0, x + 1 ) + section.parameters.get( line[1] ) + "\n" );
+                }
+            }
+        }
+        return text.toString();
+    }
+    
+    private static class LegacySection
+    {
+        public final String name;
+        public final HashMap<String, String> parameters = new HashMap<String, String>();
+        
+        /** Raw lines, each paired with its parameter name, or null if not a parameter line. */
+        public final LinkedList<String[]> lines = new LinkedList<String[]>();
+        public String nextName = null;
+        
+        public LegacySection( String sectionName, BufferedReader br ) throws IOException
+        {
+            name = sectionName;
+            if( !sectionName.equals( ConfigFile.SECTIONLESS_NAME ) )
+                lines.add( new String[] { "[" + sectionName + "]\n", null } );
+            
+            String fullLine, strLine, p, v;
+            int x, y;
+            while( ( fullLine = br.readLine() ) != null )
+            {
+                strLine = fullLine.trim();
+                if( ( strLine.length() < 1 ) || ( strLine.substring( 0, 1 ).equals( "#" ) )
+                        || ( strLine.substring( 0, 1 ).equals( ";" ) )
+                        || ( ( strLine.length() > 1 ) && ( strLine.substring( 0, 2 ).equals( "//" ) ) ) )
+                {
+                    lines.add( new String[] { fullLine + "\n", null } );
+                }
+                else if( strLine.contains( "=" ) )
+                {
+                    x = strLine.indexOf( '=' );
+                    if( x < 1 )
+                        return;
+                    if( x < ( strLine.length() - 1 ) )
+                    {
+                        p = strLine.substring( 0, x ).trim();
+                        if( p.length() < 1 )
+                            return;
+                        v = strLine.substring( x + 1, strLine.length() ).trim();
+                        if( v.length() > 0 )
+                        {
+                            if( !parameters.containsKey( p ) )
+                                lines.add( new String[] { fullLine + "\n", p } );
+                            parameters.put( p, v );
+                        }
+                    }
+                }
+                else if( strLine.contains( "[" ) )
+                {
+                    if( ( strLine.length() < 3 ) || ( !strLine.contains( "]" ) ) )
+                        return;
+                    x = strLine.indexOf( '[' );
+                    y = strLine.indexOf( ']' );
+                    if( ( y <= x + 1 ) || ( x == -1 ) || ( y == -1 ) )
+                        return;
+                    nextName = strLine.substring( x + 1, y ).trim();
+                    return;
+                }
+                else
+                {
+                    return;
+                }
+            }
+        }
+    }
+}
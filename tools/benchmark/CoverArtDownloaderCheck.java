@@ -0,0 +1,235 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import paulscode.android.mupen64plusae.util.CoverArtDownloader;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Checks {@link CoverArtDownloader} against a local HTTP server standing in for the cover art
+ * host: successful downloads, missing images, transient server errors that recover, servers that
+ * never recover, images already on disk, and giving up a wait on a download that never finishes.
+ * Prints one line per case and exits with a non-zero status if any case fails. Run with
+ * tools/benchmark/run.sh.
+ */
+public class CoverArtDownloaderCheck
+{
+    private static final byte[] IMAGE = new byte[100 * 1024];
+    private static final int MAX_ATTEMPTS = 3;
+    private static final long BACKOFF = 50;
+    private static final long WAIT = 10000;
+    private static final long HANG = 2000;
+    
+    /** Requests received, by path. */
+    private static final Map<String, Integer> sRequests = Collections
+            .synchronizedMap( new HashMap<String, Integer>() );
+    
+    private static int sFailures = 0;
+    
+    public static void main( String[] args ) throws Exception
+    {
+        for( int i = 0; i < IMAGE.length; i++ )
+            IMAGE[i] = (byte) i;
+        
+        HttpServer server = HttpServer.create( new InetSocketAddress( "127.0.0.1", 0 ), 0 );
+        server.createContext( "/", new HttpHandler()
+        {
+            @Override
+            public void handle( HttpExchange exchange ) throws IOException
+            {
+                respond( exchange );
+            }
+        } );
+        server.start();
+        String base = "http://127.0.0.1:" + server.getAddress().getPort();
+        
+        File dir = File.createTempFile( "art", "" );
+        dir.delete();
+        dir.mkdirs();
+        try
+        {
+            final Set<String> available = Collections.synchronizedSet( new HashSet<String>() );
+            CoverArtDownloader downloader = new CoverArtDownloader( 2, MAX_ATTEMPTS, BACKOFF,
+                    new CoverArtDownloader.Listener()
+                    {
+                        @Override
+                        public void onArtAvailable( String destPath )
+                        {
+                            available.add( destPath );
+                        }
+                    } );
+            
+            String ok = new File( dir, "ok.png" ).getPath();
+            String missing = new File( dir, "missing.png" ).getPath();
+            String flaky = new File( dir, "flaky.png" ).getPath();
+            String broken = new File( dir, "broken.png" ).getPath();
+            String cached = new File( dir, "cached.png" ).getPath();
+            write( new File( cached ) );
+            
+            downloader.enqueue( base + "/ok", ok );
+            downloader.enqueue( base + "/missing", missing );
+            downloader.enqueue( base + "/flaky", flaky );
+            downloader.enqueue( base + "/broken", broken );
+            downloader.enqueue( base + "/cached", cached );
+            check( "all finish", downloader.awaitIdle( WAIT ) );
+            
+            check( "download", matches( ok ) && available.contains( ok ) && requests( "/ok" ) == 1 );
+            check( "404 not retried", !new File( missing ).exists() && !available.contains( missing )
+                    && requests( "/missing" ) == 1 );
+            check( "503 retried until served", matches( flaky ) && available.contains( flaky )
+                    && requests( "/flaky" ) == MAX_ATTEMPTS );
+            check( "500 given up after " + MAX_ATTEMPTS + " attempts", !new File( broken ).exists()
+                    && requests( "/broken" ) == MAX_ATTEMPTS );
+            check( "on disk not fetched", available.contains( cached ) && requests( "/cached" ) == 0 );
+            
+            // A download that never completes must not hold a cancellable wait
+            downloader.enqueue( base + "/hang", new File( dir, "hang.png" ).getPath() );
+            long start = System.currentTimeMillis();
+            boolean idle = downloader.awaitIdle( 200 );
+            long waited = System.currentTimeMillis() - start;
+            check( "wait times out (" + waited + " ms)", !idle && waited < WAIT );
+            downloader.shutdownNow();
+            check( "shutdown releases wait", downloader.awaitIdle( WAIT ) );
+            
+            Set<String> left = new HashSet<String>( Arrays.asList( dir.list() ) );
+            left.removeAll( Arrays.asList( "ok.png", "flaky.png", "cached.png" ) );
+            check( "no partial files", left.isEmpty() );
+        }
+        finally
+        {
+            server.stop( 0 );
+            for( File file : dir.listFiles() )
+                file.delete();
+            dir.delete();
+        }
+        
+        System.out.println( sFailures == 0 ? "All checks passed" : sFailures + " checks failed" );
+        System.exit( sFailures == 0 ? 0 : 1 );
+    }
+    
+    private static void respond( HttpExchange exchange ) throws IOException
+    {
+        String path = exchange.getRequestURI().getPath();
+        int count;
+        synchronized( sRequests )
+        {
+            Integer previous = sRequests.get( path );
+            count = previous == null ? 1 : previous + 1;
+            sRequests.put( path, count );
+        }
+        
+        int status;
+        if( path.equals( "/ok" ) || path.equals( "/cached" ) )
+            status = 200;
+        else if( path.equals( "/flaky" ) )
+            status = count < MAX_ATTEMPTS ? 503 : 200;
+        else if( path.equals( "/broken" ) )
+            status = 500;
+        else if( path.equals( "/hang" ) )
+            status = hang();
+        else
+            status = 404;
+        
+        if( status == 200 )
+        {
+            exchange.sendResponseHeaders( 200, IMAGE.length );
+            OutputStream body = exchange.getResponseBody();
+            body.write( IMAGE );
+            body.close();
+        }
+        else
+        {
+            exchange.sendResponseHeaders( status, -1 );
+            exchange.close();
+        }
+    }
+    
+    private static int hang()
+    {
+        try
+        {
+            Thread.sleep( HANG );
+        }
+        catch( InterruptedException ignored )
+        {
+        }
+        return 503;
+    }
+    
+    private static int requests( String path )
+    {
+        Integer count = sRequests.get( path );
+        return count == null ? 0 : count;
+    }
+    
+    private static boolean matches( String path ) throws IOException
+    {
+        File file = new File( path );
+        if( file.length() != IMAGE.length )
+            return false;
+        byte[] bytes = new byte[IMAGE.length];
+        DataInputStream in = new DataInputStream( new FileInputStream( file ) );
+        try
+        {
+            in.readFully( bytes );
+        }
+        finally
+        {
+            in.close();
+        }
+        return Arrays.equals( bytes, IMAGE );
+    }
+    
+    private static void write( File file ) throws IOException
+    {
+        OutputStream out = new FileOutputStream( file );
+        try
+        {
+            out.write( IMAGE );
+        }
+        finally
+        {
+            out.close();
+        }
+    }
+    
+    private static void check( String name, boolean passed )
+    {
+        System.out.println( ( passed ? "PASS " : "FAIL " ) + name );
+        if( !passed )
+            sFailures++;
+    }
+}
\ No newline at end of file
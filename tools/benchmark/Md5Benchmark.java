@@ -0,0 +1,149 @@
+/**
+ * Mupen64PlusAE, an N64 emulator for the Android platform
+ * 
+ * Copyright (C) 2013 Paul Lamb
+ * 
+ * This file is part of Mupen64PlusAE.
+ * 
+ * Mupen64PlusAE is free software: you can redistribute it and/or modify it under the terms of the
+ * GNU General Public License as published by the Free Software Foundation, either version 3 of the
+ * License, or (at your option) any later version.
+ * 
+ * Mupen64PlusAE is distributed in the hope that it will be useful, but WITHOUT ANY WARRANTY;
+ * without even the implied warranty of MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+ * GNU General Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Public License along with Mupen64PlusAE. If
+ * not, see <http://www.gnu.org/licenses/>.
+ * 
+ * Authors: littleguy77
+ */
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.util.Locale;
+import java.util.Random;
+
+import paulscode.android.mupen64plusae.util.Md5Hasher;
+
+/**
+ * Measures the throughput of {@link Md5Hasher} against the stream-based implementation it
+ * replaced, on synthetic ROM images of typical cartridge sizes. Run with tools/benchmark/run.sh.
+ */
+public class Md5Benchmark
+{
+    private static final int[] ROM_SIZES_MB = { 8, 16, 32, 64 };
+    private static final int WARMUP_RUNS = 2;
+    private static final int MEASURED_RUNS = 5;
+    
+    public static void main( String[] args ) throws Exception
+    {
+        File dir = new File( args.length > 0 ? args[0] : System.getProperty( "java.io.tmpdir" ) );
+        System.out.println( String.format( Locale.US, "%-8s %12s %12s %12s", "ROM", "legacy", "read",
+                "mapped" ) );
+        
+        for( int sizeMb : ROM_SIZES_MB )
+        {
+            File rom = createRom( dir, sizeMb );
+            try
+            {
+                String expected = legacyMd5( rom );
+                double legacy = measure( rom, sizeMb, null, expected );
+                double read = measure( rom, sizeMb, Md5Hasher.Mode.READ, expected );
+                double mapped = measure( rom, sizeMb, Md5Hasher.Mode.MAPPED, expected );
+                System.out.println( String.format( Locale.US, "%-8s %7.1f MB/s %7.1f MB/s %7.1f MB/s",
+                        sizeMb + " MB", legacy, read, mapped ) );
+            }
+            finally
+            {
+                rom.delete();
+            }
+        }
+    }
+    
+    private static double measure( File rom, int sizeMb, Md5Hasher.Mode mode, String expected )
+    {
+        for( int i = 0; i < WARMUP_RUNS; i++ )
+            hash( rom, mode );
+        
+        long start = System.nanoTime();
+        for( int i = 0; i < MEASURED_RUNS; i++ )
+        {
+            String md5 = hash( rom, mode );
+            if( !expected.equals( md5 ) )
+                throw new IllegalStateException( "Hash mismatch in mode " + mode );
+        }
+        double seconds = ( System.nanoTime() - start ) / 1e9;
+        return sizeMb * MEASURED_RUNS / seconds;
+    }
+    
+    private static String hash( File rom, Md5Hasher.Mode mode )
+    {
+        return mode == null ? legacyMd5( rom ) : Md5Hasher.computeMd5( rom, mode );
+    }
+    
+    private static File createRom( File dir, int sizeMb ) throws IOException
+    {
+        File rom = File.createTempFile( "bench" + sizeMb, ".z64", dir );
+        byte[] chunk = new byte[1024 * 1024];
+        Random random = new Random( sizeMb );
+        FileOutputStream out = new FileOutputStream( rom );
+        try
+        {
+            for( int i = 0; i < sizeMb; i++ )
+            {
+                random.nextBytes( chunk );
+                out.write( chunk );
+            }
+        }
+        finally
+        {
+            out.close();
+        }
+        return rom;
+    }
+    
+    /** The implementation previously used by ComputeMd5Task, kept here as the baseline. */
+    private static String legacyMd5( File file )
+    {
+        InputStream inputStream = null;
+        try
+        {
+            inputStream = new FileInputStream( file );
+            MessageDigest digester = MessageDigest.getInstance( "MD5" );
+            byte[] bytes = new byte[8192];
+            int byteCount;
+            while( ( byteCount = inputStream.read( bytes ) ) > 0 )
+            {
+                digester.update( bytes, 0, byteCount );
+            }
+            byte[] md5Bytes = digester.digest();
+            String returnVal = "";
+            for( int i = 0; i < md5Bytes.length; i++ )
+            {
+                returnVal += Integer.toString( ( md5Bytes[i] & 0xff ) + 0x100, 16 ).substring( 1 );
+            }
+            return returnVal.toUpperCase( Locale.US );
+        }
+        catch( Exception e )
+        {
+            return null;
+        }
+        finally
+        {
+            if( inputStream != null )
+            {
+                try
+                {
+                    inputStream.close();
+                }
+                catch( Exception e )
+                {
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,21 @@
+#! /bin/sh
+
+# Compiles and runs a benchmark or check on the desktop JVM. Android classes used by the benchmarked
+# code are replaced by the minimal stand-ins in tools/benchmark/stubs.
+# Usage (from the project root): tools/benchmark/run.sh Md5Benchmark [args...]
+
+if [ "$#" -lt 1 ]; then
+    echo "Usage:"
+    echo "tools/benchmark/run.sh BenchmarkName [args...]"
+    exit 1
+fi
+
+name="$1"
+shift
+
+out=`mktemp -d`
+javac -nowarn -d "$out" -sourcepath src:tools/benchmark/stubs tools/benchmark/"$name".java || exit 1
+java -cp "$out" "$name" "$@"
+status=$?
+rm -rf "$out"
+exit $status
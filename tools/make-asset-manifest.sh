@@ -0,0 +1,49 @@
+#! /bin/sh
+
+# Regenerates the manifest of the assets extracted on first launch. Run this (from the project
+# root) after changing anything in assets/mupen64plus_data, and increment ASSET_VERSION in
+# SplashActivity.
+#
+# Each line gives the MD5 hash, size in bytes, number of parts, and path of a file to extract.
+# Files too big for old versions of Android are split into name.part0, name.part1, etc.; these are
+# listed once, under their combined name, with the hash and size of the combined file. Whole files
+# have zero parts.
+
+src="assets/mupen64plus_data"
+manifest="assets/mupen64plus_data.manifest"
+
+if [ ! -d "$src" ]; then
+    echo "Usage:"
+    echo "tools/make-asset-manifest.sh (from the project root)"
+    exit 1
+fi
+
+( cd "$src" && find . -type f | sed 's|^\./||' | LC_ALL=C sort ) | while read -r path; do
+    case "$path" in
+        *.part0)
+            name="${path%.part0}"
+            parts=0
+            while [ -f "$src/$name.part$parts" ]; do
+                parts=$((parts + 1))
+            done
+            i=0
+            files=""
+            while [ "$i" -lt "$parts" ]; do
+                files="$files $src/$name.part$i"
+                i=$((i + 1))
+            done
+            md5=`cat $files | md5sum | cut -d ' ' -f 1`
+            size=$((`cat $files | wc -c`))
+            echo "$md5 $size $parts $name"
+            ;;
+        *.part[0-9]*)
+            ;;
+        *)
+            md5=`md5sum "$src/$path" | cut -d ' ' -f 1`
+            size=$((`wc -c < "$src/$path"`))
+            echo "$md5 $size 0 $path"
+            ;;
+    esac
+done > "$manifest"
+
+echo "Wrote `wc -l < "$manifest"` entries to $manifest"